@@ -31,7 +31,7 @@ public class CodeBase {
     public List<OutputBinary> outputs = new ArrayList<>();
 
     // Table with all the transitions that a given statement can have (e.g. jumps, rets, etc.).
-    public HashMap<CodeStatement, List<StatementTransition>> executionFlowTable = null;
+    public volatile HashMap<CodeStatement, List<StatementTransition>> executionFlowTable = null;
 
 
     public CodeBase(MDLConfig a_config)
@@ -433,14 +433,23 @@ public class CodeBase {
     {
         if (!config.useExecutionFlowAnalysis) return null;
 
-        if (config.flowAnalyzer == null) {
-            config.flowAnalyzer = new ExecutionFlowAnalysis(this, config);
-        }
-        if (executionFlowTable == null) {
-            executionFlowTable = config.flowAnalyzer.findAllRetDestinations();
+        HashMap<CodeStatement, List<StatementTransition>> table = executionFlowTable;
+        if (table == null) {
+            // Several pattern matching threads might get here at the same
+            // time ("-po-threads"), so the table is only built once, and is
+            // not modified after that until the code changes:
+            synchronized(this) {
+                if (config.flowAnalyzer == null) {
+                    config.flowAnalyzer = new ExecutionFlowAnalysis(this, config);
+                }
+                if (executionFlowTable == null) {
+                    executionFlowTable = config.flowAnalyzer.findAllRetDestinations();
+                }
+                table = executionFlowTable;
+            }
         }
-        if (executionFlowTable != null) {
-            return executionFlowTable.get(s);
+        if (table != null) {
+            return table.get(s);
         }
         return null;
     }
@@ -17,7 +17,7 @@ public class SourceFile {
 
     public String fileName = null;
     public String originalFileName = null;
-    List<CodeStatement> statements = new ArrayList<>();
+    List<CodeStatement> statements = new StatementList();  // indexes the position of each statement
     public SourceFile parent = null;
     public CodeStatement parentInclude = null;
     public CodeBase code = null;
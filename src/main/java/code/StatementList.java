@@ -0,0 +1,209 @@
+/*
+ * author: Santiago Ontañón Villar (Brain Games)
+ */
+package code;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
+import java.util.function.UnaryOperator;
+
+/**
+ *
+ * @author santi
+ *
+ * List of the statements of a SourceFile, that keeps track of the position
+ * of each statement, so that "indexOf" (and "contains") do not need to scan
+ * the whole list. Many parts of the code (execution flow, addresses,
+ * optimizers) need to find the position of a statement in its file, and the
+ * optimizers modify the list directly (through "SourceFile.getStatements()"),
+ * so the index is maintained here: each modification just records the first
+ * position that might have changed, and the positions from there to the end
+ * are recomputed the next time "indexOf" is called. So, consecutive
+ * modifications only cost one update, and appending statements (as the
+ * parser does) only requires indexing the new ones.
+ */
+public class StatementList extends ArrayList<CodeStatement> {
+    HashMap<CodeStatement, Integer> positions = new HashMap<>();
+    int indexedUpTo = 0;    // positions before this one are up to date
+
+
+    synchronized void updateIndex()
+    {
+        // backwards, to keep the first occurrence (as "indexOf" returns the
+        // first one) if a statement appears more than once:
+        for(int i = size()-1;i>=indexedUpTo;i--) {
+            CodeStatement s = get(i);
+            Integer idx = positions.get(s);
+            if (idx == null || idx >= indexedUpTo || get(idx) != s) positions.put(s, i);
+        }
+        indexedUpTo = size();
+    }
+
+
+    void modifiedFrom(int idx)
+    {
+        if (idx < indexedUpTo) indexedUpTo = idx;
+    }
+
+
+    void modifiedAll()
+    {
+        positions.clear();
+        indexedUpTo = 0;
+    }
+
+
+    @Override
+    synchronized public int indexOf(Object o)
+    {
+        if (indexedUpTo < size()) updateIndex();
+        Integer idx = positions.get(o);
+        if (idx == null) return -1;
+        if (idx >= size() || get(idx) != o) {
+            // the statement was removed:
+            positions.remove(o);
+            return -1;
+        }
+        return idx;
+    }
+
+
+    @Override
+    public boolean contains(Object o)
+    {
+        return indexOf(o) >= 0;
+    }
+
+
+    @Override
+    public boolean add(CodeStatement s)
+    {
+        modifiedFrom(size());
+        return super.add(s);
+    }
+
+
+    @Override
+    public void add(int index, CodeStatement s)
+    {
+        modifiedFrom(index);
+        super.add(index, s);
+    }
+
+
+    @Override
+    public boolean addAll(Collection<? extends CodeStatement> c)
+    {
+        modifiedFrom(size());
+        return super.addAll(c);
+    }
+
+
+    @Override
+    public boolean addAll(int index, Collection<? extends CodeStatement> c)
+    {
+        modifiedFrom(index);
+        return super.addAll(index, c);
+    }
+
+
+    @Override
+    public CodeStatement set(int index, CodeStatement s)
+    {
+        modifiedFrom(index);
+        return super.set(index, s);
+    }
+
+
+    @Override
+    public CodeStatement remove(int index)
+    {
+        modifiedFrom(index);
+        CodeStatement s = super.remove(index);
+        Integer idx = positions.get(s);
+        if (idx != null && idx == index) positions.remove(s);
+        return s;
+    }
+
+
+    @Override
+    public boolean remove(Object o)
+    {
+        int index = indexOf(o);
+        if (index < 0) return false;
+        remove(index);
+        return true;
+    }
+
+
+    @Override
+    protected void removeRange(int fromIndex, int toIndex)
+    {
+        modifiedFrom(fromIndex);
+        super.removeRange(fromIndex, toIndex);
+    }
+
+
+    @Override
+    public void clear()
+    {
+        modifiedAll();
+        super.clear();
+    }
+
+
+    @Override
+    public boolean removeAll(Collection<?> c)
+    {
+        modifiedAll();
+        return super.removeAll(c);
+    }
+
+
+    @Override
+    public boolean retainAll(Collection<?> c)
+    {
+        modifiedAll();
+        return super.retainAll(c);
+    }
+
+
+    @Override
+    public boolean removeIf(Predicate<? super CodeStatement> filter)
+    {
+        modifiedAll();
+        return super.removeIf(filter);
+    }
+
+
+    @Override
+    public void replaceAll(UnaryOperator<CodeStatement> operator)
+    {
+        modifiedAll();
+        super.replaceAll(operator);
+    }
+
+
+    @Override
+    public void sort(Comparator<? super CodeStatement> c)
+    {
+        modifiedAll();
+        super.sort(c);
+    }
+
+
+    /*
+    Sublists can modify the list without going through the methods above, so
+    they are read-only.
+    */
+    @Override
+    public List<CodeStatement> subList(int fromIndex, int toIndex)
+    {
+        return Collections.unmodifiableList(super.subList(fromIndex, toIndex));
+    }
+}
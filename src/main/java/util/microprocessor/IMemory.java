@@ -69,6 +69,23 @@ public interface IMemory {
     void writeWord(int address, int data);
     
     
+    /**
+     * Copy "data" to memory starting at "address" (e.g., to load code),
+     * bypassing write protections and access tracking. The default version
+     * does not know about checkpoints, so implementations that support them
+     * must override it to record the modified range (see
+     * MemoryCheckpoint.beforeWrite).
+     *
+     * @param address The address to start writing at
+     * @param data    The bytes to write
+     * @throws Exception If not supported by the memory implementation
+     */
+    default void loadBytes(int address, int data[]) throws Exception
+    {
+        System.arraycopy(data, 0, getMemoryArray(), address, data.length);
+    }
+    
+    
     default void writeProtect(int start, int end) throws Exception
     {
     }
@@ -80,4 +97,29 @@ public interface IMemory {
     
     
     public int[] getMemoryArray() throws Exception;
+    
+    
+    /**
+     * Start a copy-on-write checkpoint of the current memory contents (see
+     * MemoryCheckpoint). Each memory only tracks the changes of its latest
+     * checkpoint, so creating a new one invalidates the previous one.
+     *
+     * @return The checkpoint, or null if checkpoints are not supported
+     */
+    default MemoryCheckpoint checkpoint()
+    {
+        return null;
+    }
+    
+    
+    /**
+     * Restore the memory contents to those at the time "checkpoint" was
+     * created (or last restored). The checkpoint remains active.
+     *
+     * @param checkpoint A checkpoint created by "checkpoint"
+     */
+    default void restoreCheckpoint(MemoryCheckpoint checkpoint)
+    {
+        checkpoint.restore();
+    }
 }
\ No newline at end of file
@@ -6,6 +6,7 @@ package util.microprocessor;
 
 import cl.MDLConfig;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -26,12 +27,12 @@ public class MappedTrackingZ80Memory implements IMemory {
     }
     
     public static class MemorySource {
-        public int memory[];
+        public byte memory[];  // one byte per address (see PlainByteZ80Memory)
         public int mapper;
         public boolean writeProtected = false;
         
         public MemorySource(int size, int a_mapper, boolean a_writeProtected) {
-            memory = new int[size];
+            memory = new byte[size];
             mapper = a_mapper;
             writeProtected = a_writeProtected;
         }
@@ -47,10 +48,16 @@ public class MappedTrackingZ80Memory implements IMemory {
     MDLConfig config;
     
     public List<MemorySource> sources = new ArrayList<>();
+    // Offset of each source in the "physical address" space (see "physicalAddress"):
+    int sourceOffsets[] = {0};
+    int physicalMemorySize = 0;
     
     public int pageSize = 16 * 1024;
     public int nPages;
     public MemorySegment pages[];
+    // Source currently mapped to each page (so that reads/writes do not need to
+    // look it up in "sources"):
+    MemorySource pageSources[];
     ICPU cpu = null;
     
     int memoryWritesIndex = 0;
@@ -61,6 +68,9 @@ public class MappedTrackingZ80Memory implements IMemory {
     int memoryReadValues[] = new int[TRACKING_BUFFER];
     int memoryReadTime[] = new int[TRACKING_BUFFER];
     int nProtectedWrites = 0;
+    MemoryCheckpoint checkpoint = null;
+    // Optional unbounded trace/heatmaps of all memory accesses:
+    MemoryAccessTrace accessTrace = null;
     
     
     public MappedTrackingZ80Memory(ICPU a_cpu, MDLConfig a_config, boolean a_infoPageChanges) {
@@ -81,9 +91,12 @@ public class MappedTrackingZ80Memory implements IMemory {
     final void initMemory(int mapper_type) {
         nPages = VISIBLE_MEMORY_SIZE / pageSize;
         sources.add(new MemorySource(VISIBLE_MEMORY_SIZE, mapper_type, false));
+        physicalMemorySize = VISIBLE_MEMORY_SIZE;
         pages = new MemorySegment[nPages];
+        pageSources = new MemorySource[nPages];
         for(int i = 0;i<nPages;i++) {
             pages[i] = new MemorySegment(0, i);
+            pageSources[i] = sources.get(0);
         }
     }
     
@@ -94,7 +107,15 @@ public class MappedTrackingZ80Memory implements IMemory {
     
     public void addMemorySource(int size, int mapper, boolean writeProtected) throws Exception
     {
+        if (checkpoint != null) {
+            // The new source would not be covered by the checkpoint:
+            checkpoint.invalidate();
+            checkpoint = null;
+        }
         sources.add(new MemorySource(size, mapper, writeProtected));
+        sourceOffsets = Arrays.copyOf(sourceOffsets, sources.size());
+        sourceOffsets[sources.size()-1] = physicalMemorySize;
+        physicalMemorySize += size;
         if (mapper == MSX_ASCII16_MAPPER && pageSize != 16*1024) {
             throw new Exception("MSX_ASCII16_MAPPER requires pageSize == 16384, but was " + pageSize);
         }
@@ -104,6 +125,7 @@ public class MappedTrackingZ80Memory implements IMemory {
     {
         pages[page].source = source;
         pages[page].segment = segment;
+        pageSources[page] = sources.get(source);
     }
 
     @Override
@@ -111,13 +133,16 @@ public class MappedTrackingZ80Memory implements IMemory {
         int page = address / pageSize;
         int withinPage = address % pageSize;
         MemorySegment s = pages[page];
-        int v = sources.get(s.source).memory[s.segment * pageSize + withinPage];
+        int v = pageSources[page].memory[s.segment * pageSize + withinPage] & 0xff;
         if (memoryReadsIndex < TRACKING_BUFFER) {
             memoryReadAddresses[memoryReadsIndex] = address;
             memoryReadValues[memoryReadsIndex] = v;
             memoryReadTime[memoryReadsIndex] = (int)cpu.getTStates();
             memoryReadsIndex++;
         }
+        if (accessTrace != null) {
+            accessTrace.read(address, sourceOffsets[s.source] + s.segment * pageSize + withinPage, v);
+        }
         return v;
     }
     
@@ -126,7 +151,7 @@ public class MappedTrackingZ80Memory implements IMemory {
         int page = address / pageSize;
         int withinPage = address % pageSize;
         MemorySegment s = pages[page];
-        int v = sources.get(s.source).memory[s.segment * pageSize + withinPage];
+        int v = pageSources[page].memory[s.segment * pageSize + withinPage] & 0xff;
         return v;
     }
 
@@ -141,13 +166,14 @@ public class MappedTrackingZ80Memory implements IMemory {
         int page = address / pageSize;
         int withinPage = address % pageSize;
         MemorySegment s = pages[page];
-        MemorySource ms = sources.get(s.source);
+        MemorySource ms = pageSources[page];
         
         switch(ms.mapper) {
             case MSX_ASCII16_MAPPER:
                 if (address == 0x6000) {
                     // Switch page:
                     mapPage(1, s.source, data);
+                    if (accessTrace != null) accessTrace.pageSwitch(1, data);
                     if (infoPageChanges) {
                         config.info("MappedTrackingZ80Memory: MSX_ASCII16_MAPPER: page 1 to segment " + data);
                     }
@@ -155,6 +181,7 @@ public class MappedTrackingZ80Memory implements IMemory {
                 } else if (address == 0x7000) {
                     // Switch page:
                     mapPage(2, s.source, data);
+                    if (accessTrace != null) accessTrace.pageSwitch(2, data);
                     if (infoPageChanges) {
                         config.info("MappedTrackingZ80Memory: MSX_ASCII16_MAPPER: page 1 to segment " + data);
                     }
@@ -166,6 +193,9 @@ public class MappedTrackingZ80Memory implements IMemory {
         if (ms.writeProtected) {
             config.warn("MappedTrackingZ80Memory: Writing to a write protected source: " + s.source + ", address: " + config.tokenizer.toHexWord(address, config.hexStyle) + ", value: " + data);
             nProtectedWrites++;
+            if (accessTrace != null) {
+                accessTrace.write(address, sourceOffsets[s.source] + s.segment * pageSize + withinPage, data, true);
+            }
             return;
         }
         
@@ -174,12 +204,17 @@ public class MappedTrackingZ80Memory implements IMemory {
             memoryWriteTime[memoryWritesIndex] = (int)cpu.getTStates();
             memoryWritesIndex++;
         }
-        ms.memory[s.segment * pageSize + withinPage] = data;
+        if (accessTrace != null) {
+            accessTrace.write(address, sourceOffsets[s.source] + s.segment * pageSize + withinPage, data, false);
+        }
+        if (checkpoint != null) checkpoint.beforeWrite(s.source, s.segment * pageSize + withinPage);
+        ms.memory[s.segment * pageSize + withinPage] = (byte)data;
     }
     
     public void writeByteToSource(int source, int address, int data)
     {
-        sources.get(source).memory[address] = data;
+        if (checkpoint != null) checkpoint.beforeWrite(source, address);
+        sources.get(source).memory[address] = (byte)data;
     }
 
     @Override
@@ -240,6 +275,37 @@ public class MappedTrackingZ80Memory implements IMemory {
     }
     
     
+    /*
+    The checkpoint covers all the memory sources, and also the page mapping.
+    */
+    @Override
+    public MemoryCheckpoint checkpoint()
+    {
+        if (checkpoint != null) checkpoint.invalidate();
+        Object memories[] = new Object[sources.size()];
+        for(int i = 0;i<memories.length;i++) {
+            memories[i] = sources.get(i).memory;
+        }
+        checkpoint = new MemoryCheckpoint(memories);
+        checkpoint.extraState = new int[nPages * 2];
+        for(int i = 0;i<nPages;i++) {
+            checkpoint.extraState[i*2] = pages[i].source;
+            checkpoint.extraState[i*2+1] = pages[i].segment;
+        }
+        return checkpoint;
+    }
+    
+    
+    @Override
+    public void restoreCheckpoint(MemoryCheckpoint a_checkpoint)
+    {
+        a_checkpoint.restore();
+        for(int i = 0;i<nPages;i++) {
+            mapPage(i, a_checkpoint.extraState[i*2], a_checkpoint.extraState[i*2+1]);
+        }
+    }
+    
+    
     public boolean writtenBefore(int address, int time)
     {
         for(int i = 0;i<memoryWritesIndex;i++) {
@@ -261,6 +327,42 @@ public class MappedTrackingZ80Memory implements IMemory {
     }
     
     
+    /*
+    Returns an integer that uniquely identifies the memory position (source and
+    position within the source) currently mapped to "address". This is the
+    integer equivalent of "addressString", and goes from 0 to
+    "getPhysicalMemorySize()-1", so it can be used to index arrays.
+    */
+    public int physicalAddress(int address)
+    {
+        MemorySegment s = pages[address / pageSize];
+        return sourceOffsets[s.source] + s.segment * pageSize + address % pageSize;
+    }
+    
+    
+    public int physicalAddress(int source, int addressInSource)
+    {
+        return sourceOffsets[source] + addressInSource;
+    }
+    
+    
+    public int getPhysicalMemorySize()
+    {
+        return physicalMemorySize;
+    }
+    
+    
+    /*
+    Inverse of "physicalAddress": returns the "source:address" string.
+    */
+    public String physicalAddressString(int physicalAddress)
+    {
+        int source = sourceOffsets.length - 1;
+        while(source > 0 && sourceOffsets[source] > physicalAddress) source--;
+        return source + ":" + (physicalAddress - sourceOffsets[source]);
+    }
+    
+    
     public Integer integerAddressOf(String addressString)
     {
         String tokens[] = addressString.split(":");
@@ -280,6 +382,12 @@ public class MappedTrackingZ80Memory implements IMemory {
     }
     
     
+    public void setAccessTrace(MemoryAccessTrace a_accessTrace)
+    {
+        accessTrace = a_accessTrace;
+    }
+    
+    
     public int getNProtectedWrites()
     {
         return nProtectedWrites;
@@ -0,0 +1,190 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package util.microprocessor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ *
+ * @author santi
+ *
+ * Unbounded memory access trace: every memory read/write (and mapper page
+ * switch) is stored as a fixed size record in a buffer, which is written to
+ * a binary file each time it fills up, so memory use does not grow with the
+ * length of the execution. Optionally, it also keeps per-address read/write
+ * counters (heatmaps), indexed by physical address.
+ *
+ * File format (little endian): an 8 byte header ("MDLMEMTR"), an int with
+ * the format version, and an int with the record size, followed by the
+ * records:
+ * - long: T states when the access happened
+ * - unsigned short: address of the instruction that did the access
+ * - unsigned short: address accessed (for page switches: the page)
+ * - int: physical address accessed (for page switches: the segment)
+ * - unsigned byte: value read/written
+ * - byte: record type (READ, WRITE, PROTECTED_WRITE or PAGE_SWITCH)
+ *
+ * Instruction fetches are not part of the trace.
+ *
+ */
+public class MemoryAccessTrace {
+    public static final byte[] MAGIC = {'M', 'D', 'L', 'M', 'E', 'M', 'T', 'R'};
+    public static final int VERSION = 1;
+    public static final int RECORD_SIZE = 18;
+    public static final int DEFAULT_BUFFER_RECORDS = 64 * 1024;
+
+    public static final byte READ = 0;
+    public static final byte WRITE = 1;
+    public static final byte PROTECTED_WRITE = 2;   // write to a write-protected address (ignored)
+    public static final byte PAGE_SWITCH = 3;
+
+    ICPU cpu;
+    int instructionAddress = 0;
+
+    // Trace (null if only heatmaps are kept):
+    FileChannel channel = null;
+    ByteBuffer buffer = null;
+    long nRecords = 0;
+    String error = null;
+
+    // Heatmaps (null if not kept):
+    public int readCounts[] = null;
+    public int writeCounts[] = null;
+    public int pageSwitchCounts[] = null;
+
+
+    public MemoryAccessTrace(ICPU a_cpu)
+    {
+        cpu = a_cpu;
+    }
+
+
+    public void setCPU(ICPU a_cpu)
+    {
+        cpu = a_cpu;
+    }
+
+
+    public void startTrace(String fileName, int bufferRecords) throws IOException
+    {
+        channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                                   StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        buffer = ByteBuffer.allocateDirect(bufferRecords * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(RECORD_SIZE);
+    }
+
+
+    public void startHeatmaps(int physicalMemorySize, int nPages)
+    {
+        readCounts = new int[physicalMemorySize];
+        writeCounts = new int[physicalMemorySize];
+        pageSwitchCounts = new int[nPages];
+    }
+
+
+    /*
+    Sets the address of the instruction being executed (to be stored in the
+    records of the accesses done by that instruction).
+    */
+    public final void setInstructionAddress(int address)
+    {
+        instructionAddress = address;
+    }
+
+
+    public final void read(int address, int physicalAddress, int value)
+    {
+        if (readCounts != null) readCounts[physicalAddress]++;
+        if (buffer != null) record(READ, address, physicalAddress, value);
+    }
+
+
+    public final void write(int address, int physicalAddress, int value, boolean writeProtected)
+    {
+        if (writeCounts != null) writeCounts[physicalAddress]++;
+        if (buffer != null) record(writeProtected ? PROTECTED_WRITE : WRITE, address, physicalAddress, value);
+    }
+
+
+    public final void pageSwitch(int page, int segment)
+    {
+        if (pageSwitchCounts != null) pageSwitchCounts[page]++;
+        if (buffer != null) record(PAGE_SWITCH, page, segment, 0);
+    }
+
+
+    final void record(byte type, int address, int physicalAddress, int value)
+    {
+        if (buffer.remaining() < RECORD_SIZE) {
+            flush();
+            if (buffer == null) return;
+        }
+        buffer.putLong(cpu.getTStates());
+        buffer.putShort((short)instructionAddress);
+        buffer.putShort((short)address);
+        buffer.putInt(physicalAddress);
+        buffer.put((byte)value);
+        buffer.put(type);
+        nRecords++;
+    }
+
+
+    void flush()
+    {
+        buffer.flip();
+        try {
+            while(buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException e) {
+            // Stop tracing, but let execution continue (the error is reported by "close"):
+            error = e.getMessage();
+            buffer = null;
+            closeChannel();
+            return;
+        }
+        buffer.clear();
+    }
+
+
+    /*
+    Writes any records left in the buffer, and closes the trace file.
+    */
+    public void close() throws IOException
+    {
+        if (error != null) throw new IOException(error);
+        if (buffer != null) {
+            buffer.flip();
+            while(buffer.hasRemaining()) channel.write(buffer);
+            buffer = null;
+        }
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+
+
+    void closeChannel()
+    {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException e) {
+            // nothing else we can do
+        }
+        channel = null;
+    }
+
+
+    public long getNRecords()
+    {
+        return nRecords;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package util.microprocessor;
+
+import java.lang.reflect.Array;
+
+/**
+ *
+ * @author santi
+ *
+ * Copy-on-write checkpoint of the contents of a memory: the memory keeps
+ * being used normally, and the first time a page is written after the
+ * checkpoint is created, the original contents of that page are saved. So,
+ * restoring the memory to the checkpoint takes time proportional to the
+ * number of pages that were modified (rather than to the memory size).
+ *
+ * A checkpoint can cover several backing arrays (e.g., the different memory
+ * sources of a MappedTrackingZ80Memory), which can be of any primitive type
+ * (int[] or byte[]). Only writes done through the memory implementation are
+ * tracked: code that writes directly to the backing arrays must call
+ * "beforeWrite" first.
+ *
+ */
+public class MemoryCheckpoint {
+    public static final int PAGE_BITS = 8;
+    public static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+    Object memories[];
+    Object savedPages[][];      // [memory][page] (allocated the first time a page is modified)
+    boolean dirty[][];          // [memory][page]
+    int dirtyMemories[];
+    int dirtyPages[];
+    int nDirty = 0;
+    boolean valid = true;
+
+    // Memory implementations can store here any additional state they need to
+    // restore (e.g., the page mapping of a MappedTrackingZ80Memory):
+    public int extraState[] = null;
+
+
+    public MemoryCheckpoint(Object ... a_memories)
+    {
+        memories = a_memories;
+        savedPages = new Object[memories.length][];
+        dirty = new boolean[memories.length][];
+        int totalPages = 0;
+        for(int i = 0;i<memories.length;i++) {
+            int nPages = (Array.getLength(memories[i]) + PAGE_SIZE - 1) >> PAGE_BITS;
+            savedPages[i] = new Object[nPages];
+            dirty[i] = new boolean[nPages];
+            totalPages += nPages;
+        }
+        dirtyMemories = new int[totalPages];
+        dirtyPages = new int[totalPages];
+    }
+
+
+    /*
+    Must be called before modifying position "address" of backing array "memory".
+    */
+    public final void beforeWrite(int memory, int address)
+    {
+        int page = address >> PAGE_BITS;
+        if (!dirty[memory][page]) savePage(memory, page);
+    }
+
+
+    /*
+    Same as "beforeWrite", but for all the positions from "start" to "end-1".
+    */
+    public void beforeWrite(int memory, int start, int end)
+    {
+        for(int page = start >> PAGE_BITS;page <= (end - 1) >> PAGE_BITS;page++) {
+            if (!dirty[memory][page]) savePage(memory, page);
+        }
+    }
+
+
+    void savePage(int memory, int page)
+    {
+        Object m = memories[memory];
+        int start = page << PAGE_BITS;
+        int length = Math.min(PAGE_SIZE, Array.getLength(m) - start);
+        if (savedPages[memory][page] == null) {
+            savedPages[memory][page] = Array.newInstance(m.getClass().getComponentType(), length);
+        }
+        System.arraycopy(m, start, savedPages[memory][page], 0, length);
+        dirty[memory][page] = true;
+        dirtyMemories[nDirty] = memory;
+        dirtyPages[nDirty] = page;
+        nDirty++;
+    }
+
+
+    /*
+    Restores the contents of all the pages modified since the checkpoint was
+    created (or last restored/reset). The checkpoint remains active, so the
+    memory can be restored to it again later.
+    */
+    public void restore()
+    {
+        if (!valid) throw new IllegalStateException("Restoring a memory checkpoint that is no longer active");
+        for(int i = 0;i<nDirty;i++) {
+            int memory = dirtyMemories[i];
+            int page = dirtyPages[i];
+            Object saved = savedPages[memory][page];
+            System.arraycopy(saved, 0, memories[memory], page << PAGE_BITS, Array.getLength(saved));
+            dirty[memory][page] = false;
+        }
+        nDirty = 0;
+    }
+
+
+    /*
+    Moves the checkpoint to the current contents of the memory.
+    */
+    public void reset()
+    {
+        for(int i = 0;i<nDirty;i++) {
+            dirty[dirtyMemories[i]][dirtyPages[i]] = false;
+        }
+        nDirty = 0;
+    }
+
+
+    /*
+    Called by the memory when a new checkpoint replaces this one (after that,
+    changes are no longer tracked, and this checkpoint cannot be restored).
+    */
+    public void invalidate()
+    {
+        valid = false;
+    }
+
+
+    public boolean isValid()
+    {
+        return valid;
+    }
+
+
+    public int getNDirtyPages()
+    {
+        return nDirty;
+    }
+}
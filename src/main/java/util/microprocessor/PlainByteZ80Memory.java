@@ -0,0 +1,97 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package util.microprocessor;
+
+
+/**
+ *
+ * @author santi
+ * 
+ * Same as PlainZ80Memory, but storing one byte per address (rather than one
+ * int), so the 64KB address space takes 64KB rather than 256KB, which keeps
+ * more of it in cache when several simulators run in parallel.
+ * 
+ */
+public class PlainByteZ80Memory implements IMemory {    
+    public static final int MEMORY_SIZE = 0x10000;
+    public final byte[] memory;
+    public WriteProtectionBitmap writeProtections = new WriteProtectionBitmap();
+    MemoryCheckpoint checkpoint = null;
+
+    public PlainByteZ80Memory() {
+        this.memory = new byte[MEMORY_SIZE];
+    }
+
+    @Override
+    final public int readByte(int address) {
+        return memory[address] & 0xff;
+    }
+
+    @Override
+    final public int readByteUntracked(int address) {
+        return memory[address] & 0xff;
+    }
+
+    @Override
+    final public int readWord(int address) {
+        return (memory[address] & 0xff) + (memory[(address + 1) & 0xffff] & 0xff) * 256;
+    }
+
+    @Override
+    final public void writeByte(int address, int data) 
+    {
+        if (writeProtections.isProtected(address)) return;
+        if (checkpoint != null) checkpoint.beforeWrite(0, address);
+        memory[address] = (byte)data;
+    }
+
+    @Override
+    final public void writeWord(int address, int data) {
+        writeByte(address, (data & 0x00ff));
+        address = (address + 1) & 0xffff;
+        data = (data >>> 8);
+        writeByte(address, data);
+    }
+    
+    
+    @Override
+    final public void loadBytes(int address, int data[])
+    {
+        if (checkpoint != null) checkpoint.beforeWrite(0, address, address + data.length);
+        for(int i = 0;i<data.length;i++) {
+            memory[address + i] = (byte)data[i];
+        }
+    }
+    
+    
+    @Override
+    final public void writeProtect(int start, int end)
+    {
+        writeProtections.protect(start, end);
+    }
+    
+    
+    @Override
+    final public void clearWriteProtections()
+    {
+        writeProtections.clear();
+    }    
+    
+    
+    @Override
+    final public int[] getMemoryArray() throws Exception
+    {
+        throw new Exception("getMemoryArray not implemented in PlainByteZ80Memory");
+    }
+    
+    
+    @Override
+    final public MemoryCheckpoint checkpoint()
+    {
+        if (checkpoint != null) checkpoint.invalidate();
+        checkpoint = new MemoryCheckpoint(memory);
+        return checkpoint;
+    }
+}
@@ -5,9 +5,6 @@
  */
 package util.microprocessor;
 
-import java.util.ArrayList;
-import java.util.List;
-import util.Pair;
 
 /**
  *
@@ -16,7 +13,8 @@ import util.Pair;
 public class PlainZ80Memory implements IMemory {    
     public static final int MEMORY_SIZE = 0x10000;
     public final int[] memory;
-    public List<Pair<Integer, Integer>> writeProtections = new ArrayList<>();
+    public WriteProtectionBitmap writeProtections = new WriteProtectionBitmap();
+    MemoryCheckpoint checkpoint = null;
 
     public PlainZ80Memory() {
         this.memory = new int[MEMORY_SIZE];
@@ -40,9 +38,8 @@ public class PlainZ80Memory implements IMemory {
     @Override
     final public void writeByte(int address, int data) 
     {
-        for(Pair<Integer, Integer> p:writeProtections) {
-            if (address >= p.getLeft() && address < p.getRight()) return;
-        }
+        if (writeProtections.isProtected(address)) return;
+        if (checkpoint != null) checkpoint.beforeWrite(0, address);
         memory[address] = data;
     }
 
@@ -55,10 +52,18 @@ public class PlainZ80Memory implements IMemory {
     }
     
     
+    @Override
+    final public void loadBytes(int address, int data[])
+    {
+        if (checkpoint != null) checkpoint.beforeWrite(0, address, address + data.length);
+        System.arraycopy(data, 0, memory, address, data.length);
+    }
+    
+    
     @Override
     final public void writeProtect(int start, int end)
     {
-        writeProtections.add(Pair.of(start, end));
+        writeProtections.protect(start, end);
     }
     
     
@@ -74,4 +79,13 @@ public class PlainZ80Memory implements IMemory {
     {
         return memory;
     }
+    
+    
+    @Override
+    final public MemoryCheckpoint checkpoint()
+    {
+        if (checkpoint != null) checkpoint.invalidate();
+        checkpoint = new MemoryCheckpoint(memory);
+        return checkpoint;
+    }
 }
\ No newline at end of file
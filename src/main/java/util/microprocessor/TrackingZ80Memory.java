@@ -7,7 +7,6 @@ package util.microprocessor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
-import util.Pair;
 
 /**
  *
@@ -25,7 +24,7 @@ public class TrackingZ80Memory implements IMemory {
     public final int[] memory;
     ICPU cpu = null;
     
-    public List<Pair<Integer, Integer>> writeProtections = new ArrayList<>();
+    public WriteProtectionBitmap writeProtections = new WriteProtectionBitmap();
     int memoryWritesIndex = 0;
     int memoryWriteAddresses[] = new int[TRACKING_BUFFER];
     int memoryWriteTime[] = new int[TRACKING_BUFFER];
@@ -34,6 +33,7 @@ public class TrackingZ80Memory implements IMemory {
     int memoryReadValues[] = new int[TRACKING_BUFFER];
     int memoryReadTime[] = new int[TRACKING_BUFFER];
     Random r = new Random();
+    MemoryCheckpoint checkpoint = null;
     
     public TrackingZ80Memory(ICPU a_cpu) {
         memory = new int[MEMORY_SIZE];
@@ -69,14 +69,13 @@ public class TrackingZ80Memory implements IMemory {
     @Override
     public void writeByte(int address, int data) 
     {
-        for(Pair<Integer, Integer> p:writeProtections) {
-            if (address >= p.getLeft() && address < p.getRight()) return;
-        }
+        if (writeProtections.isProtected(address)) return;
         if (memoryWritesIndex<TRACKING_BUFFER) {
             memoryWriteAddresses[memoryWritesIndex] = address;
             memoryWriteTime[memoryWritesIndex] = (int)cpu.getTStates();
             memoryWritesIndex++;
         }
+        if (checkpoint != null) checkpoint.beforeWrite(0, address);
         memory[address] = data;
     }
 
@@ -89,10 +88,18 @@ public class TrackingZ80Memory implements IMemory {
     }
     
     
+    @Override
+    public void loadBytes(int address, int data[])
+    {
+        if (checkpoint != null) checkpoint.beforeWrite(0, address, address + data.length);
+        System.arraycopy(data, 0, memory, address, data.length);
+    }
+    
+    
     @Override
     public void writeProtect(int start, int end)
     {
-        writeProtections.add(Pair.of(start, end));
+        writeProtections.protect(start, end);
     }
     
     
@@ -135,12 +142,14 @@ public class TrackingZ80Memory implements IMemory {
         for(int i = 0;i<memoryWritesIndex;i++) {
             int address = memoryWriteAddresses[i];
             if (address < protectStart || address >= protectEnd) {                
+                if (checkpoint != null) checkpoint.beforeWrite(0, address);
                 memory[address] = r.nextInt(256);
             }
         }
         for(int i = 0;i<memoryReadsIndex;i++) {
             int address = memoryReadAddresses[i];
             if (address < protectStart || address >= protectEnd) {  
+                if (checkpoint != null) checkpoint.beforeWrite(0, address);
                 memory[address] = r.nextInt(256);
             }
         }
@@ -185,6 +194,15 @@ public class TrackingZ80Memory implements IMemory {
     }
     
     
+    @Override
+    public MemoryCheckpoint checkpoint()
+    {
+        if (checkpoint != null) checkpoint.invalidate();
+        checkpoint = new MemoryCheckpoint(memory);
+        return checkpoint;
+    }
+    
+    
     public boolean writtenBefore(int address, int time)
     {
         for(int i = 0;i<memoryWritesIndex;i++) {
@@ -0,0 +1,61 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package util.microprocessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import util.Pair;
+
+/**
+ *
+ * @author santi
+ * 
+ * Write-protected addresses of a 64KB address space, stored as a bitmap, so
+ * that checking whether a write is allowed is a single array access. The
+ * protected ranges are also kept, so that clearing them only takes time
+ * proportional to their size.
+ * 
+ */
+public class WriteProtectionBitmap {
+    public static final int MEMORY_SIZE = 0x10000;
+    
+    long bits[] = new long[MEMORY_SIZE >> 6];
+    List<Pair<Integer, Integer>> ranges = new ArrayList<>();
+    
+    
+    public final boolean isProtected(int address)
+    {
+        return (bits[address >> 6] & (1L << address)) != 0;
+    }
+    
+    
+    /*
+    Protects the addresses from "start" to "end-1".
+    */
+    public void protect(int start, int end)
+    {
+        ranges.add(Pair.of(start, end));
+        for(int address = Math.max(start, 0);address<Math.min(end, MEMORY_SIZE);address++) {
+            bits[address >> 6] |= 1L << address;
+        }
+    }
+    
+    
+    public void clear()
+    {
+        for(Pair<Integer, Integer> range:ranges) {
+            for(int address = Math.max(range.getLeft(), 0);address<Math.min(range.getRight(), MEMORY_SIZE);address++) {
+                bits[address >> 6] &= ~(1L << address);
+            }
+        }
+        ranges.clear();
+    }
+    
+    
+    public List<Pair<Integer, Integer>> getRanges()
+    {
+        return ranges;
+    }
+}
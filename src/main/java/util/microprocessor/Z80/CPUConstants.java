@@ -23,6 +23,19 @@ package util.microprocessor.Z80;
 public class CPUConstants {
     // Pre-calculate parity table
     static final boolean[] PARITY_TABLE = new boolean[256];
+    // Pre-calculated flag tables (indexed by an 8 bit result):
+    static final int[] SZ_TABLE = new int[256];         // S, Z
+    static final int[] SZ53_TABLE = new int[256];       // S, Z, 5, 3
+    static final int[] SZ53P_TABLE = new int[256];      // S, Z, 5, 3, P/V (parity)
+    static final int[] SZHV_INC_TABLE = new int[256];   // all but C after INC (indexed by the value before INC)
+    static final int[] SZHVN_DEC_TABLE = new int[256];  // all but C after DEC (indexed by the value before DEC)
+    // Half carry and overflow flags after 8 bit add/sub, indexed by bit 3 (for
+    // H) or bit 7 (for P/V) of the two operands and the result (see
+    // "addSubLookupIndex" in Z80Core):
+    static final int[] HALFCARRY_ADD_TABLE = {0, 0x10, 0x10, 0x10, 0, 0, 0, 0x10};
+    static final int[] HALFCARRY_SUB_TABLE = {0, 0, 0x10, 0, 0x10, 0, 0x10, 0x10};
+    static final int[] OVERFLOW_ADD_TABLE = {0, 0, 0, 0x04, 0x04, 0, 0, 0};
+    static final int[] OVERFLOW_SUB_TABLE = {0, 0x04, 0, 0, 0, 0, 0x04, 0};
 
     // register bit codes
     final static int regCodeB = 0x0000;
@@ -138,6 +151,22 @@ public class CPUConstants {
             }
             position = position * 2;
         }
+        
+        for (int value = 0; value < 256; value++) {
+            SZ_TABLE[value] = (value & flag_S) | (value == 0 ? flag_Z : 0);
+            SZ53_TABLE[value] = SZ_TABLE[value] | (value & (flag_5 | flag_3));
+            SZ53P_TABLE[value] = SZ53_TABLE[value] | (PARITY_TABLE[value] ? flag_PV : 0);
+        }
+        for (int value = 0; value < 256; value++) {
+            int inc = (value + 1) & 0xff;
+            SZHV_INC_TABLE[value] = SZ53_TABLE[inc] |
+                                    ((value & 0x0f) == 0x0f ? flag_H : 0) |
+                                    (value == 0x7f ? flag_PV : 0);
+            int dec = (value - 1) & 0xff;
+            SZHVN_DEC_TABLE[value] = SZ53_TABLE[dec] | flag_N |
+                                     ((value & 0x0f) == 0 ? flag_H : 0) |
+                                     (value == 0x80 ? flag_PV : 0);
+        }
     }
 
     /**
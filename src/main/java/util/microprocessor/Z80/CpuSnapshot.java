@@ -0,0 +1,34 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package util.microprocessor.Z80;
+
+import util.microprocessor.MemoryCheckpoint;
+
+/**
+ *
+ * @author santi
+ *
+ * Complete checkpoint of a Z80Core (created with Z80Core.snapshot): all the
+ * registers, interrupt state and T states, plus a copy-on-write checkpoint of
+ * memory (if supported by the memory implementation), so that restoring it
+ * only copies back the memory pages that were modified.
+ *
+ */
+public class CpuSnapshot {
+    public final int state[] = new int[Z80Core.STATE_SIZE];
+    public MemoryCheckpoint memory = null;
+    
+    
+    public int getProgramCounter()
+    {
+        return state[14];
+    }
+
+
+    public long getTStates()
+    {
+        return (state[24] & 0xffffffffL) | (((long)state[25]) << 32);
+    }
+}
@@ -39,6 +39,7 @@ public class Z80Core implements ICPUData, ICPU {
     private int instruction;
     private boolean halt;
     private long tStates;
+    private long instructionsExecuted;
     /* registers */
     private int reg_B, reg_C, reg_D, reg_E, reg_H, reg_L;
     private int reg_B_ALT, reg_C_ALT, reg_D_ALT, reg_E_ALT, reg_H_ALT, reg_L_ALT;
@@ -116,8 +117,100 @@ public class Z80Core implements ICPUData, ICPU {
         halt = false;
         reg_PC = resetAddress;
         tStates = 0;
-    }    
+    }
+
+    /**
+     * Number of ints needed to store a snapshot of the processor state with saveState.
+     */
+    public static final int STATE_SIZE = 32;
+
+    /**
+     * Reasons returned by runUntil for stopping execution.
+     */
+    public static final int STOP_BREAKPOINT = 0;
+    public static final int STOP_MAX_TSTATES = 1;
+
+    /**
+     * Number of longs in a breakpoint bitmap for runUntil (one bit per address of the 64K address space).
+     */
+    public static final int BREAKPOINT_BITMAP_SIZE = 0x10000 / 64;
+
+    /**
+     * Store the complete state of the processor (registers, flags, interrupt state and T states) in an array, so it
+     * can be restored later with restoreState. Memory and I/O are not part of this state. This does not allocate
+     * memory, so it is meant to be called frequently (e.g., to avoid re-executing common prefixes of programs).
+     *
+     * @param state Array of at least STATE_SIZE elements
+     */
+    public final void saveState(int state[]) {
+        state[0] = reg_B; state[1] = reg_C; state[2] = reg_D; state[3] = reg_E;
+        state[4] = reg_H; state[5] = reg_L;
+        state[6] = reg_B_ALT; state[7] = reg_C_ALT; state[8] = reg_D_ALT; state[9] = reg_E_ALT;
+        state[10] = reg_H_ALT; state[11] = reg_L_ALT;
+        state[12] = reg_IX; state[13] = reg_IY; state[14] = reg_PC; state[15] = reg_SP;
+        state[16] = reg_A; state[17] = reg_A_ALT; state[18] = reg_F; state[19] = reg_F_ALT;
+        state[20] = reg_I; state[21] = reg_R;
+        state[22] = reg_index;
+        state[23] = instruction;
+        state[24] = (int)tStates;
+        state[25] = (int)(tStates >>> 32);
+        state[26] = halt ? 1:0;
+        state[27] = EIDIFlag ? 1:0;
+        state[28] = IFF1 ? 1:0;
+        state[29] = IFF2 ? 1:0;
+        state[30] = NMI_FF ? 1:0;
+        state[31] = blockMove ? 1:0;
+    }
+
+    /**
+     * Restore the state of the processor previously stored with saveState.
+     *
+     * @param state Array previously filled by saveState
+     */
+    public final void restoreState(int state[]) {
+        reg_B = state[0]; reg_C = state[1]; reg_D = state[2]; reg_E = state[3];
+        reg_H = state[4]; reg_L = state[5];
+        reg_B_ALT = state[6]; reg_C_ALT = state[7]; reg_D_ALT = state[8]; reg_E_ALT = state[9];
+        reg_H_ALT = state[10]; reg_L_ALT = state[11];
+        reg_IX = state[12]; reg_IY = state[13]; reg_PC = state[14]; reg_SP = state[15];
+        reg_A = state[16]; reg_A_ALT = state[17]; reg_F = state[18]; reg_F_ALT = state[19];
+        reg_I = state[20]; reg_R = state[21];
+        reg_index = state[22];
+        instruction = state[23];
+        tStates = (state[24] & 0xffffffffL) | (((long)state[25]) << 32);
+        halt = state[26] != 0;
+        EIDIFlag = state[27] != 0;
+        IFF1 = state[28] != 0;
+        IFF2 = state[29] != 0;
+        NMI_FF = state[30] != 0;
+        blockMove = state[31] != 0;
+    }
     
+    /**
+     * Create a checkpoint of the processor state and of the memory contents (if the memory supports checkpoints, see
+     * IMemory.checkpoint), that can be restored any number of times with restoreSnapshot. Memory only keeps track of
+     * changes for its latest checkpoint, so taking a new snapshot invalidates the memory part of previous ones.
+     *
+     * @return The snapshot
+     */
+    public CpuSnapshot snapshot() {
+        CpuSnapshot snapshot = new CpuSnapshot();
+        saveState(snapshot.state);
+        snapshot.memory = ram.checkpoint();
+        return snapshot;
+    }
+
+    /**
+     * Restore the processor state and memory contents to a snapshot created with snapshot. Only the memory pages
+     * modified since the snapshot was created (or last restored) are copied back.
+     *
+     * @param snapshot Snapshot previously created by snapshot
+     */
+    public void restoreSnapshot(CpuSnapshot snapshot) {
+        restoreState(snapshot.state);
+        if (snapshot.memory != null) ram.restoreCheckpoint(snapshot.memory);
+    }
+
     /**
      * Initiate an NMI request
      */
@@ -431,22 +524,35 @@ public class Z80Core implements ICPUData, ICPU {
     public void executeOneInstruction() throws ProcessorException {
 
         // NMI check first
-        if (NMI_FF) {
-            // can't interrupt straight after an EI or DI
-            if (EIDIFlag) {
-                EIDIFlag = false;
-            } else {
-                NMI_FF = false; // interrupt accepted
-                IFF2 = IFF1; // store IFF state
-                dec2SP();
-                if (halt) {
-                    incPC(); // Was a bug ! - point to instruction after(!) interrupt location. HALT decrements PC !!!
-                }
-                ram.writeWord(reg_SP, reg_PC);
-                reg_PC = 0x0066; // NMI routine location
-            }
+        if (NMI_FF) acceptNMI();
+        executeInstructionAtPC();
+    }
+
+    /**
+     * Accept a pending NMI (unless right after an EI or DI).
+     */
+    private void acceptNMI() {
+        // can't interrupt straight after an EI or DI
+        if (EIDIFlag) {
+            EIDIFlag = false;
+        } else {
+            NMI_FF = false; // interrupt accepted
+            IFF2 = IFF1; // store IFF state
+            dec2SP();
+            if (halt) {
+                incPC(); // Was a bug ! - point to instruction after(!) interrupt location. HALT decrements PC !!!
+            }
+            ram.writeWord(reg_SP, reg_PC);
+            reg_PC = 0x0066; // NMI routine location
         }
+    }
+
+    /**
+     * Execute the instruction at the present program counter, without checking for NMIs.
+     */
+    private void executeInstructionAtPC() throws ProcessorException {
         halt = false;
+        instructionsExecuted++;
         instruction = readBytePC();
         incPC();
         try {
@@ -457,6 +563,67 @@ public class Z80Core implements ICPUData, ICPU {
         }
     }
 
+    /**
+     * Execute instructions until the program counter is at or past breakPC (i.e., until execution leaves a block of
+     * code that ends at breakPC), or until the T state count reaches maxTStates. Both conditions are checked before
+     * each instruction, so if they already hold when calling this method, no instruction is executed. This is
+     * equivalent to calling executeOneInstruction in a loop, but avoids the per-instruction call overhead, and the
+     * NMI check when no NMI is pending.
+     *
+     * @param breakPC Address at which to stop (any address greater or equal also stops execution)
+     * @param maxTStates T state count at which to stop
+     * @return The reason why execution stopped (STOP_BREAKPOINT or STOP_MAX_TSTATES)
+     * @throws ProcessorException Thrown if an unexpected state arises
+     */
+    public int runUntil(int breakPC, long maxTStates) throws ProcessorException {
+        while(true) {
+            if (reg_PC >= breakPC) return STOP_BREAKPOINT;
+            if (tStates >= maxTStates) return STOP_MAX_TSTATES;
+            if (NMI_FF) acceptNMI();
+            executeInstructionAtPC();
+        }
+    }
+
+    /**
+     * Execute instructions until the program counter is at one of the addresses marked in the "breakpoints" bitmap,
+     * or until the T state count reaches maxTStates. The bitmap has one bit per address of the 64K address space
+     * (address "a" is bit "a & 63" of breakpoints[a >> 6]), and can be created with newBreakpointBitmap. As in
+     * runUntil(int, long), both conditions are checked before each instruction.
+     *
+     * @param breakpoints Breakpoint bitmap (BREAKPOINT_BITMAP_SIZE longs)
+     * @param maxTStates T state count at which to stop
+     * @return The reason why execution stopped (STOP_BREAKPOINT or STOP_MAX_TSTATES)
+     * @throws ProcessorException Thrown if an unexpected state arises
+     */
+    public int runUntil(long breakpoints[], long maxTStates) throws ProcessorException {
+        while(true) {
+            if ((breakpoints[reg_PC >> 6] & (1L << reg_PC)) != 0) return STOP_BREAKPOINT;
+            if (tStates >= maxTStates) return STOP_MAX_TSTATES;
+            if (NMI_FF) acceptNMI();
+            executeInstructionAtPC();
+        }
+    }
+
+    /**
+     * Create an empty breakpoint bitmap for runUntil(long[], long).
+     *
+     * @return The bitmap
+     */
+    public static long[] newBreakpointBitmap() {
+        return new long[BREAKPOINT_BITMAP_SIZE];
+    }
+
+    /**
+     * Mark "address" as a breakpoint in a bitmap created with newBreakpointBitmap.
+     *
+     * @param breakpoints The bitmap
+     * @param address The address (0 - 0xffff)
+     */
+    public static void setBreakpoint(long breakpoints[], int address) {
+        address &= MAX_ADDRESS;
+        breakpoints[address >> 6] |= 1L << address;
+    }
+
     /**
      * Return the number of T states since last reset
      *
@@ -466,6 +633,16 @@ public class Z80Core implements ICPUData, ICPU {
         return tStates;
     }
 
+    /**
+     * Return the number of instructions executed since this processor was created (this is not affected by resets
+     * or by restoreState, and is meant for profiling)
+     *
+     * @return Number of instructions executed
+     */
+    public long getInstructionsExecuted() {
+        return instructionsExecuted;
+    }
+
     /**
      * Reset the T state counter to zero
      */
@@ -4772,20 +4949,6 @@ public class Z80Core implements ICPUData, ICPU {
      * ALU Operations
      */
 
-    /* half carry flag control */
-    private void setHalfCarryFlagAdd(int left, int right, int carry) {
-        left = left & 0x000f;
-        right = right & 0x000f;
-        setH((right + left + carry) > 0x0f);
-    }
-
-    /* half carry flag control */
-    private void setHalfCarryFlagAdd(int left, int right) {
-        left = left & 0x000F;
-        right = right & 0x000F;
-        setH((right + left) > 0x0F);
-    }
-
     /* half carry flag control */
     private void setHalfCarryFlagSub(int left, int right) {
         left = left & 0x000F;
@@ -4793,33 +4956,11 @@ public class Z80Core implements ICPUData, ICPU {
         setH(left < right);
     }
 
-    /* half carry flag control */
-    private void setHalfCarryFlagSub(int left, int right, int carry) {
-        left = left & 0x000F;
-        right = right & 0x000F;
-        setH(left < (right + carry));
-    }
-
     /* half carry flag control */
     /*
      * private void setHalfCarryFlagSub16(int left, int right, int carry) { left = left & 0x0FFF; right = right &
      * 0x0FFF; setH ( left < (right+carry) ); }
      */
-    /* 2's compliment overflow flag control */
-    private void setOverflowFlagAdd(int left, int right, int carry) {
-        if (left > 127)
-            left = left - 256;
-        if (right > 127)
-            right = right - 256;
-        left = left + right + carry;
-        setPV((left < -128) || (left > 127));
-    }
-
-    /* 2's compliment overflow flag control */
-    private void setOverflowFlagAdd(int left, int right) {
-        setOverflowFlagAdd(left, right, 0);
-    }
-
     /* 2's compliment overflow flag control */
     private void setOverflowFlagAdd16(int left, int right, int carry) {
         if (left > 32767)
@@ -4830,21 +4971,6 @@ public class Z80Core implements ICPUData, ICPU {
         setPV((left < -32768) || (left > 32767));
     }
 
-    /* 2's compliment overflow flag control */
-    private void setOverflowFlagSub(int left, int right, int carry) {
-        if (left > 127)
-            left = left - 256;
-        if (right > 127)
-            right = right - 256;
-        left = left - right - carry;
-        setPV((left < -128) || (left > 127));
-    }
-
-    /* 2's compliment overflow flag control */
-    private void setOverflowFlagSub(int left, int right) {
-        setOverflowFlagSub(left, right, 0);
-    }
-
     /* 2's compliment overflow flag control */
     private void setOverflowFlagSub16(int left, int right, int carry) {
         if (left > 32767)
@@ -4855,158 +4981,87 @@ public class Z80Core implements ICPUData, ICPU {
         setPV((left < -32768) || (left > 32767));
     }
 
+    /*
+     * Index into the HALFCARRY_* (lower 3 bits) and OVERFLOW_* (bits 4-6) flag tables: bits 3 and 7 of the two
+     * operands and of the result of an 8 bit add/sub.
+     */
+    private static int addSubLookupIndex(int left, int right, int result) {
+        return ((left & 0x88) >> 3) | ((right & 0x88) >> 2) | ((result & 0x88) >> 1);
+    }
+
     /* 8 bit ADD */
     private void ALU8BitAdd(int value) {
-        int local_reg_A = reg_A;
-
-        setHalfCarryFlagAdd(local_reg_A, value);
-        setOverflowFlagAdd(local_reg_A, value);
-        local_reg_A = local_reg_A + value;
-        setS((local_reg_A & 0x0080) != 0);
-        setC((local_reg_A & 0xff00) != 0);
-        local_reg_A = local_reg_A & 0x00ff;
-        setZ(local_reg_A == 0);
-        resetN();
-        reg_A = local_reg_A;
-        setUnusedFlags(reg_A);
+        int result = reg_A + value;
+        int lookup = addSubLookupIndex(reg_A, value, result);
+        reg_A = result & 0x00ff;
+        reg_F = SZ53_TABLE[reg_A] | HALFCARRY_ADD_TABLE[lookup & 0x07] | OVERFLOW_ADD_TABLE[lookup >> 4] |
+                ((result >> 8) & flag_C);
     }
 
     /* 8 bit ADC */
     private void ALU8BitAdc(int value) {
-        int local_reg_A = reg_A;
-        int carry;
-
-        if (getC())
-            carry = 1;
-        else
-            carry = 0;
-        setHalfCarryFlagAdd(local_reg_A, value, carry);
-        setOverflowFlagAdd(local_reg_A, value, carry);
-        local_reg_A = local_reg_A + value + carry;
-        setS((local_reg_A & 0x0080) != 0);
-        setC((local_reg_A & 0xff00) != 0);
-        local_reg_A = local_reg_A & 0x00ff;
-        setZ(local_reg_A == 0);
-        resetN();
-        reg_A = local_reg_A;
-        setUnusedFlags(reg_A);
+        int result = reg_A + value + (reg_F & flag_C);
+        int lookup = addSubLookupIndex(reg_A, value, result);
+        reg_A = result & 0x00ff;
+        reg_F = SZ53_TABLE[reg_A] | HALFCARRY_ADD_TABLE[lookup & 0x07] | OVERFLOW_ADD_TABLE[lookup >> 4] |
+                ((result >> 8) & flag_C);
     }
 
     /* 8 bit SUB */
     private void ALU8BitSub(int value) {
-        int local_reg_A = reg_A;
-        setHalfCarryFlagSub(local_reg_A, value);
-        setOverflowFlagSub(local_reg_A, value);
-        local_reg_A = local_reg_A - value;
-        setS((local_reg_A & 0x0080) != 0);
-        setC((local_reg_A & 0xff00) != 0);
-        local_reg_A = local_reg_A & 0x00ff;
-        setZ(local_reg_A == 0);
-        setN();
-        reg_A = local_reg_A;
-        setUnusedFlags(reg_A);
+        int result = reg_A - value;
+        int lookup = addSubLookupIndex(reg_A, value, result);
+        reg_A = result & 0x00ff;
+        reg_F = SZ53_TABLE[reg_A] | HALFCARRY_SUB_TABLE[lookup & 0x07] | OVERFLOW_SUB_TABLE[lookup >> 4] |
+                flag_N | ((result >> 8) & flag_C);
     }
 
     /* 8 bit SBC */
     private void ALU8BitSbc(int value) {
-        int local_reg_A = reg_A;
-        int carry;
-
-        if (getC())
-            carry = 1;
-        else
-            carry = 0;
-        setHalfCarryFlagSub(local_reg_A, value, carry);
-        setOverflowFlagSub(local_reg_A, value, carry);
-        local_reg_A = local_reg_A - value - carry;
-        setS((local_reg_A & 0x0080) != 0);
-        setC((local_reg_A & 0xff00) != 0);
-        local_reg_A = local_reg_A & 0x00ff;
-        setZ(local_reg_A == 0);
-        setN();
-        reg_A = local_reg_A;
-        setUnusedFlags(reg_A);
+        int result = reg_A - value - (reg_F & flag_C);
+        int lookup = addSubLookupIndex(reg_A, value, result);
+        reg_A = result & 0x00ff;
+        reg_F = SZ53_TABLE[reg_A] | HALFCARRY_SUB_TABLE[lookup & 0x07] | OVERFLOW_SUB_TABLE[lookup >> 4] |
+                flag_N | ((result >> 8) & flag_C);
     }
 
     /* 8 bit AND (version II) */
     private void ALU8BitAnd(int value) {
-        reg_F = 0x10; // set the H flag
         reg_A = reg_A & value;
-        setS((reg_A & 0x0080) != 0);
-        setZ(reg_A == 0);
-        setPV(PARITY_TABLE[reg_A]);
-        setUnusedFlags(reg_A);
+        reg_F = SZ53P_TABLE[reg_A] | flag_H;
     }
 
     /* 8 bit OR (Version II) */
     private void ALU8BitOr(int value) {
-        reg_F = 0;
         reg_A = reg_A | value;
-        setS((reg_A & 0x0080) != 0);
-        setZ(reg_A == 0);
-        setPV(PARITY_TABLE[reg_A]);
-        setUnusedFlags(reg_A);
+        reg_F = SZ53P_TABLE[reg_A];
     }
 
     /* 8 bit XOR (Version II) */
     private void ALU8BitXor(int value) {
-        reg_F = 0;
         reg_A = reg_A ^ value;
-        setS((reg_A & 0x0080) != 0);
-        setZ(reg_A == 0);
-        setPV(PARITY_TABLE[reg_A]);
-        setUnusedFlags(reg_A);
+        reg_F = SZ53P_TABLE[reg_A];
     }
 
-    /* 8 bit CP */
+    /* 8 bit CP (flags 5 and 3 come from the operand, rather than from the result) */
     private void ALU8BitCp(int b) {
-        final int a = reg_A;
-        final int wans = a - b;
-        final int ans = wans & 0xff;
-        reg_F = 0x02;
-        setS((ans & flag_S) != 0);
-        set3((b & flag_3) != 0);
-        set5((b & flag_5) != 0);
-        setZ(ans == 0);
-        setC((wans & 0x100) != 0);
-        setH((((a & 0x0f) - (b & 0x0f)) & flag_H) != 0);
-        setPV(((a ^ b) & (a ^ ans) & 0x80) != 0);
+        int result = reg_A - b;
+        int lookup = addSubLookupIndex(reg_A, b, result);
+        reg_F = SZ_TABLE[result & 0xff] | (b & (flag_5 | flag_3)) |
+                HALFCARRY_SUB_TABLE[lookup & 0x07] | OVERFLOW_SUB_TABLE[lookup >> 4] |
+                flag_N | ((result >> 8) & flag_C);
     }
 
     /* 8 bit INC */
     private int ALU8BitInc(int value) {
-        if (getC())
-            reg_F = 0x01;
-        else
-            reg_F = 0x00;
-        setHalfCarryFlagAdd(value, 1);
-        // setOverflowFlagAdd(value, 1);
-        setPV(value == 0x7F);
-        value++;
-        setS((value & 0x0080) != 0);
-        value = value & 0x00ff;
-        setZ(value == 0);
-        resetN();
-        setUnusedFlags(value);
-        return (value);
+        reg_F = (reg_F & flag_C) | SZHV_INC_TABLE[value];
+        return (value + 1) & 0x00ff;
     }
 
     /* 8 bit DEC */
     private int ALU8BitDec(int value) {
-        if (getC())
-            reg_F = 0x01;
-        else
-            reg_F = 0x00;
-        setHalfCarryFlagSub(value, 1);
-        // setOverflowFlagSub(value, 1);
-        setPV(value == 0x80);
-        value--;
-        setS((value & 0x0080) != 0);
-        value = value & 0x00ff;
-        setZ(value == 0);
-        setN();
-        setUnusedFlags(value);
-        return (value);
+        reg_F = (reg_F & flag_C) | SZHVN_DEC_TABLE[value];
+        return (value - 1) & 0x00ff;
     }
     
     /* 16 bit INC */
@@ -5503,26 +5558,11 @@ public class Z80Core implements ICPUData, ICPU {
     }
 
     private void NEG() {
-        setHalfCarryFlagSub(0, reg_A, 0);
-        // if ((value & 0x0f) == 0x00) setH(); else resetH();
-        setOverflowFlagSub(0, reg_A, 0);
-        // if (value == 0x80) setPV(); else resetPV();
-        reg_A = -reg_A;
-        if ((reg_A & 0xFF00) != 0)
-            setC();
-        else
-            resetC();
-        setN();
-        reg_A = reg_A & 0x00FF;
-        if (reg_A == 0)
-            setZ();
-        else
-            resetZ();
-        if ((reg_A & 0x0080) != 0)
-            setS();
-        else
-            resetS();
-        setUnusedFlags(reg_A);
+        int result = -reg_A;
+        int lookup = addSubLookupIndex(0, reg_A, result);
+        reg_A = result & 0x00FF;
+        reg_F = SZ53_TABLE[reg_A] | HALFCARRY_SUB_TABLE[lookup & 0x07] | OVERFLOW_SUB_TABLE[lookup >> 4] |
+                flag_N | ((result >> 8) & flag_C);
     }
 
     private void SCF() {
@@ -5573,26 +5613,9 @@ public class Z80Core implements ICPUData, ICPU {
 
     private int shiftGenericRLC(int temp) {
         temp = temp << 1;
-        if ((temp & 0x0FF00) != 0) {
-            setC();
-            temp = temp | 0x01;
-        } else
-            resetC();
-        // standard flag updates
-        if ((temp & flag_S) == 0)
-            resetS();
-        else
-            setS();
-        if ((temp & 0x00FF) == 0)
-            setZ();
-        else
-            resetZ();
-        resetH();
-        resetN();
-        // put value back
-        temp = temp & 0x00FF;
-        setPV(PARITY_TABLE[temp]);
-        setUnusedFlags(temp);
+        int carry = temp >> 8;
+        temp = (temp | carry) & 0x00FF;
+        reg_F = SZ53P_TABLE[temp] | carry;
         return temp;
     }
 
@@ -5608,25 +5631,10 @@ public class Z80Core implements ICPUData, ICPU {
 
     private int shiftGenericRL(int temp) {
         // do shift operation
-        temp = temp << 1;
-        if (getC())
-            temp = temp | 0x01;
-        // standard flag updates
-        setS((temp & 0x0080) != 0);
-        if ((temp & 0x0FF00) == 0)
-            resetC();
-        else
-            setC();
+        temp = (temp << 1) | (reg_F & flag_C);
+        int carry = temp >> 8;
         temp = temp & lsb;
-        if ((temp & 0x00FF) == 0)
-            setZ();
-        else
-            resetZ();
-        setPV(PARITY_TABLE[temp]);
-        resetH();
-        resetN();
-        // put value back
-        setUnusedFlags(temp);
+        reg_F = SZ53P_TABLE[temp] | carry;
         return temp;
     }
 
@@ -5638,21 +5646,9 @@ public class Z80Core implements ICPUData, ICPU {
 
     private int shiftGenericRRC(int temp) {
         // do shift operation
-        setC((temp & 0x0001) != 0);
-        temp = temp >> 1;
-        if (getC())
-            temp = temp | 0x80;
-        // standard flag updates
-        setS((temp & 0x0080) != 0);
-        if (temp == 0)
-            setZ();
-        else
-            resetZ();
-        resetH();
-        setPV(PARITY_TABLE[temp]);
-        resetN();
-        // put value back
-        setUnusedFlags(temp);
+        int carry = temp & 0x0001;
+        temp = (temp >> 1) | (carry << 7);
+        reg_F = SZ53P_TABLE[temp] | carry;
         return temp;
     }
 
@@ -5663,24 +5659,10 @@ public class Z80Core implements ICPUData, ICPU {
     }
 
     private int shiftGenericRR(int temp) {
-        boolean tempC;
         // do shift operation
-        tempC = getC();
-        setC((temp & 0x0001) != 0);
-        temp = temp >> 1;
-        if (tempC)
-            temp = temp | 0x80;
-        // standard flag updates
-        setS((temp & 0x0080) != 0);
-        if (temp == 0)
-            setZ();
-        else
-            resetZ();
-        resetH();
-        setPV(PARITY_TABLE[temp]);
-        resetN();
-        // put value back
-        setUnusedFlags(temp);
+        int carry = temp & 0x0001;
+        temp = (temp >> 1) | ((reg_F & flag_C) << 7);
+        reg_F = SZ53P_TABLE[temp] | carry;
         return temp;
     }
 
@@ -5693,22 +5675,9 @@ public class Z80Core implements ICPUData, ICPU {
     private int shiftGenericSLA(int temp) {
         // do shift operation
         temp = temp << 1;
-        // standard flag updates
-        setS((temp & 0x0080) != 0);
-        if ((temp & 0x00FF) == 0)
-            setZ();
-        else
-            resetZ();
-        resetH();
-        if ((temp & 0x0FF00) != 0)
-            setC();
-        else
-            resetC();
+        int carry = temp >> 8;
         temp = temp & 0x00FF;
-        setPV(PARITY_TABLE[temp]);
-        resetN();
-        // put value back
-        setUnusedFlags(temp);
+        reg_F = SZ53P_TABLE[temp] | carry;
         return temp;
     }
 
@@ -5727,19 +5696,9 @@ public class Z80Core implements ICPUData, ICPU {
     private int shiftGenericSLL(int temp) {
         // do shift operation
         temp = (temp << 1) | 0x01; // the fault
-        // standard flag updates
-        setS((temp & 0x0080) != 0);
-        resetZ();
-        resetH();
-        if ((temp & 0x0FF00) != 0)
-            setC();
-        else
-            resetC();
+        int carry = temp >> 8;
         temp = temp & 0x00FF;
-        setPV(PARITY_TABLE[temp]);
-        resetN();
-        // put value back
-        setUnusedFlags(temp);
+        reg_F = SZ53P_TABLE[temp] | carry;
         return temp;
     }
 
@@ -5751,23 +5710,9 @@ public class Z80Core implements ICPUData, ICPU {
 
     private int shiftGenericSRA(int temp) {
         // do shift operation
-        setC((temp & 0x0001) != 0);
-        if ((temp & 0x0080) == 0) {
-            temp = temp >> 1;
-            resetS();
-        } else {
-            temp = (temp >> 1) | 0x0080;
-            setS();
-        }
-        // standard flag updates
-        if (temp == 0)
-            setZ();
-        else
-            resetZ();
-        resetH();
-        setPV(PARITY_TABLE[temp]);
-        resetN();
-        setUnusedFlags(temp);
+        int carry = temp & 0x0001;
+        temp = (temp >> 1) | (temp & 0x0080);
+        reg_F = SZ53P_TABLE[temp] | carry;
         return temp;
     }
 
@@ -5779,16 +5724,9 @@ public class Z80Core implements ICPUData, ICPU {
 
     private int shiftGenericSRL(int temp) {
         // do shift operation
-        setC((temp & 0x0001) != 0);
+        int carry = temp & 0x0001;
         temp = temp >> 1;
-        // standard flag updates
-        resetS();
-        setZ(temp == 0);
-        resetH();
-        setPV(PARITY_TABLE[temp]);
-        resetN();
-        // put value back
-        setUnusedFlags(temp);
+        reg_F = SZ53P_TABLE[temp] | carry;
         return temp;
     }
 
@@ -0,0 +1,291 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package workers;
+
+import cl.MDLConfig;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ *
+ * @author santi
+ *
+ * Call stack profiler for SourceCodeExecution ("-e:profile"). It keeps a
+ * shadow of the call stack (one frame per function entered, together with
+ * the value of SP at entry), and a frame is popped as soon as SP goes above
+ * the value it had when the function was entered.
+ *
+ * Each distinct call stack is a node in a tree (identified by an integer
+ * index), and the T-states are attributed to the node at the top of the
+ * stack only when the stack changes, so that the per-instruction cost is
+ * just an SP comparison and an array lookup. The result can be saved in the
+ * "collapsed stacks" format used by flame graph tools (one line per call
+ * stack, with the function names separated by ';', followed by the time
+ * spent in that stack exclusively).
+ */
+public class CallStackProfiler {
+    public static final int INITIAL_CAPACITY = 64;
+
+    MDLConfig config;
+
+    // Functions:
+    List<String> functionNames = new ArrayList<>();
+    int functionAtPhysical[];   // function index at each physical address (or -1)
+    int functionAtLogical[];    // function index at each logical address (or -1)
+    int functionCalls[] = new int[INITIAL_CAPACITY];
+    long functionInclusive[] = new long[INITIAL_CAPACITY];
+    long functionExclusive[] = new long[INITIAL_CAPACITY];
+    int functionActive[] = new int[INITIAL_CAPACITY]; // # frames of the function in the stack
+
+    // Call stack tree (node 0 is the root):
+    int nNodes = 0;
+    int nodeParent[] = new int[INITIAL_CAPACITY];
+    int nodeFunction[] = new int[INITIAL_CAPACITY];
+    int nodeFirstChild[] = new int[INITIAL_CAPACITY];
+    int nodeNextSibling[] = new int[INITIAL_CAPACITY];
+    long nodeTime[] = new long[INITIAL_CAPACITY];
+
+    // Shadow call stack (frame 0 is the root):
+    int depth = 0;
+    int frameNode[] = new int[INITIAL_CAPACITY];
+    int frameSP[] = new int[INITIAL_CAPACITY];
+    long frameStart[] = new long[INITIAL_CAPACITY];
+    long lastTime = 0;
+
+
+    public CallStackProfiler(String rootName, int physicalMemorySize, MDLConfig a_config)
+    {
+        config = a_config;
+        functionAtPhysical = new int[physicalMemorySize];
+        functionAtLogical = new int[0x10000];
+        Arrays.fill(functionAtPhysical, -1);
+        Arrays.fill(functionAtLogical, -1);
+        int root = addFunction(rootName);
+        newNode(-1, root);
+    }
+
+
+    int addFunction(String name)
+    {
+        int idx = functionNames.indexOf(name);
+        if (idx >= 0) return idx;
+        idx = functionNames.size();
+        functionNames.add(name);
+        if (idx >= functionCalls.length) {
+            int n = functionCalls.length * 2;
+            functionCalls = Arrays.copyOf(functionCalls, n);
+            functionInclusive = Arrays.copyOf(functionInclusive, n);
+            functionExclusive = Arrays.copyOf(functionExclusive, n);
+            functionActive = Arrays.copyOf(functionActive, n);
+        }
+        return idx;
+    }
+
+
+    /*
+    Registers a function. "physicalAddress" or "logicalAddress" can be -1 (see
+    SourceCodeExecution.ExecutionAddress).
+    */
+    public void addFunction(String name, int physicalAddress, int logicalAddress)
+    {
+        int idx = addFunction(name);
+        if (physicalAddress >= 0 && physicalAddress < functionAtPhysical.length) {
+            functionAtPhysical[physicalAddress] = idx;
+        }
+        if (logicalAddress >= 0 && logicalAddress < functionAtLogical.length) {
+            functionAtLogical[logicalAddress] = idx;
+        }
+    }
+
+
+    int newNode(int parent, int function)
+    {
+        if (nNodes >= nodeParent.length) {
+            int n = nodeParent.length * 2;
+            nodeParent = Arrays.copyOf(nodeParent, n);
+            nodeFunction = Arrays.copyOf(nodeFunction, n);
+            nodeFirstChild = Arrays.copyOf(nodeFirstChild, n);
+            nodeNextSibling = Arrays.copyOf(nodeNextSibling, n);
+            nodeTime = Arrays.copyOf(nodeTime, n);
+        }
+        int node = nNodes;
+        nNodes++;
+        nodeParent[node] = parent;
+        nodeFunction[node] = function;
+        nodeFirstChild[node] = -1;
+        nodeNextSibling[node] = -1;
+        nodeTime[node] = 0;
+        if (parent >= 0) {
+            nodeNextSibling[node] = nodeFirstChild[parent];
+            nodeFirstChild[parent] = node;
+        }
+        return node;
+    }
+
+
+    int childNode(int parent, int function)
+    {
+        for(int node = nodeFirstChild[parent];node >= 0;node = nodeNextSibling[node]) {
+            if (nodeFunction[node] == function) return node;
+        }
+        return newNode(parent, function);
+    }
+
+
+    /*
+    Starts profiling at time "time" (the root frame spans all the execution).
+    */
+    public void start(int sp, long time)
+    {
+        depth = 0;
+        frameNode[0] = 0;
+        frameSP[0] = sp;
+        frameStart[0] = time;
+        functionActive[0] = 1;
+        lastTime = time;
+    }
+
+
+    /*
+    Called right before executing the instruction at "pcAddress"/"pcPhysicalAddress".
+    */
+    public final void instructionExecuted(int pcAddress, int pcPhysicalAddress, int sp, long time)
+    {
+        // Check for returns:
+        while(depth > 0) {
+            int diff = frameSP[depth] - sp;
+            // We need to check >= 32768 in case the stack wraps around the address space.
+            if (diff >= 0 && diff < 32768) break;
+            pop(time);
+        }
+        int function = functionAtPhysical[pcPhysicalAddress];
+        if (function < 0) function = functionAtLogical[pcAddress];
+        if (function >= 0) {
+            // Loops that jump back to the start of the current function are not new calls:
+            if (nodeFunction[frameNode[depth]] != function || frameSP[depth] != sp) {
+                push(function, sp, time);
+            }
+        }
+    }
+
+
+    void push(int function, int sp, long time)
+    {
+        int node = childNode(frameNode[depth], function);
+        nodeTime[frameNode[depth]] += time - lastTime;
+        lastTime = time;
+        depth++;
+        if (depth >= frameNode.length) {
+            int n = frameNode.length * 2;
+            frameNode = Arrays.copyOf(frameNode, n);
+            frameSP = Arrays.copyOf(frameSP, n);
+            frameStart = Arrays.copyOf(frameStart, n);
+        }
+        frameNode[depth] = node;
+        frameSP[depth] = sp;
+        frameStart[depth] = time;
+        functionCalls[function]++;
+        functionActive[function]++;
+    }
+
+
+    void pop(long time)
+    {
+        int node = frameNode[depth];
+        int function = nodeFunction[node];
+        nodeTime[node] += time - lastTime;
+        lastTime = time;
+        functionActive[function]--;
+        // Recursive calls are only counted once in the inclusive time:
+        if (functionActive[function] == 0) {
+            functionInclusive[function] += time - frameStart[depth];
+        }
+        depth--;
+    }
+
+
+    /*
+    Discards all the time accumulated so far (e.g., when reaching the "-e:st"
+    address), but keeps the current call stack.
+    */
+    public void clear(long time)
+    {
+        Arrays.fill(nodeTime, 0);
+        Arrays.fill(functionCalls, 0);
+        Arrays.fill(functionInclusive, 0);
+        for(int i = 0;i<=depth;i++) {
+            frameStart[i] = time;
+        }
+        lastTime = time;
+    }
+
+
+    /*
+    Closes all the frames still open at the end of execution.
+    */
+    public void end(long time)
+    {
+        while(depth > 0) pop(time);
+        nodeTime[0] += time - lastTime;
+        lastTime = time;
+        functionInclusive[0] += time - frameStart[0];
+        functionActive[0] = 0;
+        Arrays.fill(functionExclusive, 0);
+        for(int node = 0;node<nNodes;node++) {
+            functionExclusive[nodeFunction[node]] += nodeTime[node];
+        }
+    }
+
+
+    String stackString(int node)
+    {
+        if (nodeParent[node] < 0) return functionNames.get(nodeFunction[node]);
+        return stackString(nodeParent[node]) + ";" + functionNames.get(nodeFunction[node]);
+    }
+
+
+    public boolean saveCollapsedStacks(String fileName)
+    {
+        try (FileWriter fw = new FileWriter(fileName)) {
+            for(int node = 0;node<nNodes;node++) {
+                if (nodeTime[node] > 0) {
+                    fw.write(stackString(node) + " " + nodeTime[node] + "\n");
+                }
+            }
+            fw.flush();
+        } catch (Exception e) {
+            config.error("Cannot write to file " + fileName + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+
+    public void report(int nToShow, long globalTotal)
+    {
+        List<Integer> functions = new ArrayList<>();
+        for(int i = 0;i<functionNames.size();i++) {
+            if (functionInclusive[i] > 0 || functionExclusive[i] > 0) functions.add(i);
+        }
+        Collections.sort(functions, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer f1, Integer f2) {
+                return -Long.compare(functionInclusive[f1], functionInclusive[f2]);
+            }
+        });
+        String profileString = "";
+        for(int i = 0;i<nToShow && i<functions.size();i++) {
+            int f = functions.get(i);
+            String percentageString = String.format("%.4f", 100.0 * functionInclusive[f] / globalTotal);
+            profileString += "- \"" + functionNames.get(f) + "\"\t" + functionCalls[f] + "\t" +
+                             functionInclusive[f] + " (" + percentageString + "%)\t" + functionExclusive[f] + "\n";
+        }
+        config.info("Profile: calls inclusive exclusive\n" + profileString);
+    }
+}
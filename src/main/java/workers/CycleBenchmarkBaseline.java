@@ -0,0 +1,137 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package workers;
+
+import cl.MDLConfig;
+import java.io.BufferedReader;
+import java.io.FileWriter;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import util.Resources;
+import workers.SourceCodeExecutionBatch.Scenario;
+
+/**
+ *
+ * @author santi
+ *
+ * Cycle-count benchmark baselines for "-e:batch" ("-e:bench-save" /
+ * "-e:bench-compare"). A baseline is a tab separated file with one line per
+ * scenario: name, bytes (-1 if unknown), runs, and average/min/max execution
+ * time and average number of instructions executed. The intended use is to
+ * save a baseline running the batch on the original code, and then compare
+ * against it running the same batch together with some optimizer flags (as
+ * optimizers are always executed before SourceCodeExecution), so that any
+ * routine that got slower or larger is reported as a regression.
+ */
+public class CycleBenchmarkBaseline {
+    public static final int BYTES = 0;
+    public static final int RUNS = 1;
+    public static final int AVERAGE_TIME = 2;
+    public static final int MIN_TIME = 3;
+    public static final int MAX_TIME = 4;
+    public static final int AVERAGE_INSTRUCTIONS = 5;
+    public static final int N_COLUMNS = 6;
+
+    MDLConfig config;
+
+
+    public CycleBenchmarkBaseline(MDLConfig a_config)
+    {
+        config = a_config;
+    }
+
+
+    public boolean save(List<Scenario> scenarios, String fileName)
+    {
+        try (FileWriter fw = new FileWriter(fileName)) {
+            fw.write("# scenario\tbytes\truns\tavg-time\tmin-time\tmax-time\tavg-instructions\n");
+            for(Scenario scenario:scenarios) {
+                fw.write(scenario.name + "\t" + scenario.bytes + "\t" + scenario.runs + "\t" +
+                         SourceCodeExecutionBatch.averageTStates(scenario) + "\t" +
+                         scenario.minTStates + "\t" + scenario.maxTStates + "\t" +
+                         SourceCodeExecutionBatch.averageInstructions(scenario) + "\n");
+            }
+            fw.flush();
+        } catch (Exception e) {
+            config.error("Cannot write to file " + fileName + ": " + e);
+            return false;
+        }
+        return true;
+    }
+
+
+    HashMap<String, double[]> load(String fileName)
+    {
+        HashMap<String, double[]> baseline = new LinkedHashMap<>();
+        try (BufferedReader br = Resources.asReader(fileName)) {
+            String line = br.readLine();
+            while(line != null) {
+                if (!line.strip().isEmpty() && !line.startsWith("#")) {
+                    String columns[] = line.split("\t");
+                    if (columns.length != N_COLUMNS + 1) {
+                        config.error("Cannot parse line in " + fileName + ": " + line);
+                        return null;
+                    }
+                    double values[] = new double[N_COLUMNS];
+                    for(int i = 0;i<N_COLUMNS;i++) {
+                        values[i] = Double.parseDouble(columns[i+1]);
+                    }
+                    baseline.put(columns[0], values);
+                }
+                line = br.readLine();
+            }
+        } catch (Exception e) {
+            config.error("Cannot read baseline file " + fileName + ": " + e);
+            return null;
+        }
+        return baseline;
+    }
+
+
+    static String changeString(double before, double after)
+    {
+        if (before == 0) return "";
+        return String.format(" (%+.2f%%)", 100.0 * (after - before) / before);
+    }
+
+
+    /*
+    Returns false if any scenario is slower or larger than in the baseline by
+    more than "tolerance" percent.
+    */
+    public boolean compare(List<Scenario> scenarios, String fileName, double tolerance)
+    {
+        HashMap<String, double[]> baseline = load(fileName);
+        if (baseline == null) return false;
+        int nRegressions = 0;
+        config.info("Benchmark comparison with " + fileName + ": scenario  " + config.timeUnit + "s  bytes");
+        for(Scenario scenario:scenarios) {
+            double values[] = baseline.remove(scenario.name);
+            if (values == null) {
+                config.warn("Scenario \"" + scenario.name + "\" is not in the baseline " + fileName);
+                continue;
+            }
+            double time = SourceCodeExecutionBatch.averageTStates(scenario);
+            String line = "- \"" + scenario.name + "\"\t" + values[AVERAGE_TIME] + " -> " + time +
+                          changeString(values[AVERAGE_TIME], time);
+            boolean regression = time > values[AVERAGE_TIME] * (1 + tolerance / 100);
+            if (scenario.bytes >= 0 && values[BYTES] >= 0) {
+                line += "\t" + (int)values[BYTES] + " -> " + scenario.bytes + changeString(values[BYTES], scenario.bytes);
+                regression |= scenario.bytes > values[BYTES] * (1 + tolerance / 100);
+            }
+            if (regression) {
+                config.error("Benchmark regression: " + line);
+                nRegressions++;
+            } else {
+                config.info(line);
+            }
+        }
+        for(String name:baseline.keySet()) {
+            config.warn("Scenario \"" + name + "\" from the baseline " + fileName + " was not executed");
+        }
+        return nRegressions == 0;
+    }
+}
@@ -17,6 +17,7 @@ import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -24,6 +25,7 @@ import java.util.HashSet;
 import java.util.List;
 import util.Pair;
 import util.microprocessor.MappedTrackingZ80Memory;
+import util.microprocessor.MemoryAccessTrace;
 import util.microprocessor.PlainZ80IO;
 import util.microprocessor.Z80.CPUConfig;
 import util.microprocessor.Z80.CPUConstants;
@@ -47,6 +49,36 @@ public class SourceCodeExecution implements MDLWorker {
     }
 
 
+    /*
+    Integer version of the "source:address" strings (see "functionAddressInBinary"),
+    to check if the program counter reached a given address without having to
+    generate strings during execution.
+    */
+    public static class ExecutionAddress {
+        public int physicalAddress = -1;  // if "source" is specified
+        public int logicalAddress = -1;   // if "source" is not specified
+        
+        public ExecutionAddress(String addressString, MappedTrackingZ80Memory z80Memory)
+        {
+            String tokens[] = addressString.split(":");
+            try {
+                if (tokens[0].isEmpty()) {
+                    logicalAddress = Integer.parseInt(tokens[1]);
+                } else {
+                    physicalAddress = z80Memory.physicalAddress(Integer.parseInt(tokens[0]), Integer.parseInt(tokens[1]));
+                }
+            } catch (NumberFormatException e) {
+                // The address could not be evaluated, so it will never match.
+            }
+        }
+        
+        public boolean matches(int pcAddress, int pcPhysicalAddress)
+        {
+            return pcPhysicalAddress == physicalAddress || pcAddress == logicalAddress;
+        }
+    }
+    
+    
     public static class FunctionTrackRecord {
         public FunctionTrackRecord(String a_userString, String a_address) {
             userString = a_userString;
@@ -61,6 +93,7 @@ public class SourceCodeExecution implements MDLWorker {
         
         public String userString;
         public String address;  // source:address (where "source" is RAM/ROM/etc.)
+        ExecutionAddress executionAddress = null;
         List<FunctionCallRecord> closed = new ArrayList<>();
         List<FunctionCallRecord> open = new ArrayList<>();
     }
@@ -81,10 +114,20 @@ public class SourceCodeExecution implements MDLWorker {
     public boolean reportSometimesUselessInstructions = false;
     int reportAsExecutionTreeMaxDepth = 0;
     int nHotSpotsToShow = 20;
+    String memoryTraceFileName = null;
+    boolean reportMemoryHeatmap = false;
+    int nMemoryHotSpotsToShow = 20;
+    public String profileFileName = null;
+    int nProfileFunctionsToShow = 20;
     List<String> trackFunctionStrings = new ArrayList<>();
     List<String> ignoreFunctionStrings = new ArrayList<>();
     Disassembler disassembler;
     String mapperConfigFileName = null;
+    public String batchFileName = null;
+    public int batchThreads = -1;
+    public String benchmarkSaveFileName = null;
+    public String benchmarkCompareFileName = null;
+    public double benchmarkTolerance = 0;
     
     List<String> watchKeys = new ArrayList<>();
 
@@ -118,8 +161,16 @@ public class SourceCodeExecution implements MDLWorker {
                "- ```-e:tree```: reports the result as an execution tree.\n" +
                "- ```-e:tree:n```: reports the result as an execution tree, but only showing ```n``` levels, e.g. ```-e:tree:1```.\n" +
                "- ```-e:hs```: reports execution hotspots (lines of code that take the most execution time overall). By default, it shows the top 20, use ```-e:hs:n``` to show the top n instead.\n" +
+               "- ```-e:profile <filename>```: profiles execution time per function (auto detected by looking at all `call` instructions, plus those specified with ```-e:track-function```), and saves the time spent in each call stack to a file in the \"collapsed stacks\" format used by flame graph tools. The top 20 functions by inclusive time are also reported, use ```-e:profile:n <filename>``` to show the top n instead. This is much faster than ```-e:track-all-functions``` for long executions.\n" +
+               "- ```-e:batch <filename>```: executes all the scenarios specified in a file (assembling the code only once), in parallel, and reports the execution time, final register values and watch statements of each of them. Each scenario starts with a ```scenario: <name>``` line, followed by lines with the following options: ```start: <address>```, ```end: <address>```, ```steps: <steps>``` (at least one of ```end``` or ```steps``` must be specified, if both are, ```steps``` is used as a time limit), ```reg: <register> = <value>``` and ```mem: <address> = <value>``` (to set the initial value of registers/memory positions), ```random-reg: <register>``` and ```random-mem: <address>``` (to set them to random values), ```runs: <n>``` (number of times to execute the scenario, with different random values, default 1), ```seed: <n>``` (random seed, default 0), and ```watch: <watch-key>``` (same as ```-e:watch```). If only ```end``` is specified, a scenario that does not reach it within 100000000 time units fails. The flags that report on a single execution (e.g., ```-e:hs```, ```-e:profile``` or ```-e:mem-trace```) cannot be used together with ```-e:batch```.\n" +
+               "- ```-e:batch-threads <n>```: the number of threads to use with ```-e:batch``` (default is the number of available processors).\n" +
+               "- ```-e:bench-save <filename>```: saves the execution time (average/min/max over all runs), size in bytes (from the start to the end address) and number of instructions executed of each of the ```-e:batch``` scenarios as a benchmark baseline (a tab separated file).\n" +
+               "- ```-e:bench-compare <filename>```: compares the execution time and size of each of the ```-e:batch``` scenarios with a benchmark baseline, and fails if any of them is slower or larger. Since optimizers are executed before code execution, this can be used to check that an optimizer (e.g. ```-po```) does not make any routine slower than in a baseline saved with the unoptimized code.\n" +
+               "- ```-e:bench-tolerance <percent>```: how much slower/larger than the baseline a scenario can be before ```-e:bench-compare``` reports it as a regression (default 0).\n" +
                "- ```-e:watch <watch-key>```: every time an instruction that has a comment annotated with the tag ```<watch-key>```, the tollowing comma separated expressions will be evaluated and printed (after instruction execution). For example, if you have an instruction like ```ld a, 1  ; mdl-watch: \"hello\", a```, you can pass ```-e:watch mdl-watch:``` and after that instruction is executed, ```hello, 1``` will be printed. Think of this as having the chance of adding print statements throughout the code. You can specify this argument several times, to print watch statements with different keys.\n" +
                "- ```-e:stop-on-protected-write```: stop as soon as an instruction tries to write into a memory protected address (i.e., the pages of memory that are not RAM, but part of the binary we are executing). By default, only warnings are issued, as this might be ok, if we have self-modifying code.\n" +
+               "- ```-e:mem-trace <filename>```: records all the memory reads/writes (and mapper page switches) during execution in a binary file (each record has the time, address of the instruction doing the access, address and physical address accessed, value and type of access). The file is written as execution progresses, so it can be used for long executions.\n" +
+               "- ```-e:mem-heatmap```: reports the memory addresses that are read/written the most, and how many times each memory page was switched by the mapper. By default, it shows the top 20 addresses, use ```-e:mem-heatmap:n``` to show the top n instead.\n" +
                "- ```-e:report-useless```: tracks and reports instructions that had no visible effect in the execution (```nop```s are ignored).\n" +
                "- ```-e:track-conditionals```: tracks which branch of each conditional statement (jr/jp/call/ret) is taken and reports if there is any for which one of the conditional paths is never taken.\n" +
                "- ```-e:mapper-config <filename>```: if the binary to be executed requires some sort of memory mapper, it can be specified in a configuration text file. The file contains on config option per line, and should include the following options: " +
@@ -184,6 +235,39 @@ public class SourceCodeExecution implements MDLWorker {
             reportHotSpots = true;
             nHotSpotsToShow = n;
             return true;
+        } else if (flags.get(0).equals("-e:profile") && flags.size()>=2) {
+            flags.remove(0);
+            profileFileName = flags.remove(0);
+            return true;
+        } else if (flags.get(0).startsWith("-e:profile:") && flags.size()>=2) {
+            String levelString = flags.remove(0).substring(11);
+            nProfileFunctionsToShow = Integer.parseInt(levelString);
+            profileFileName = flags.remove(0);
+            return true;
+        } else if (flags.get(0).equals("-e:batch") && flags.size()>=2) {
+            flags.remove(0);
+            batchFileName = flags.remove(0);
+            return true;
+        } else if (flags.get(0).equals("-e:batch-threads") && flags.size()>=2) {
+            flags.remove(0);
+            batchThreads = Integer.parseInt(flags.remove(0));
+            if (batchThreads <= 0) {
+                config.error("Invalid number of threads for -e:batch-threads: " + batchThreads);
+                return false;
+            }
+            return true;
+        } else if (flags.get(0).equals("-e:bench-save") && flags.size()>=2) {
+            flags.remove(0);
+            benchmarkSaveFileName = flags.remove(0);
+            return true;
+        } else if (flags.get(0).equals("-e:bench-compare") && flags.size()>=2) {
+            flags.remove(0);
+            benchmarkCompareFileName = flags.remove(0);
+            return true;
+        } else if (flags.get(0).equals("-e:bench-tolerance") && flags.size()>=2) {
+            flags.remove(0);
+            benchmarkTolerance = Double.parseDouble(flags.remove(0));
+            return true;
         } else if (flags.get(0).equals("-e:watch") && flags.size()>=2) {
             flags.remove(0);
             watchKeys.add(flags.remove(0));
@@ -192,6 +276,20 @@ public class SourceCodeExecution implements MDLWorker {
             flags.remove(0);
             stopOnProtectedWrite = true;
             return true;
+        } else if (flags.get(0).equals("-e:mem-trace") && flags.size()>=2) {
+            flags.remove(0);
+            memoryTraceFileName = flags.remove(0);
+            return true;
+        } else if (flags.get(0).equals("-e:mem-heatmap")) {
+            flags.remove(0);
+            reportMemoryHeatmap = true;
+            return true;
+        } else if (flags.get(0).startsWith("-e:mem-heatmap:")) {
+            String levelString = flags.remove(0).substring(15);
+            int n = Integer.parseInt(levelString);
+            reportMemoryHeatmap = true;
+            nMemoryHotSpotsToShow = n;
+            return true;
         } else if (flags.get(0).equals("-e:report-useless")) {
             flags.remove(0);
             trackUselessInstructions = true;
@@ -208,71 +306,77 @@ public class SourceCodeExecution implements MDLWorker {
 
         return false;
     }
-
+    
+    
+    /*
+    Returns the first flag that only applies to a single execution (and that
+    "-e:batch" would ignore), or null if none was specified.
+    */
+    String flagNotSupportedInBatchMode()
+    {
+        if (startAddressUser != null) return (endAddressUser != null ? "-e:u":"-e:s");
+        if (startTrackingAddressUser != null) return "-e:st";
+        if (trace) return "-e:trace";
+        if (!trackFunctionStrings.isEmpty()) return "-e:track-function";
+        if (trackAllFunctions) return "-e:track-all-functions";
+        if (reportAsExecutionTree) return "-e:tree";
+        if (reportHotSpots) return "-e:hs";
+        if (profileFileName != null) return "-e:profile";
+        if (!watchKeys.isEmpty()) return "-e:watch";
+        if (stopOnProtectedWrite) return "-e:stop-on-protected-write";
+        if (memoryTraceFileName != null) return "-e:mem-trace";
+        if (reportMemoryHeatmap) return "-e:mem-heatmap";
+        if (trackUselessInstructions) return "-e:report-useless";
+        if (trackConditionals) return "-e:track-conditionals";
+        return null;
+    }
+    
+    
     @Override
     public boolean triggered() {
-        return startAddressUser != null;
+        return startAddressUser != null || batchFileName != null;
     }
 
     @Override
     @SuppressWarnings({"Convert2Lambda", "CallToPrintStackTrace", "UseSpecificCatch"})
     public boolean work(CodeBase code) 
     {
-        HashMap<String, List<CodeStatement>> uselessInstructionTracking_currentSetters = new HashMap<>();
-        HashMap<CodeStatement, Integer> uselessInstructionTracking_potentialUseless = new HashMap<>();  // the integer contains how many regs/flags were set that have not yet been overwritten or used (when it reaches 0, instruction is useless)
-        HashMap<CodeStatement, Pair<Integer, Integer>> uselessInstructionTracking_useful_total = new HashMap<>();  // # times useful, # times total
-                
         if (mapperConfigFileName != null) {
             if (!loadMapperConfig(mapperConfigFileName)) {
                 return false;
             }
         } 
         
-        MappedTrackingZ80Memory z80Memory = new MappedTrackingZ80Memory(null, segment_size, RAM_mapper_type, config, trace);
-        try {
-            z80Memory.addMemorySource(ROM_size, ROM_mapper_type, true);
-        } catch(Exception e) {
-            config.error(e.getMessage());
-            return false;
+        if (batchFileName != null) {
+            String flag = flagNotSupportedInBatchMode();
+            if (flag != null) {
+                config.error(flag + " cannot be used together with -e:batch (scenarios only report their execution time, registers and watch statements).");
+                return false;
+            }
+            SourceCodeExecutionBatch batch = new SourceCodeExecutionBatch(this, config);
+            if (!batch.loadScenarios(batchFileName, code)) return false;
+            if (!batch.execute(code, batchThreads)) return false;
+            CycleBenchmarkBaseline baseline = new CycleBenchmarkBaseline(config);
+            if (benchmarkSaveFileName != null && !baseline.save(batch.scenarios, benchmarkSaveFileName)) return false;
+            if (benchmarkCompareFileName != null) {
+                return baseline.compare(batch.scenarios, benchmarkCompareFileName, benchmarkTolerance);
+            }
+            return true;
         }
+        
+        MappedTrackingZ80Memory z80Memory = createMemory();
+        if (z80Memory == null) return false;
         Z80Core z80 = new Z80Core(z80Memory, new PlainZ80IO(), new CPUConfig(config));
         z80Memory.setCPU(z80);
         z80.reset();
         
         // assemble and copy program to z80 memory:
-        HashMap<String, CodeStatement> instructions = new HashMap<>();
+        List<CodeStatement> statements = new ArrayList<>();
+        int statementAt[] = new int[z80Memory.getPhysicalMemorySize()];
         HashMap<CodeStatement, String> reverseInstructions = new HashMap<>();
-        SourceFile main = code.outputs.get(0).main;
-        BinaryGenerator generator = new BinaryGenerator(config);
-        List<BinaryGenerator.StatementBinaryEffect> statementBytes = new ArrayList<>();
-        if (!generator.generateStatementBytes(main, code, statementBytes)) {
+        if (!loadProgram(code, z80Memory, statements, statementAt, reverseInstructions)) {
             return false;
         }
-        {
-            int romAddress = 0;
-            for(BinaryGenerator.StatementBinaryEffect effect:statementBytes) {
-                Integer address = effect.s.getAddress(code);
-                if (binary_source == SOURCE_ROM) {
-                    address = romAddress;
-                }
-                instructions.put(binary_source + ":" + address, effect.s);
-                reverseInstructions.put(effect.s, binary_source + ":" + address);
-                for(int i = 0;i<effect.bytes.length;i++) {
-                    int b = effect.bytes[i];
-                    if (b < 0) b += 256;
-                    z80Memory.writeByteToSource(binary_source, address + i, b);
-                }
-//                if (effect.bytes.length > 0) {
-//                    System.out.println(config.tokenizer.toHex(address, 4) + ": " + Arrays.toString(effect.bytes) + "  ->  " + effect.s + "  ->  " + effect.s.fileNameLineString());
-//                }
-                romAddress += effect.bytes.length;
-            }
-        }
-        z80Memory.clearMemoryAccesses();
-        
-        for(int i = 0;i<initial_mapping.length;i++) {
-            z80Memory.mapPage(i, initial_mapping[i][0], initial_mapping[i][1]);
-        }
                 
         List<String> modifiedFlags = new ArrayList<>();
         List<String> modifiedRegisters = new ArrayList<>();
@@ -324,11 +428,12 @@ public class SourceCodeExecution implements MDLWorker {
                     addressString = functionAddressInBinary(exp, code, reverseInstructions);
                 }
                 if (addressString != null) {
-                    addFunctionToTrack(trackFunctions, new FunctionTrackRecord(functionString, addressString));
+                    addFunctionToTrack(trackFunctions, new FunctionTrackRecord(functionString, addressString), z80Memory);
                 }
             }
         }
-        if (trackAllFunctions) {
+        List<FunctionTrackRecord> callTargets = new ArrayList<>();
+        if (trackAllFunctions || profileFileName != null) {
             // Find all the functions:
             for(SourceFile sf:code.getSourceFiles()) {
                 for(CodeStatement s:sf.getStatements()) {
@@ -342,7 +447,7 @@ public class SourceCodeExecution implements MDLWorker {
                                     addressString = functionAddressInBinary(exp2, code, reverseInstructions);
                                 }
                                 if (addressString != null) {
-                                    addFunctionToTrack(trackFunctions, new FunctionTrackRecord(exp2.symbolName, addressString));
+                                    addFunctionToTrack(callTargets, new FunctionTrackRecord(exp2.symbolName, addressString), z80Memory);
                                 }
                             }
                         }
@@ -351,21 +456,41 @@ public class SourceCodeExecution implements MDLWorker {
             }
         }
         
-        // Write a "ret" to the address of all the functions to ignore, so we return immediately:
-        for(String functionString:ignoreFunctionStrings) {
-            tokens = config.tokenizer.tokenize(functionString);
-            exp = config.expressionParser.parse(tokens, null, null, code);
-            Integer functionAddress = exp.evaluateToInteger(null, code, true);
-            if (functionAddress != null) {
-                z80Memory.writeByteToSource(0, functionAddress, CPUConstants.ret_opcode);
+        CallStackProfiler profiler = null;
+        if (profileFileName != null) {
+            profiler = new CallStackProfiler(startAddressUser, z80Memory.getPhysicalMemorySize(), config);
+            // Functions specified with "-e:track-function" are added last, so their names take precedence:
+            for(FunctionTrackRecord function:callTargets) {
+                profiler.addFunction(function.userString, function.executionAddress.physicalAddress, function.executionAddress.logicalAddress);
+            }
+            for(FunctionTrackRecord function:trackFunctions) {
+                profiler.addFunction(function.userString, function.executionAddress.physicalAddress, function.executionAddress.logicalAddress);
+            }
+        }
+        if (trackAllFunctions) {
+            for(FunctionTrackRecord function:callTargets) {
+                addFunctionToTrack(trackFunctions, function, z80Memory);
             }
         }
         
-        // Hotspot tracking:
-        HashMap<String, Pair<Integer, Integer>> hotspots = new HashMap<>();
+        writeIgnoredFunctions(code, z80Memory);
         
-        // Conditional tracking:
-        HashMap<CodeStatement, Pair<Integer, Integer>> conditionalInstructionStats = new HashMap<>();
+        // Hotspot tracking (count and time per physical address):
+        int hotspotCount[] = null;
+        long hotspotTime[] = null;
+        if (reportHotSpots) {
+            hotspotCount = new int[z80Memory.getPhysicalMemorySize()];
+            hotspotTime = new long[z80Memory.getPhysicalMemorySize()];
+        }
+        
+        // Conditional tracking (# times executed, # times jump taken per statement):
+        int conditionalTotal[] = new int[statements.size()];
+        int conditionalTaken[] = new int[statements.size()];
+        
+        UselessInstructionTracker uselessTracker = null;
+        if (trackUselessInstructions) {
+            uselessTracker = new UselessInstructionTracker(statements, this, config);
+        }
         
         // Set program counter:
         Integer startAddress = z80Memory.integerAddressOf(startAddressString);
@@ -375,22 +500,51 @@ public class SourceCodeExecution implements MDLWorker {
         }
         z80.setProgramCounter(startAddress);
         
+        // Memory access trace/heatmaps:
+        MemoryAccessTrace accessTrace = null;
+        if (memoryTraceFileName != null || reportMemoryHeatmap) {
+            accessTrace = new MemoryAccessTrace(z80);
+            if (memoryTraceFileName != null) {
+                try {
+                    accessTrace.startTrace(memoryTraceFileName, MemoryAccessTrace.DEFAULT_BUFFER_RECORDS);
+                } catch (IOException e) {
+                    config.error("Cannot create memory trace file '" + memoryTraceFileName + "': " + e.getMessage());
+                    return false;
+                }
+            }
+            if (reportMemoryHeatmap) {
+                accessTrace.startHeatmaps(z80Memory.getPhysicalMemorySize(), z80Memory.nPages);
+            }
+            z80Memory.setAccessTrace(accessTrace);
+        }
+        
+        // Whether the registers/flags modified by each statement have already been recorded:
+        boolean modificationsRecorded[] = new boolean[statements.size()];
+        
+        ExecutionAddress endAddress = null;
+        ExecutionAddress startTrackingAddress = null;
+        if (endAddressString != null) endAddress = new ExecutionAddress(endAddressString, z80Memory);
+        if (startTrackingAddressString != null) startTrackingAddress = new ExecutionAddress(startTrackingAddressString, z80Memory);
+        
         config.debug("SourceCodeExecution: start address: " + startAddressString);
         config.debug("SourceCodeExecution: end address: " + endAddressString);
         config.debug("SourceCodeExecution: max steps: " + steps);
         
         // Execute!
         int nInstructionsExecuted = 0;
-        CodeStatement previous_s = null;
+        int previous_s = -1;
         int previous_pc = z80.getProgramCounter();
         ArrayList<FunctionCallRecord> trackedCallStack = new ArrayList<>();
+        boolean executionError = false;
+        if (profiler != null) profiler.start(z80.getSP(), z80.getTStates());
         try {
             while(true) {
                 int pcAddress = z80.getProgramCounter();
+                int pcPhysicalAddress = z80Memory.physicalAddress(pcAddress);
                 int sp = z80.getSP();
-                String addressString = z80Memory.addressString(pcAddress);
                 
-                for(FunctionTrackRecord function:trackFunctions) {
+                for(int i = 0;i<trackFunctions.size();i++) {
+                    FunctionTrackRecord function = trackFunctions.get(i);
                     // Check for returns:
                     if (!function.open.isEmpty()) {
                         FunctionCallRecord lastCall = function.open.get(function.open.size() - 1);
@@ -405,7 +559,7 @@ public class SourceCodeExecution implements MDLWorker {
                             }
                         }
                     }
-                    if (addressMatch(pcAddress, addressString, function.address)) {
+                    if (function.executionAddress.matches(pcAddress, pcPhysicalAddress)) {
                         // We just entered in one of the functions to track!
                         FunctionCallRecord r = new FunctionCallRecord();
                         r.trackRecord = function;
@@ -424,27 +578,42 @@ public class SourceCodeExecution implements MDLWorker {
                         }
                     }
                 }
+                if (profiler != null) {
+                    profiler.instructionExecuted(pcAddress, pcPhysicalAddress, sp, z80.getTStates());
+                }
                 
                 if (steps >= 0 && z80.getTStates() > steps) {
                     config.debug("Maximum number of execution steps reached.");
                     break;
                 }
-                if (endAddressString != null && addressMatch(pcAddress, addressString, endAddressString)) {
-                    config.debug("Execution termination address reached, pcAddress: " + pcAddress + ", addressString: " + addressString + ", endAddressString: " + endAddressString);
+                if (endAddress != null && endAddress.matches(pcAddress, pcPhysicalAddress)) {
+                    config.debug("Execution termination address reached, pcAddress: " + pcAddress + ", addressString: " + z80Memory.addressString(pcAddress) + ", endAddressString: " + endAddressString);
                     break;
                 }
-                if (startTrackingAddressString != null && addressMatch(pcAddress, addressString, startTrackingAddressString)) {
+                if (startTrackingAddress != null && startTrackingAddress.matches(pcAddress, pcPhysicalAddress)) {
                     topLevelCalls.clear();
                     for(FunctionTrackRecord tr:trackFunctions) {
                         tr.clear();
                     }
-                    conditionalInstructionStats.clear();
-                    hotspots.clear();
+                    Arrays.fill(conditionalTotal, 0);
+                    Arrays.fill(conditionalTaken, 0);
+                    if (reportHotSpots) {
+                        Arrays.fill(hotspotCount, 0);
+                        Arrays.fill(hotspotTime, 0);
+                    }
+                    if (reportMemoryHeatmap) {
+                        Arrays.fill(accessTrace.readCounts, 0);
+                        Arrays.fill(accessTrace.writeCounts, 0);
+                        Arrays.fill(accessTrace.pageSwitchCounts, 0);
+                    }
+                    if (profiler != null) profiler.clear(z80.getTStates());
                     startTrackingTime = z80.getTStates();
                 }
                                 
-                CodeStatement s = instructions.get(addressString);
+                int s_idx = statementAt[pcPhysicalAddress];
+                CodeStatement s = (s_idx >= 0 ? statements.get(s_idx) : null);
                 if (trace) {
+                    String addressString = z80Memory.addressString(pcAddress);
                     if (s == null) {
                         CPUOp op = attemptToDisassemble(z80Memory, pcAddress, code);
                         if (op != null) {
@@ -457,190 +626,37 @@ public class SourceCodeExecution implements MDLWorker {
                     }
                 }
                 if (s != null && s.op != null) {
-                    for(String flag:s.op.spec.outputFlags) {
-                        if (!modifiedFlags.contains(flag)) {
-                            modifiedFlags.add(flag);
-                        }
-                    }
-                    for(String reg:s.op.spec.outputRegs) {
-                        if (reg.equalsIgnoreCase("IYq")) reg = "IY";
-                        if (reg.equalsIgnoreCase("IXp")) reg = "IX";
-                        if (!modifiedRegisters.contains(reg)) {
-                            modifiedRegisters.add(reg);
-                        }
-                    }
-                    if (trackUselessInstructions) {
-                        // Mark instructions as useful:
-                        // config.info(s.op + ": " + standardizeRegFlags(s.op.spec.getInputPrimitiveRegs(), s.op.spec.inputFlags, s.op) + " -> " + standardizeRegFlags(s.op.spec.getOutputPrimitiveRegs(), s.op.spec.outputFlags, s.op));
-                        boolean specialCaseEx = false;
-                        if (s.op.spec.isExOrExx) {
-                            HashMap<String, String> regFlagsExchanged = null;
-                            // handle 'exx', 'ex' separately:
-                            // Get the register/flag pairs that are exchanged:
-                            if (s.op.spec.getName().equalsIgnoreCase("exx")) {
-                                // exx
-                                regFlagsExchanged = new HashMap<>();
-                                regFlagsExchanged.put("B", "B'");
-                                regFlagsExchanged.put("C", "C'");
-                                regFlagsExchanged.put("D", "D'");
-                                regFlagsExchanged.put("E", "E'");
-                                regFlagsExchanged.put("H", "H'");
-                                regFlagsExchanged.put("L", "L'");
-                            } else if (s.op.spec.getName().equalsIgnoreCase("ex")) {
-                                if (s.op.spec.args.get(0).reg.equals("AF")) {
-                                    // ex af, af'
-                                    regFlagsExchanged = new HashMap<>();
-                                    regFlagsExchanged.put("A", "A'");
-                                    regFlagsExchanged.put("flag_C", "flag_C'");
-                                    regFlagsExchanged.put("flag_N", "flag_N'");
-                                    regFlagsExchanged.put("flag_P/V", "flag_P/V'");
-                                    regFlagsExchanged.put("flag_N", "flag_N'");
-                                    regFlagsExchanged.put("flag_Z", "flag_Z'");
-                                    regFlagsExchanged.put("flag_S", "flag_S'");
-                                } else if (s.op.spec.args.get(0).reg.equals("DE")) {
-                                    // ex de, hl
-                                    regFlagsExchanged = new HashMap<>();
-                                    regFlagsExchanged.put("E", "L");
-                                    regFlagsExchanged.put("D", "H");
-                                }
-                            }
-                            if (regFlagsExchanged != null) {
-                                specialCaseEx = true;
-                                // Go through the 'uselessInstructionTracking_currentSetters' exchanging the setters,
-                                // and adding this instruction as an additional setter:
-                                for(String regflag:regFlagsExchanged.keySet()) {
-                                    String regflag2 = regFlagsExchanged.get(regflag);
-                                    if (uselessInstructionTracking_currentSetters.containsKey(regflag)) {
-                                        if (uselessInstructionTracking_currentSetters.containsKey(regflag2)) {
-                                            // Both are present:
-                                            List<CodeStatement> tmp = uselessInstructionTracking_currentSetters.get(regflag);
-                                            uselessInstructionTracking_currentSetters.put(regflag, uselessInstructionTracking_currentSetters.get(regflag2));
-                                            uselessInstructionTracking_currentSetters.put(regflag2, tmp);
-                                            if (!uselessInstructionTracking_currentSetters.get(regflag).contains(s)) {
-                                                uselessInstructionTracking_currentSetters.get(regflag).add(s);
-                                            }
-                                            if (!uselessInstructionTracking_currentSetters.get(regflag2).contains(s)) {
-                                                uselessInstructionTracking_currentSetters.get(regflag2).add(s);
-                                            }
-                                        } else {
-                                            // Only regflag is present:
-                                            uselessInstructionTracking_currentSetters.put(regflag2, uselessInstructionTracking_currentSetters.get(regflag));
-                                            if (!uselessInstructionTracking_currentSetters.get(regflag2).contains(s)) {
-                                                uselessInstructionTracking_currentSetters.get(regflag2).add(s);
-                                            }
-                                            List<CodeStatement> l = new ArrayList<>();
-                                            l.add(s);
-                                            uselessInstructionTracking_currentSetters.put(regflag, l);
-                                        }
-                                    } else if (uselessInstructionTracking_currentSetters.containsKey(regflag2)) {
-                                        // Only regflag2 is present:
-                                        uselessInstructionTracking_currentSetters.put(regflag, uselessInstructionTracking_currentSetters.get(regflag2));
-                                        if (!uselessInstructionTracking_currentSetters.get(regflag).contains(s)) {
-                                            uselessInstructionTracking_currentSetters.get(regflag).add(s);
-                                        }
-                                        List<CodeStatement> l = new ArrayList<>();
-                                        l.add(s);
-                                        uselessInstructionTracking_currentSetters.put(regflag2, l);
-                                    } else {
-                                        // None are present:
-                                        List<CodeStatement> l = new ArrayList<>();
-                                        l.add(s);
-                                        uselessInstructionTracking_currentSetters.put(regflag, l);
-                                        l = new ArrayList<>();
-                                        l.add(s);
-                                        uselessInstructionTracking_currentSetters.put(regflag2, l);
-                                    }
-                                }
-                                uselessInstructionTracking_potentialUseless.put(s, regFlagsExchanged.size() * 2);
+                    if (!modificationsRecorded[s_idx]) {
+                        for(String flag:s.op.spec.outputFlags) {
+                            if (!modifiedFlags.contains(flag)) {
+                                modifiedFlags.add(flag);
                             }
                         }
-                        if (!specialCaseEx) {
-                            // Not a "exx", or "ex"
-                            for(String regflag:standardizeRegFlags(s.op.spec.getInputPrimitiveRegs(), s.op.spec.inputFlags, s.op)) {
-                                if (uselessInstructionTracking_currentSetters.containsKey(regflag)) {
-                                    List<CodeStatement> setters = uselessInstructionTracking_currentSetters.get(regflag);
-                                    // instruction was useful:
-                                    for(CodeStatement setter:setters) {
-                                        if (uselessInstructionTracking_potentialUseless.containsKey(setter)) {
-                                            uselessInstructionTracking_potentialUseless.remove(setter);
-                                        }
-                                        if (!uselessInstructionTracking_useful_total.containsKey(setter)) {
-                                            uselessInstructionTracking_useful_total.put(setter, Pair.of(1, 1));
-                                        } else {
-                                            Pair<Integer, Integer> pair = uselessInstructionTracking_useful_total.get(setter);
-                                            pair.left++;
-                                            pair.right++;
-                                        }
-                                    }
-                                }
-                            }
-                            int nEffects = 0;
-                            for(String regflag:standardizeRegFlags(s.op.spec.getOutputPrimitiveRegs(), s.op.spec.outputFlags, s.op)) {
-                                if (uselessInstructionTracking_currentSetters.containsKey(regflag)) {
-                                    List<CodeStatement> setters = uselessInstructionTracking_currentSetters.get(regflag);
-                                    for(CodeStatement setter:setters) {
-                                        if (uselessInstructionTracking_potentialUseless.containsKey(setter)) {
-                                            int n_set = uselessInstructionTracking_potentialUseless.get(setter);
-                                            n_set--;
-                                            if (n_set <= 0) {
-                                                // instruction was useless:
-                                                if (uselessInstructionTracking_potentialUseless.containsKey(setter)) {
-                                                    uselessInstructionTracking_potentialUseless.remove(setter);
-                                                }
-                                                if (!uselessInstructionTracking_useful_total.containsKey(setter)) {
-                                                    uselessInstructionTracking_useful_total.put(setter, Pair.of(0, 1));
-                                                } else {
-                                                    Pair<Integer, Integer> pair = uselessInstructionTracking_useful_total.get(setter);
-                                                    pair.right++;
-                                                }
-                                            } else {
-                                                uselessInstructionTracking_potentialUseless.put(setter, n_set);
-                                            }
-                                        }
-                                    }
-                                    setters.clear();
-                                    setters.add(s);
-                                } else {
-                                    List<CodeStatement> setters = new ArrayList<>();
-                                    uselessInstructionTracking_currentSetters.put(regflag, setters);
-                                    setters.add(s);
-                                }
-                                nEffects++;
-                            }
-                            if (!s.op.spec.isNop &&
-                                !s.op.spec.isJump &&
-                                !s.op.spec.isCall &&
-                                !s.op.spec.isRet &&
-                                s.op.spec.outputPort == null &&
-                                s.op.spec.outputMemoryStart == null &&
-                                s.op.spec.outputMemoryEnd == null &&
-                                nEffects > 0) {
-                                uselessInstructionTracking_potentialUseless.put(s, nEffects);
+                        for(String reg:s.op.spec.outputRegs) {
+                            if (reg.equalsIgnoreCase("IYq")) reg = "IY";
+                            if (reg.equalsIgnoreCase("IXp")) reg = "IX";
+                            if (!modifiedRegisters.contains(reg)) {
+                                modifiedRegisters.add(reg);
                             }
                         }
-                        // DEBUG: Print current state of tracking:
-//                        System.out.println("---------------------------");
-//                        System.out.println(s.sl.fileNameLineString() +  ": " + s.op);
-//                        System.out.println("uselessInstructionTracking_currentSetters:");
-//                        for(String regflag:uselessInstructionTracking_currentSetters.keySet()) {
-//                            System.out.println("    " + regflag + ": " + uselessInstructionTracking_currentSetters.get(regflag));
-//                        }
-//                        System.out.println("uselessInstructionTracking_potentialUseless:");
-//                        for(CodeStatement s2:uselessInstructionTracking_potentialUseless.keySet()) {
-//                            System.out.println("    " + s2.op + "  ->  " + uselessInstructionTracking_potentialUseless.get(s2));
-//                        }
+                        modificationsRecorded[s_idx] = true;
+                    }
+                    if (uselessTracker != null) {
+                        uselessTracker.instructionExecuted(s_idx);
                     }
                 }
                 
                 long previousTime = z80.getTStates();
                 int nProtectedWrites = z80Memory.getNProtectedWrites();
+                if (accessTrace != null) accessTrace.setInstructionAddress(pcAddress);
                 z80.executeOneInstruction();
                 if (s != null && z80Memory.getNProtectedWrites() > nProtectedWrites) {
                     config.warn("The above warning occurred in line: " + s.sl);
                 }
                 
                 if (s != null && s.comment != null) {
-                    for(String watchKey: watchKeys) {
+                    for(int i = 0;i<watchKeys.size();i++) {
+                        String watchKey = watchKeys.get(i);
                         if (s.comment.contains(watchKey)) {
                             int idx = s.comment.indexOf(watchKey) + watchKey.length();
                             String watches = s.comment.substring(idx);
@@ -650,40 +666,39 @@ public class SourceCodeExecution implements MDLWorker {
                 }
                 
                 if (reportHotSpots) {
-                    int executionTime = (int)(z80.getTStates() - previousTime);
-                    if (!hotspots.containsKey(addressString)) {
-                        hotspots.put(addressString, Pair.of(0, 0));
-                    }
-                    Pair<Integer, Integer> spot = hotspots.get(addressString);
-                    spot.setLeft(spot.getLeft() + 1);
-                    spot.setRight(spot.getRight() + executionTime);
+                    hotspotCount[pcPhysicalAddress]++;
+                    hotspotTime[pcPhysicalAddress] += z80.getTStates() - previousTime;
                 }
                 
                 if (stopOnProtectedWrite && z80Memory.getNProtectedWrites() > 0) {
-                    config.error("Instruction that generated the protected write (address: "+addressString+"), " + s.fileNameLineString() + ":" + s);
-                    return false;
+                    config.error("Instruction that generated the protected write (address: "+z80Memory.addressString(pcAddress)+"), " + s.fileNameLineString() + ":" + s);
+                    executionError = true;
+                    break;
                 }
                 
-                if (trackConditionals && previous_s != null) {
-                    if (previous_s.op != null && previous_s.op.isConditional()) {
-                        if (!conditionalInstructionStats.containsKey(previous_s)) {
-                            conditionalInstructionStats.put(previous_s, Pair.of(0, 0));
-                        }
-                        conditionalInstructionStats.get(previous_s).left++;
-                        if (pcAddress != previous_pc + previous_s.op.sizeInBytes()) {
+                if (trackConditionals && previous_s >= 0) {
+                    CodeStatement previous = statements.get(previous_s);
+                    if (previous.op != null && previous.op.isConditional()) {
+                        conditionalTotal[previous_s]++;
+                        if (pcAddress != previous_pc + previous.op.sizeInBytes()) {
                             // jump taken:
-                            conditionalInstructionStats.get(previous_s).right++;
+                            conditionalTaken[previous_s]++;
                         }
                     }
                 }
                 nInstructionsExecuted++;
                 previous_pc = pcAddress;
-                previous_s = s;
+                previous_s = s_idx;
             }
         }catch(Exception e) {
             e.printStackTrace();
-            return false;
+            executionError = true;
+        } finally {
+            // Even if execution stopped due to an error (those are the records
+            // the user needs to debug it):
+            if (!saveProfileAndMemoryTrace(profiler, accessTrace, z80)) executionError = true;
         }
+        if (executionError) return false;
         
         // Print changes:
         config.info("Execution result:");
@@ -792,67 +807,27 @@ public class SourceCodeExecution implements MDLWorker {
                 }
             }
         }
-        if (reportHotSpots) reportHotspots(hotspots, instructions);
-        if (trackUselessInstructions) {
-            List<CodeStatement> useless = new ArrayList<>();
-            List<CodeStatement> simetimes_useless = new ArrayList<>();
-            for(CodeStatement s:uselessInstructionTracking_useful_total.keySet()) {
-                Pair<Integer, Integer> pair = uselessInstructionTracking_useful_total.get(s);
-                if (pair.left == 0) {
-                    useless.add(s);
-                } else if (pair.left < pair.right) {
-                    simetimes_useless.add(s);
-                }
-            }
-            Collections.sort(useless, new Comparator<CodeStatement>() {
-                @Override
-                public int compare(CodeStatement s1, CodeStatement s2) {
-                    return -Integer.compare(uselessInstructionTracking_useful_total.get(s1).right,
-                                            uselessInstructionTracking_useful_total.get(s2).right);
-                }
-            });            
-            Collections.sort(simetimes_useless, new Comparator<CodeStatement>() {
-                @Override
-                public int compare(CodeStatement s1, CodeStatement s2) {
-                    return Double.compare(uselessInstructionTracking_useful_total.get(s1).left / (float)uselessInstructionTracking_useful_total.get(s1).right,
-                                          uselessInstructionTracking_useful_total.get(s2).left / (float)uselessInstructionTracking_useful_total.get(s2).right);
-                }
-            });            
-            
-            config.info("Useless instruction tracking:");
-            config.info("Potentially useless at execution end: " + uselessInstructionTracking_potentialUseless.size());
-            for(CodeStatement s:uselessInstructionTracking_potentialUseless.keySet()) {
-                config.info("  - " + s.sl.fileNameLineString() + ": " + s.op +  " (" + uselessInstructionTracking_potentialUseless.get(s) + " values set left)");
-            }
-            config.info("Always useless: " + useless.size());
-            for(CodeStatement s:useless) {
-                Pair<Integer, Integer> pair = uselessInstructionTracking_useful_total.get(s);
-                config.info("  - ("+pair.left+"/"+pair.right+") " + s.sl.fileNameLineString() + ": " + s.op);
-            }
-            if (reportSometimesUselessInstructions) {
-                config.info("Sometimes useless: " +  + simetimes_useless.size());
-                for(CodeStatement s:simetimes_useless) {
-                    Pair<Integer, Integer> pair = uselessInstructionTracking_useful_total.get(s);
-                    config.info("  - ("+pair.left+"/"+pair.right+") " + s.sl.fileNameLineString() + ": " + s.op);
-                }
-            }
-        }
+        if (reportHotSpots) reportHotspots(hotspotCount, hotspotTime, statementAt, statements, z80Memory);
+        if (reportMemoryHeatmap) reportMemoryHeatmap(accessTrace, z80Memory);
+        if (profiler != null) profiler.report(nProfileFunctionsToShow, globalTotal);
+        if (uselessTracker != null) uselessTracker.report(reportSometimesUselessInstructions);
         if (trackConditionals) {
-            List<CodeStatement> conditionals = new ArrayList<>();
-            conditionals.addAll(conditionalInstructionStats.keySet());
-            Collections.sort(conditionals, new Comparator<CodeStatement>() {
+            List<Integer> conditionals = new ArrayList<>();
+            for(int i = 0;i<statements.size();i++) {
+                if (conditionalTotal[i] > 0) conditionals.add(i);
+            }
+            Collections.sort(conditionals, new Comparator<Integer>() {
                 @Override
-                public int compare(CodeStatement s1, CodeStatement s2) {
-                    return -Integer.compare(conditionalInstructionStats.get(s1).left,
-                                            conditionalInstructionStats.get(s2).left);
+                public int compare(Integer s1, Integer s2) {
+                    return -Integer.compare(conditionalTotal[s1], conditionalTotal[s2]);
                 }
             });
             config.info("Conditional statement stats (total/jump taken):");
-            for(CodeStatement s:conditionals) {
-                Pair<Integer, Integer> pair = conditionalInstructionStats.get(s);
-//                if (pair.left >= 10) {
-                    if (pair.right == 0 || pair.right.equals(pair.left)) {
-                        config.info("  - ("+pair.left+"/"+pair.right+") " + s.sl.fileNameLineString() + ": " + s.op);
+            for(int i:conditionals) {
+                CodeStatement s = statements.get(i);
+//                if (conditionalTotal[i] >= 10) {
+                    if (conditionalTaken[i] == 0 || conditionalTaken[i] == conditionalTotal[i]) {
+                        config.info("  - ("+conditionalTotal[i]+"/"+conditionalTaken[i]+") " + s.sl.fileNameLineString() + ": " + s.op);
 //                    }
                 }
             }
@@ -861,6 +836,118 @@ public class SourceCodeExecution implements MDLWorker {
     }
     
     
+    /*
+    Saves the call stack profile and closes the memory trace file (if they
+    were requested). Returns false if any of them could not be written.
+    */
+    boolean saveProfileAndMemoryTrace(CallStackProfiler profiler, MemoryAccessTrace accessTrace, Z80Core z80)
+    {
+        boolean ok = true;
+        if (profiler != null) {
+            profiler.end(z80.getTStates());
+            if (!profiler.saveCollapsedStacks(profileFileName)) ok = false;
+        }
+        if (memoryTraceFileName != null) {
+            try {
+                accessTrace.close();
+                config.info("Memory trace: " + accessTrace.getNRecords() + " records written to " + memoryTraceFileName);
+            } catch (IOException e) {
+                config.error("Cannot write memory trace file '" + memoryTraceFileName + "': " + e.getMessage());
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+
+    /*
+    Creates the memory to execute the code in (according to the mapper
+    configuration).
+    */
+    MappedTrackingZ80Memory createMemory()
+    {
+        MappedTrackingZ80Memory z80Memory = new MappedTrackingZ80Memory(null, segment_size, RAM_mapper_type, config, trace);
+        try {
+            z80Memory.addMemorySource(ROM_size, ROM_mapper_type, true);
+        } catch(Exception e) {
+            config.error(e.getMessage());
+            return null;
+        }
+        return z80Memory;
+    }
+    
+    
+    void mapInitialPages(MappedTrackingZ80Memory z80Memory)
+    {
+        for(int i = 0;i<initial_mapping.length;i++) {
+            z80Memory.mapPage(i, initial_mapping[i][0], initial_mapping[i][1]);
+        }
+    }
+    
+    
+    /*
+    Assembles the code and copies it to "z80Memory". Statements are identified
+    by their index in "statements", and "statementAt" gets the index of the
+    statement at each physical address (or -1), so that no strings need to be
+    generated during execution.
+    */
+    boolean loadProgram(CodeBase code, MappedTrackingZ80Memory z80Memory, List<CodeStatement> statements,
+                        int statementAt[], HashMap<CodeStatement, String> reverseInstructions)
+    {
+        HashMap<CodeStatement, Integer> statementIndexes = new HashMap<>();
+        Arrays.fill(statementAt, -1);
+        SourceFile main = code.outputs.get(0).main;
+        BinaryGenerator generator = new BinaryGenerator(config);
+        List<BinaryGenerator.StatementBinaryEffect> statementBytes = new ArrayList<>();
+        if (!generator.generateStatementBytes(main, code, statementBytes)) {
+            return false;
+        }
+        int romAddress = 0;
+        for(BinaryGenerator.StatementBinaryEffect effect:statementBytes) {
+            Integer address = effect.s.getAddress(code);
+            if (binary_source == SOURCE_ROM) {
+                address = romAddress;
+            }
+            Integer idx = statementIndexes.get(effect.s);
+            if (idx == null) {
+                idx = statements.size();
+                statements.add(effect.s);
+                statementIndexes.put(effect.s, idx);
+            }
+            statementAt[z80Memory.physicalAddress(binary_source, address)] = idx;
+            reverseInstructions.put(effect.s, binary_source + ":" + address);
+            for(int i = 0;i<effect.bytes.length;i++) {
+                int b = effect.bytes[i];
+                if (b < 0) b += 256;
+                z80Memory.writeByteToSource(binary_source, address + i, b);
+            }
+//            if (effect.bytes.length > 0) {
+//                System.out.println(config.tokenizer.toHex(address, 4) + ": " + Arrays.toString(effect.bytes) + "  ->  " + effect.s + "  ->  " + effect.s.fileNameLineString());
+//            }
+            romAddress += effect.bytes.length;
+        }
+        z80Memory.clearMemoryAccesses();
+        mapInitialPages(z80Memory);
+        return true;
+    }
+    
+    
+    /*
+    Writes a "ret" to the address of all the functions to ignore, so we return immediately.
+    */
+    void writeIgnoredFunctions(CodeBase code, MappedTrackingZ80Memory z80Memory)
+    {
+        for(String functionString:ignoreFunctionStrings) {
+            List<String> tokens = config.tokenizer.tokenize(functionString);
+            Expression exp = config.expressionParser.parse(tokens, null, null, code);
+            Integer functionAddress = exp.evaluateToInteger(null, code, true);
+            if (functionAddress != null) {
+                z80Memory.writeByteToSource(0, functionAddress, CPUConstants.ret_opcode);
+            }
+        }
+    }
+    
+    
     List<String> standardizeRegFlags(List<String> regs, List<String> flags, CPUOp op)
     {
         String allFlags[] = {"flag_C", "flag_N", "flag_P/V", "flag_H", "flag_Z", "flag_S"};
@@ -900,18 +987,14 @@ public class SourceCodeExecution implements MDLWorker {
     }
     
     
-    boolean addressMatch(int pcAddress, String addressString, String addressToMatch) {
-        if (addressString.equals(addressToMatch)) return true;
-        return addressToMatch.charAt(0) == ':' && addressToMatch.equals(":" + pcAddress);
-    }
-    
-    
-    static void addFunctionToTrack(List<FunctionTrackRecord> trackFunctions, FunctionTrackRecord record) {
+    static void addFunctionToTrack(List<FunctionTrackRecord> trackFunctions, FunctionTrackRecord record, 
+                                   MappedTrackingZ80Memory z80Memory) {
         for(FunctionTrackRecord r:trackFunctions) {
             if (r.address.equals(record.address)) {
                 return;
             }
         }
+        record.executionAddress = new ExecutionAddress(record.address, z80Memory);
         trackFunctions.add(record);
     }
     
@@ -991,29 +1074,70 @@ public class SourceCodeExecution implements MDLWorker {
     }
     
     
-    void reportHotspots(HashMap<String, Pair<Integer, Integer>> hotspots,
-                        HashMap<String, CodeStatement> instructions)
+    void reportHotspots(int hotspotCount[], long hotspotTime[], int statementAt[],
+                        List<CodeStatement> statements, MappedTrackingZ80Memory z80Memory)
     {
-        List<String> sortedSpots = new ArrayList<>();
-        sortedSpots.addAll(hotspots.keySet());
-        Collections.sort(sortedSpots, new Comparator<String>() {
+        List<Integer> sortedSpots = new ArrayList<>();
+        for(int i = 0;i<hotspotCount.length;i++) {
+            if (hotspotCount[i] > 0) sortedSpots.add(i);
+        }
+        Collections.sort(sortedSpots, new Comparator<Integer>() {
             @Override
-            public int compare(String s1, String s2) {
-                return -Double.compare(hotspots.get(s1).getRight(), hotspots.get(s2).getRight());
+            public int compare(Integer s1, Integer s2) {
+                return -Long.compare(hotspotTime[s1], hotspotTime[s2]);
             }
         });
         String hotspotsString = "";
         for(int i = 0;i<nHotSpotsToShow;i++) {
             if (sortedSpots.size() > i) {
-                String spot = sortedSpots.get(i);
-                Pair<Integer, Integer> stats = hotspots.get(spot);
-                hotspotsString += instructions.get(spot).fileNameLineString() + "\t" + stats.getLeft() + "\t" + stats.getRight() + "\n";
+                int spot = sortedSpots.get(i);
+                String spotString;
+                if (statementAt[spot] >= 0) {
+                    spotString = statements.get(statementAt[spot]).fileNameLineString();
+                } else {
+                    // Code that is not part of the source code (e.g., copied to RAM):
+                    spotString = z80Memory.physicalAddressString(spot);
+                }
+                hotspotsString += spotString + "\t" + hotspotCount[spot] + "\t" + hotspotTime[spot] + "\n";
             }
         }
         config.info("Hotspots: count time\n" + hotspotsString);
     }
     
     
+    void reportMemoryHeatmap(MemoryAccessTrace accessTrace, MappedTrackingZ80Memory z80Memory)
+    {
+        int readCounts[] = accessTrace.readCounts;
+        int writeCounts[] = accessTrace.writeCounts;
+        List<Integer> sortedSpots = new ArrayList<>();
+        for(int i = 0;i<readCounts.length;i++) {
+            if (readCounts[i] > 0 || writeCounts[i] > 0) sortedSpots.add(i);
+        }
+        Collections.sort(sortedSpots, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer s1, Integer s2) {
+                return -Long.compare((long)readCounts[s1] + writeCounts[s1],
+                                     (long)readCounts[s2] + writeCounts[s2]);
+            }
+        });
+        String heatmapString = "";
+        for(int i = 0;i<nMemoryHotSpotsToShow && i<sortedSpots.size();i++) {
+            int spot = sortedSpots.get(i);
+            heatmapString += z80Memory.physicalAddressString(spot) + "\t" + readCounts[spot] + "\t" + writeCounts[spot] + "\n";
+        }
+        config.info("Memory hotspots (source:address): reads writes\n" + heatmapString);
+        String pageSwitchesString = "";
+        for(int page = 0;page<accessTrace.pageSwitchCounts.length;page++) {
+            if (accessTrace.pageSwitchCounts[page] > 0) {
+                pageSwitchesString += "  page " + page + ": " + accessTrace.pageSwitchCounts[page] + "\n";
+            }
+        }
+        if (!pageSwitchesString.isEmpty()) {
+            config.info("Mapper page switches:\n" + pageSwitchesString);
+        }
+    }
+    
+    
     /*
     If "exp" is a label name, it calculates the offset in the binary that
     corresponds to that label (physical address). Notice that this is different
@@ -0,0 +1,553 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package workers;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import code.CodeStatement;
+import code.Expression;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import util.Resources;
+import util.microprocessor.MappedTrackingZ80Memory;
+import util.microprocessor.PlainZ80IO;
+import util.microprocessor.Z80.CPUConfig;
+import util.microprocessor.Z80.CPUConstants;
+import util.microprocessor.Z80.CPUConstants.RegisterNames;
+import util.microprocessor.Z80.Z80Core;
+
+/**
+ *
+ * @author santi
+ *
+ * Batch mode of SourceCodeExecution ("-e:batch"): the code is parsed and
+ * assembled only once, and then each scenario in the batch file is executed
+ * on its own Z80Core (starting from a copy of the assembled memory) by a
+ * pool of threads. All the expressions in the scenarios (addresses, initial
+ * values, watch statements) are evaluated before the threads start, so the
+ * threads never access the CodeBase. Results are reported in the same order
+ * as the scenarios appear in the file, independently of the number of threads.
+ */
+public class SourceCodeExecutionBatch {
+    public static final RegisterNames REPORTED_REGISTERS[] = {
+        RegisterNames.AF, RegisterNames.BC, RegisterNames.DE, RegisterNames.HL,
+        RegisterNames.IX, RegisterNames.IY, RegisterNames.SP};
+    // Scenarios with only an end address are stopped (with an error) if they
+    // do not reach it within this time, so a batch never runs forever:
+    public static final long MAX_STEPS_WITHOUT_LIMIT = 100000000L;
+
+
+    /*
+    A value to print in a watch statement: either a constant string, a
+    register or a flag.
+    */
+    public static class WatchItem {
+        public String constant = null;
+        public RegisterNames register = null;
+        public int flag = -1;
+    }
+
+
+    public static class Scenario {
+        public String name;
+        public String startAddressUser = null;
+        public String endAddressUser = null;
+        public String stepsString = null;
+        public List<String> registerNames = new ArrayList<>();
+        public List<String> registerValues = new ArrayList<>();
+        public List<String> memoryAddresses = new ArrayList<>();
+        public List<String> memoryValues = new ArrayList<>();
+        public List<String> watchKeys = new ArrayList<>();
+        public List<String> randomRegisterNames = new ArrayList<>();
+        public List<String> randomMemoryAddresses = new ArrayList<>();
+        public int runs = 1;
+        public long seed = 0;
+
+        // Resolved before execution:
+        int startAddress;
+        SourceCodeExecution.ExecutionAddress endAddress = null;
+        long steps = -1;
+        RegisterNames registers[];
+        int registerInitialValues[];
+        int memoryInitialAddresses[];
+        int memoryInitialValues[];
+        RegisterNames randomRegisters[];
+        int randomMemory[];
+        WatchItem watches[][];  // per statement (or null)
+        public int bytes = -1;  // size of the code from start to end (if known)
+
+        // Results (accumulated over all runs):
+        public long tStates = 0;
+        public long minTStates = -1;
+        public long maxTStates = -1;
+        public long nInstructionsExecuted = 0;
+        public String registersString = null;
+        public List<String> output = new ArrayList<>();
+        public String error = null;
+
+        public Scenario(String a_name)
+        {
+            name = a_name;
+        }
+    }
+
+
+    class BatchExecutionThread extends Thread {
+        MappedTrackingZ80Memory z80Memory;
+        Z80Core z80;
+
+        public BatchExecutionThread(String a_threadID, CPUConfig cpuConfig)
+        {
+            super(a_threadID);
+            z80Memory = sce.createMemory();
+            z80 = new Z80Core(z80Memory, new PlainZ80IO(), cpuConfig);
+            z80Memory.setCPU(z80);
+        }
+
+
+        @Override
+        @SuppressWarnings("UseSpecificCatch")
+        public void run()
+        {
+            Scenario scenario = nextScenario();
+            while(scenario != null) {
+                try {
+                    execute(scenario, z80, z80Memory);
+                } catch (Exception e) {
+                    scenario.error = e.toString();
+                }
+                scenario = nextScenario();
+            }
+        }
+    }
+
+
+    MDLConfig config;
+    SourceCodeExecution sce;
+    List<Scenario> scenarios = new ArrayList<>();
+    int nextScenario = 0;
+
+    // Assembled program:
+    MappedTrackingZ80Memory template = null;
+    List<CodeStatement> statements = new ArrayList<>();
+    int statementAt[];
+
+
+    public SourceCodeExecutionBatch(SourceCodeExecution a_sce, MDLConfig a_config)
+    {
+        sce = a_sce;
+        config = a_config;
+    }
+
+
+    public boolean loadScenarios(String fileName, CodeBase code)
+    {
+        Scenario scenario = null;
+        try (BufferedReader br = Resources.asReader(fileName)) {
+            String line = br.readLine();
+            while(line != null) {
+                line = line.strip();
+                String lineLC = line.toLowerCase();
+                if (line.isEmpty() || line.startsWith(";") || line.startsWith("#")) {
+                    // empty line or comment
+                } else if (lineLC.startsWith("scenario:")) {
+                    scenario = new Scenario(line.substring(9).strip());
+                    scenarios.add(scenario);
+                } else if (scenario == null) {
+                    config.error("Expected 'scenario: <name>' in " + fileName + " but found: " + line);
+                    return false;
+                } else if (lineLC.startsWith("start:")) {
+                    scenario.startAddressUser = line.substring(6).strip();
+                } else if (lineLC.startsWith("end:")) {
+                    scenario.endAddressUser = line.substring(4).strip();
+                } else if (lineLC.startsWith("steps:")) {
+                    scenario.stepsString = line.substring(6).strip();
+                } else if (lineLC.startsWith("reg:") || lineLC.startsWith("mem:")) {
+                    String parts[] = line.substring(4).split("=", 2);
+                    if (parts.length != 2) {
+                        config.error("Expected '<name> = <value>' in " + fileName + " but found: " + line);
+                        return false;
+                    }
+                    if (lineLC.startsWith("reg:")) {
+                        scenario.registerNames.add(parts[0].strip());
+                        scenario.registerValues.add(parts[1].strip());
+                    } else {
+                        scenario.memoryAddresses.add(parts[0].strip());
+                        scenario.memoryValues.add(parts[1].strip());
+                    }
+                } else if (lineLC.startsWith("watch:")) {
+                    scenario.watchKeys.add(line.substring(6).strip());
+                } else if (lineLC.startsWith("random-reg:")) {
+                    scenario.randomRegisterNames.add(line.substring(11).strip());
+                } else if (lineLC.startsWith("random-mem:")) {
+                    scenario.randomMemoryAddresses.add(line.substring(11).strip());
+                } else if (lineLC.startsWith("runs:") || lineLC.startsWith("seed:")) {
+                    int value;
+                    try {
+                        value = Integer.parseInt(line.substring(5).strip());
+                    } catch (NumberFormatException e) {
+                        config.error("Cannot parse number in " + fileName + ": " + line);
+                        return false;
+                    }
+                    if (lineLC.startsWith("runs:")) {
+                        if (value <= 0) {
+                            config.error("The number of runs must be positive in " + fileName + ": " + line);
+                            return false;
+                        }
+                        scenario.runs = value;
+                    } else {
+                        scenario.seed = value;
+                    }
+                } else {
+                    config.error("Cannot parse line in " + fileName + ": " + line);
+                    return false;
+                }
+                line = br.readLine();
+            }
+        } catch(IOException e) {
+            config.error(e.getMessage());
+            return false;
+        }
+        for(Scenario s:scenarios) {
+            if (s.startAddressUser == null) {
+                config.error("No start address specified for scenario " + s.name);
+                return false;
+            }
+            if (s.endAddressUser == null && s.stepsString == null) {
+                config.error("No end address or steps specified for scenario " + s.name);
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    Integer evaluate(String expression, CodeBase code)
+    {
+        List<String> tokens = config.tokenizer.tokenize(expression);
+        Expression exp = config.expressionParser.parse(tokens, null, null, code);
+        if (exp == null) return null;
+        return exp.evaluateToInteger(null, code, true);
+    }
+
+
+    String addressInBinary(String expression, CodeBase code, HashMap<CodeStatement, String> reverseInstructions)
+    {
+        List<String> tokens = config.tokenizer.tokenize(expression);
+        Expression exp = config.expressionParser.parse(tokens, null, null, code);
+        if (exp == null) return null;
+        return sce.functionAddressInBinary(exp, code, reverseInstructions);
+    }
+
+
+    boolean resolve(Scenario scenario, CodeBase code, HashMap<CodeStatement, String> reverseInstructions)
+    {
+        String startAddressString = addressInBinary(scenario.startAddressUser, code, reverseInstructions);
+        Integer startAddress = (startAddressString == null ? null : template.integerAddressOf(startAddressString));
+        if (startAddress == null) {
+            config.error("Cannot evaluate start address expression: " + scenario.startAddressUser + " in scenario " + scenario.name);
+            return false;
+        }
+        scenario.startAddress = startAddress;
+        if (scenario.endAddressUser != null) {
+            String endAddressString = addressInBinary(scenario.endAddressUser, code, reverseInstructions);
+            if (endAddressString == null) {
+                config.error("Cannot evaluate end address expression: " + scenario.endAddressUser + " in scenario " + scenario.name);
+                return false;
+            }
+            scenario.endAddress = new SourceCodeExecution.ExecutionAddress(endAddressString, template);
+            Integer endAddress = template.integerAddressOf(endAddressString);
+            if (endAddress != null && endAddress >= startAddress) {
+                scenario.bytes = endAddress - startAddress;
+            }
+        }
+        if (scenario.stepsString != null) {
+            Integer steps = evaluate(scenario.stepsString, code);
+            if (steps == null) {
+                config.error("Cannot evaluate steps expression: " + scenario.stepsString + " in scenario " + scenario.name);
+                return false;
+            }
+            scenario.steps = steps;
+        }
+        int n = scenario.registerNames.size();
+        scenario.registers = new RegisterNames[n];
+        scenario.registerInitialValues = new int[n];
+        for(int i = 0;i<n;i++) {
+            scenario.registers[i] = CPUConstants.registerByName(scenario.registerNames.get(i));
+            Integer value = evaluate(scenario.registerValues.get(i), code);
+            if (scenario.registers[i] == null || value == null) {
+                config.error("Cannot set register " + scenario.registerNames.get(i) + " to " + scenario.registerValues.get(i) + " in scenario " + scenario.name);
+                return false;
+            }
+            scenario.registerInitialValues[i] = value;
+        }
+        n = scenario.memoryAddresses.size();
+        scenario.memoryInitialAddresses = new int[n];
+        scenario.memoryInitialValues = new int[n];
+        for(int i = 0;i<n;i++) {
+            Integer address = evaluate(scenario.memoryAddresses.get(i), code);
+            Integer value = evaluate(scenario.memoryValues.get(i), code);
+            if (address == null || value == null) {
+                config.error("Cannot set memory position " + scenario.memoryAddresses.get(i) + " to " + scenario.memoryValues.get(i) + " in scenario " + scenario.name);
+                return false;
+            }
+            scenario.memoryInitialAddresses[i] = address & 0xffff;
+            scenario.memoryInitialValues[i] = value & 0xff;
+        }
+        n = scenario.randomRegisterNames.size();
+        scenario.randomRegisters = new RegisterNames[n];
+        for(int i = 0;i<n;i++) {
+            scenario.randomRegisters[i] = CPUConstants.registerByName(scenario.randomRegisterNames.get(i));
+            if (scenario.randomRegisters[i] == null) {
+                config.error("Unknown register " + scenario.randomRegisterNames.get(i) + " in scenario " + scenario.name);
+                return false;
+            }
+        }
+        n = scenario.randomMemoryAddresses.size();
+        scenario.randomMemory = new int[n];
+        for(int i = 0;i<n;i++) {
+            Integer address = evaluate(scenario.randomMemoryAddresses.get(i), code);
+            if (address == null) {
+                config.error("Cannot evaluate address " + scenario.randomMemoryAddresses.get(i) + " in scenario " + scenario.name);
+                return false;
+            }
+            scenario.randomMemory[i] = address & 0xffff;
+        }
+        scenario.watches = new WatchItem[statements.size()][];
+        if (!scenario.watchKeys.isEmpty()) {
+            for(int i = 0;i<statements.size();i++) {
+                CodeStatement s = statements.get(i);
+                if (s.comment == null) continue;
+                for(String watchKey:scenario.watchKeys) {
+                    if (s.comment.contains(watchKey)) {
+                        int idx = s.comment.indexOf(watchKey) + watchKey.length();
+                        scenario.watches[i] = watchItems(s.comment.substring(idx), code);
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+
+    /*
+    Same as "SourceCodeExecution.printWatchStatements", but only parses the
+    expressions, so they can be printed later without accessing the CodeBase.
+    */
+    WatchItem[] watchItems(String watchesString, CodeBase code)
+    {
+        List<WatchItem> items = new ArrayList<>();
+        List<String> tokens = config.tokenizer.tokenize(watchesString);
+        Expression exp = config.expressionParser.parse(tokens, null, null, code);
+        while(exp != null) {
+            WatchItem item = new WatchItem();
+            if (exp.evaluatesToStringConstant()) {
+                item.constant = exp.evaluateToString(null, code, false);
+            } else if (exp.evaluatesToIntegerConstant()) {
+                Integer v = exp.evaluateToInteger(null, code, false);
+                item.constant = "" + v + " (" + config.tokenizer.toHexAutoSize(v, config.hexStyle) + ")";
+            } else if (exp.type == Expression.EXPRESSION_REGISTER_OR_FLAG) {
+                if (CodeBase.isRegister(exp.registerOrFlagName)) {
+                    item.register = CPUConstants.registerByName(exp.registerOrFlagName);
+                } else {
+                    item.flag = CPUConstants.flagIndex(CPUConstants.flagByName(exp.registerOrFlagName));
+                }
+            } else {
+                config.warn("SourceCodeExecution: cannot evaluate watch expression " + exp.toString());
+                item = null;
+            }
+            if (item != null) items.add(item);
+            if (tokens.isEmpty() || !tokens.get(0).equals(",")) break;
+            tokens.remove(0);
+            exp = config.expressionParser.parse(tokens, null, null, code);
+        }
+        return items.toArray(new WatchItem[0]);
+    }
+
+
+    String registerString(RegisterNames reg, Z80Core z80)
+    {
+        int v = z80.getRegisterValue(reg);
+        if (CPUConstants.is8bitRegister(reg)) {
+            return "" + v + " (" + config.tokenizer.toHexByte(v, config.hexStyle) + ")";
+        } else {
+            return "" + v + " (" + config.tokenizer.toHexWord(v, config.hexStyle) + ")";
+        }
+    }
+
+
+    String watchString(WatchItem watches[], Z80Core z80)
+    {
+        String outputString = "";
+        for(WatchItem item:watches) {
+            if (!outputString.isEmpty()) outputString += ", ";
+            if (item.constant != null) {
+                outputString += item.constant;
+            } else if (item.register != null) {
+                outputString += registerString(item.register, z80);
+            } else {
+                outputString += z80.getFlagValue(item.flag);
+            }
+        }
+        return outputString;
+    }
+
+
+    synchronized Scenario nextScenario()
+    {
+        if (nextScenario >= scenarios.size()) return null;
+        Scenario scenario = scenarios.get(nextScenario);
+        nextScenario++;
+        return scenario;
+    }
+
+
+    public boolean execute(CodeBase code, int nThreads)
+    {
+        template = sce.createMemory();
+        if (template == null) return false;
+        statementAt = new int[template.getPhysicalMemorySize()];
+        HashMap<CodeStatement, String> reverseInstructions = new HashMap<>();
+        if (!sce.loadProgram(code, template, statements, statementAt, reverseInstructions)) {
+            return false;
+        }
+        sce.writeIgnoredFunctions(code, template);
+        for(Scenario scenario:scenarios) {
+            if (!resolve(scenario, code, reverseInstructions)) return false;
+        }
+
+        if (nThreads <= 0) nThreads = Runtime.getRuntime().availableProcessors();
+        nThreads = Math.max(1, Math.min(nThreads, scenarios.size()));
+        CPUConfig cpuConfig = new CPUConfig(config);
+        BatchExecutionThread threads[] = new BatchExecutionThread[nThreads];
+        for(int i = 0;i<nThreads;i++) {
+            threads[i] = new BatchExecutionThread("thread-" + i, cpuConfig);
+            if (threads[i].z80Memory == null) return false;
+        }
+        config.debug("SourceCodeExecution: executing " + scenarios.size() + " scenarios with " + nThreads + " threads");
+        try {
+            for(int i = 0;i<nThreads;i++) threads[i].start();
+            for(int i = 0;i<nThreads;i++) threads[i].join();
+        } catch (InterruptedException e) {
+            config.error("Batch execution interrupted: " + e.getMessage());
+            return false;
+        }
+
+        return report();
+    }
+
+
+    void execute(Scenario scenario, Z80Core z80, MappedTrackingZ80Memory z80Memory) throws Exception
+    {
+        // Random inputs only depend on the scenario (not on the thread executing it):
+        Random random = new Random(scenario.seed);
+        for(int run = 0;run<scenario.runs;run++) {
+            if (!execute(scenario, z80, z80Memory, random)) return;
+        }
+    }
+
+
+    /*
+    Executes one run of the scenario, accumulating the results into it.
+    Returns false (after setting "scenario.error") if the end address was not
+    reached within MAX_STEPS_WITHOUT_LIMIT.
+    */
+    boolean execute(Scenario scenario, Z80Core z80, MappedTrackingZ80Memory z80Memory, Random random) throws Exception
+    {
+        for(int i = 0;i<template.sources.size();i++) {
+            byte source[] = template.sources.get(i).memory;
+            System.arraycopy(source, 0, z80Memory.sources.get(i).memory, 0, source.length);
+        }
+        sce.mapInitialPages(z80Memory);
+        z80.reset();
+        for(int i = 0;i<scenario.memoryInitialAddresses.length;i++) {
+            z80Memory.writeByte(scenario.memoryInitialAddresses[i], scenario.memoryInitialValues[i]);
+        }
+        for(int address:scenario.randomMemory) {
+            z80Memory.writeByte(address, random.nextInt(256));
+        }
+        z80Memory.clearMemoryAccesses();
+        for(int i = 0;i<scenario.registers.length;i++) {
+            z80.setRegisterValue(scenario.registers[i], scenario.registerInitialValues[i]);
+        }
+        for(RegisterNames reg:scenario.randomRegisters) {
+            z80.setRegisterValue(reg, random.nextInt(CPUConstants.is8bitRegister(reg) ? 0x100 : 0x10000));
+        }
+        z80.setProgramCounter(scenario.startAddress);
+
+        int nInstructionsExecuted = 0;
+        while(true) {
+            int pcAddress = z80.getProgramCounter();
+            int pcPhysicalAddress = z80Memory.physicalAddress(pcAddress);
+            if (scenario.steps >= 0) {
+                if (z80.getTStates() > scenario.steps) break;
+            } else if (z80.getTStates() > MAX_STEPS_WITHOUT_LIMIT) {
+                scenario.error = "end address not reached after " + MAX_STEPS_WITHOUT_LIMIT + " " + config.timeUnit +
+                                 "s (use 'steps: <steps>' to set a different limit)";
+                return false;
+            }
+            if (scenario.endAddress != null && scenario.endAddress.matches(pcAddress, pcPhysicalAddress)) break;
+            int s_idx = statementAt[pcPhysicalAddress];
+            z80.executeOneInstruction();
+            if (s_idx >= 0 && scenario.watches[s_idx] != null) {
+                scenario.output.add(watchString(scenario.watches[s_idx], z80));
+            }
+            nInstructionsExecuted++;
+        }
+        long tStates = z80.getTStates();
+        scenario.tStates += tStates;
+        if (scenario.minTStates < 0 || tStates < scenario.minTStates) scenario.minTStates = tStates;
+        if (scenario.maxTStates < 0 || tStates > scenario.maxTStates) scenario.maxTStates = tStates;
+        scenario.nInstructionsExecuted += nInstructionsExecuted;
+        String registersString = "";
+        for(RegisterNames reg:REPORTED_REGISTERS) {
+            if (!registersString.isEmpty()) registersString += ", ";
+            registersString += reg + ": " + registerString(reg, z80);
+        }
+        scenario.registersString = registersString;
+        return true;
+    }
+
+
+    public static double averageTStates(Scenario scenario)
+    {
+        return scenario.tStates / (double)scenario.runs;
+    }
+
+
+    public static double averageInstructions(Scenario scenario)
+    {
+        return scenario.nInstructionsExecuted / (double)scenario.runs;
+    }
+
+
+    boolean report()
+    {
+        boolean allOk = true;
+        config.info("Batch execution result: scenario  " + config.timeUnit + "s  instructions");
+        for(Scenario scenario:scenarios) {
+            if (scenario.error != null) {
+                config.error("Scenario \"" + scenario.name + "\" failed: " + scenario.error);
+                allOk = false;
+                continue;
+            }
+            if (scenario.runs == 1) {
+                config.info("- \"" + scenario.name + "\"\t" + scenario.tStates + "\t" + scenario.nInstructionsExecuted);
+            } else {
+                config.info("- \"" + scenario.name + "\"\t" + averageTStates(scenario) + "\t" + averageInstructions(scenario) +
+                            "\t(" + scenario.minTStates + " / " + scenario.maxTStates + " in " + scenario.runs + " runs)");
+            }
+            config.info("    " + scenario.registersString);
+            for(String line:scenario.output) {
+                config.info("    " + line);
+            }
+        }
+        return allOk;
+    }
+}
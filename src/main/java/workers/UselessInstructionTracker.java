@@ -0,0 +1,264 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package workers;
+
+import cl.MDLConfig;
+import code.CodeStatement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ *
+ * @author santi
+ *
+ * Tracks instructions that had no visible effect during execution
+ * ("-e:report-useless"). For each register/flag, it keeps the instructions
+ * that set its current value ("setters"). If all the values an instruction
+ * set are overwritten before being read, the instruction was useless.
+ *
+ * Statements and registers/flags are identified by dense integer indexes,
+ * and all the per-statement information is precomputed the first time a
+ * statement is executed, so that tracking does not allocate any objects
+ * per executed instruction.
+ */
+public class UselessInstructionTracker {
+    MDLConfig config;
+    SourceCodeExecution sce;
+    List<CodeStatement> statements;
+
+    // Per statement (lazily precomputed):
+    boolean precomputed[];
+    int inputRegFlags[][];
+    int outputRegFlags[][];
+    int exchangedRegFlags[][];  // pairs of regs/flags exchanged by "ex"/"exx" (or null)
+    boolean canBeUseless[];
+
+    // Register/flag names to indexes:
+    HashMap<String, Integer> regFlagIndexes = new HashMap<>();
+
+    // Per register/flag, the statements that set its current value:
+    int setters[][] = new int[0][];
+    int nSetters[] = new int[0];
+
+    // Per statement: how many regs/flags it set that have not yet been overwritten
+    // or used (0 if it is not potentially useless).
+    int potentialUseless[];
+    // Per statement: # times useful, # times total:
+    int useful[];
+    int total[];
+
+
+    public UselessInstructionTracker(List<CodeStatement> a_statements, SourceCodeExecution a_sce, MDLConfig a_config)
+    {
+        statements = a_statements;
+        sce = a_sce;
+        config = a_config;
+        int n = statements.size();
+        precomputed = new boolean[n];
+        inputRegFlags = new int[n][];
+        outputRegFlags = new int[n][];
+        exchangedRegFlags = new int[n][];
+        canBeUseless = new boolean[n];
+        potentialUseless = new int[n];
+        useful = new int[n];
+        total = new int[n];
+    }
+
+
+    int regFlagIndex(String regFlag)
+    {
+        Integer idx = regFlagIndexes.get(regFlag);
+        if (idx == null) {
+            idx = regFlagIndexes.size();
+            regFlagIndexes.put(regFlag, idx);
+            setters = Arrays.copyOf(setters, idx + 1);
+            setters[idx] = new int[4];
+            nSetters = Arrays.copyOf(nSetters, idx + 1);
+        }
+        return idx;
+    }
+
+
+    int[] regFlagIndexes(List<String> regFlags)
+    {
+        int indexes[] = new int[regFlags.size()];
+        for(int i = 0;i<indexes.length;i++) {
+            indexes[i] = regFlagIndex(regFlags.get(i));
+        }
+        return indexes;
+    }
+
+
+    void precompute(int statement)
+    {
+        CodeStatement s = statements.get(statement);
+        inputRegFlags[statement] = regFlagIndexes(sce.standardizeRegFlags(s.op.spec.getInputPrimitiveRegs(), s.op.spec.inputFlags, s.op));
+        outputRegFlags[statement] = regFlagIndexes(sce.standardizeRegFlags(s.op.spec.getOutputPrimitiveRegs(), s.op.spec.outputFlags, s.op));
+        if (s.op.spec.isExOrExx) {
+            // Get the register/flag pairs that are exchanged:
+            String exchanged[] = null;
+            if (s.op.spec.getName().equalsIgnoreCase("exx")) {
+                // exx
+                exchanged = new String[]{"B", "B'", "C", "C'", "D", "D'", "E", "E'", "H", "H'", "L", "L'"};
+            } else if (s.op.spec.getName().equalsIgnoreCase("ex")) {
+                if (s.op.spec.args.get(0).reg.equals("AF")) {
+                    // ex af, af'
+                    exchanged = new String[]{"A", "A'", "flag_C", "flag_C'", "flag_N", "flag_N'",
+                                             "flag_P/V", "flag_P/V'", "flag_Z", "flag_Z'", "flag_S", "flag_S'"};
+                } else if (s.op.spec.args.get(0).reg.equals("DE")) {
+                    // ex de, hl
+                    exchanged = new String[]{"E", "L", "D", "H"};
+                }
+            }
+            if (exchanged != null) {
+                exchangedRegFlags[statement] = regFlagIndexes(Arrays.asList(exchanged));
+            }
+        }
+        canBeUseless[statement] = !s.op.spec.isNop &&
+                                  !s.op.spec.isJump &&
+                                  !s.op.spec.isCall &&
+                                  !s.op.spec.isRet &&
+                                  s.op.spec.outputPort == null &&
+                                  s.op.spec.outputMemoryStart == null &&
+                                  s.op.spec.outputMemoryEnd == null;
+        precomputed[statement] = true;
+    }
+
+
+    boolean isSetter(int regFlag, int statement)
+    {
+        int l[] = setters[regFlag];
+        for(int i = 0;i<nSetters[regFlag];i++) {
+            if (l[i] == statement) return true;
+        }
+        return false;
+    }
+
+
+    void addSetter(int regFlag, int statement)
+    {
+        if (nSetters[regFlag] >= setters[regFlag].length) {
+            setters[regFlag] = Arrays.copyOf(setters[regFlag], setters[regFlag].length * 2);
+        }
+        setters[regFlag][nSetters[regFlag]] = statement;
+        nSetters[regFlag]++;
+    }
+
+
+    /*
+    Called right before executing the statement with index "statement" (which
+    must contain a CPU op).
+    */
+    public void instructionExecuted(int statement)
+    {
+        if (!precomputed[statement]) precompute(statement);
+
+        int exchanged[] = exchangedRegFlags[statement];
+        if (exchanged != null) {
+            // Exchange the setters of each pair of registers/flags, and add this
+            // instruction as an additional setter of both:
+            for(int i = 0;i<exchanged.length;i+=2) {
+                int regFlag = exchanged[i];
+                int regFlag2 = exchanged[i+1];
+                int tmp[] = setters[regFlag];
+                setters[regFlag] = setters[regFlag2];
+                setters[regFlag2] = tmp;
+                int tmpN = nSetters[regFlag];
+                nSetters[regFlag] = nSetters[regFlag2];
+                nSetters[regFlag2] = tmpN;
+                if (!isSetter(regFlag, statement)) addSetter(regFlag, statement);
+                if (!isSetter(regFlag2, statement)) addSetter(regFlag2, statement);
+            }
+            potentialUseless[statement] = exchanged.length;
+            return;
+        }
+
+        for(int regFlag:inputRegFlags[statement]) {
+            // The instructions that set this register/flag were useful:
+            int l[] = setters[regFlag];
+            for(int i = 0;i<nSetters[regFlag];i++) {
+                int setter = l[i];
+                potentialUseless[setter] = 0;
+                useful[setter]++;
+                total[setter]++;
+            }
+        }
+        int nEffects = 0;
+        for(int regFlag:outputRegFlags[statement]) {
+            int l[] = setters[regFlag];
+            for(int i = 0;i<nSetters[regFlag];i++) {
+                int setter = l[i];
+                if (potentialUseless[setter] > 0) {
+                    potentialUseless[setter]--;
+                    if (potentialUseless[setter] == 0) {
+                        // instruction was useless:
+                        total[setter]++;
+                    }
+                }
+            }
+            nSetters[regFlag] = 0;
+            addSetter(regFlag, statement);
+            nEffects++;
+        }
+        if (canBeUseless[statement] && nEffects > 0) {
+            potentialUseless[statement] = nEffects;
+        }
+    }
+
+
+    public void report(boolean reportSometimesUselessInstructions)
+    {
+        List<CodeStatement> potentially = new ArrayList<>();
+        List<Integer> useless = new ArrayList<>();
+        List<Integer> sometimesUseless = new ArrayList<>();
+        for(int i = 0;i<statements.size();i++) {
+            if (potentialUseless[i] > 0) potentially.add(statements.get(i));
+            if (total[i] == 0) continue;
+            if (useful[i] == 0) {
+                useless.add(i);
+            } else if (useful[i] < total[i]) {
+                sometimesUseless.add(i);
+            }
+        }
+        Collections.sort(useless, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer s1, Integer s2) {
+                return -Integer.compare(total[s1], total[s2]);
+            }
+        });
+        Collections.sort(sometimesUseless, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer s1, Integer s2) {
+                return Double.compare(useful[s1] / (float)total[s1],
+                                      useful[s2] / (float)total[s2]);
+            }
+        });
+
+        config.info("Useless instruction tracking:");
+        config.info("Potentially useless at execution end: " + potentially.size());
+        for(int i = 0;i<statements.size();i++) {
+            if (potentialUseless[i] > 0) {
+                CodeStatement s = statements.get(i);
+                config.info("  - " + s.sl.fileNameLineString() + ": " + s.op +  " (" + potentialUseless[i] + " values set left)");
+            }
+        }
+        config.info("Always useless: " + useless.size());
+        for(int i:useless) {
+            CodeStatement s = statements.get(i);
+            config.info("  - ("+useful[i]+"/"+total[i]+") " + s.sl.fileNameLineString() + ": " + s.op);
+        }
+        if (reportSometimesUselessInstructions) {
+            config.info("Sometimes useless: " + sometimesUseless.size());
+            for(int i:sometimesUseless) {
+                CodeStatement s = statements.get(i);
+                config.info("  - ("+useful[i]+"/"+total[i]+") " + s.sl.fileNameLineString() + ": " + s.op);
+            }
+        }
+    }
+}
@@ -69,6 +69,23 @@ public class CPUOpPattern {
     }
     
     
+    /*
+    Key used to index the patterns by the op they can start with (see
+    PatternBasedOptimizer.indexPatterns). Returns null if this can match any op.
+    */
+    public String indexKey()
+    {
+        if (isWildcard() || opName.startsWith("?op")) return null;
+        return indexKey(opName, args.size());
+    }
+    
+    
+    public static String indexKey(String opName, int nArgs)
+    {
+        return opName + "/" + nArgs;
+    }
+    
+    
     public List<String> getAllVariables()
     {
         List<String> variables = new ArrayList<>();
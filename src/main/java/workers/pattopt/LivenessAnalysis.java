@@ -0,0 +1,448 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package workers.pattopt;
+
+import cl.MDLConfig;
+import code.CPUOpDependency;
+import code.CodeBase;
+import code.CodeStatement;
+import code.Expression;
+import code.SourceFile;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import util.Pair;
+import util.microprocessor.Z80.CPUConstants;
+import workers.pattopt.ExecutionFlowAnalysis.StatementTransition;
+
+/**
+ *
+ * @author santi
+ *
+ * Whole-program backward liveness analysis of registers and flags, used to
+ * answer "is X used after S" without searching forward through the code
+ * (see "Pattern.depUsedAfter"). Each register or flag that cannot be
+ * partially overwritten (8 bit registers, SP and flags) is a bit in a
+ * "long", and each statement has live-in/live-out bitsets, computed as a
+ * least fixpoint with a worklist over the execution flow graph given by
+ * "SourceFile.nextExecutionStatements" (with the "ret" destinations coming
+ * from the ExecutionFlowAnalysis table).
+ *
+ * Only the transitions that leave the call stack empty are part of the
+ * graph. Statements that change the stack ("call", "rst", "push", "pop",
+ * etc.) are "barriers": what happens after them depends on the stack, so
+ * anything that reaches them alive "may" be used, and only the forward
+ * search can tell. That is why two bitsets are computed: what "may" be
+ * used (which is exact when it says "not used") and what is used "for sure"
+ * (which is exact when it says "used", where "unclear" also counts as
+ * used). Any other case returns "null", and the caller falls back to the
+ * forward search. 16 bit register pairs are answered by looking at both
+ * halves.
+ *
+ * After the code is modified, only the statements touched by the
+ * modification (and those jumping to numeric addresses, as labels might
+ * have moved) are reevaluated, and only the statements from which those can
+ * be reached are recomputed. The "ret" destinations are expensive to
+ * recompute (the whole ExecutionFlowAnalysis table is regenerated), so
+ * they are only checked when a query depends on them: the "must" bitsets do
+ * not look past "ret"s, and "retIn" has the registers/flags that can reach
+ * a "ret" alive.
+ */
+public class LivenessAnalysis {
+    public static final int FLOW_NORMAL = 0;
+    public static final int FLOW_BARRIER = 1;  // the stack changes after this statement
+    public static final int FLOW_UNCLEAR = 2;  // the next statements cannot be determined
+
+    public static final String REGISTER_ATOMS[] = {
+        "A", "F", "B", "C", "D", "E", "H", "L",
+        "A'", "F'", "B'", "C'", "D'", "E'", "H'", "L'",
+        "IXH", "IXL", "IYH", "IYL", "R", "I", "SP"};
+    public static final String REGISTER_PAIRS[][] = {
+        {"BC", "B", "C"}, {"DE", "D", "E"}, {"HL", "H", "L"},
+        {"IX", "IXH", "IXL"}, {"IY", "IYH", "IYL"}};
+
+    public static class Node {
+        CodeStatement s;
+        long use = 0, kill = 0;
+        boolean data = false;
+        boolean ret = false;
+        boolean jumpToAddress = false;
+        int flow = FLOW_UNCLEAR;    // until evaluated
+        boolean flowUpToDate = false;
+        List<StatementTransition> retDestinations = null;
+        List<Node> next = new ArrayList<>();
+        List<Node> previous = new ArrayList<>();
+
+        // Live-in/live-out bitsets:
+        long mayIn = 0, mayOut = 0;
+        long mustIn = 0, mustOut = 0;
+        long retIn = 0, retOut = 0;
+        boolean queued = false;
+
+
+        public Node(CodeStatement a_s)
+        {
+            s = a_s;
+        }
+    }
+
+    MDLConfig config;
+    CPUOpDependency atoms[];
+    HashMap<String, Long> registerMasks = new HashMap<>();
+    HashMap<String, Long> flagMasks = new HashMap<>();
+    long allAtoms = 0;
+
+    HashMap<CodeStatement, Node> nodes = new HashMap<>();
+    HashSet<Node> retNodes = new HashSet<>();
+    HashSet<Node> jumpToAddressNodes = new HashSet<>();
+    boolean retDestinationsUpToDate = true;
+    ArrayDeque<Node> worklist = new ArrayDeque<>();
+    List<CodeStatement> pendingTouched = new ArrayList<>();
+    List<CodeStatement> pendingRemoved = new ArrayList<>();
+
+    // If true, "usedAfter" can update the analysis when the "ret"
+    // destinations need to be checked (otherwise it returns "null"):
+    public boolean updateOnQueries = true;
+
+
+    public LivenessAnalysis(MDLConfig a_config)
+    {
+        config = a_config;
+        List<CPUOpDependency> l = new ArrayList<>();
+        for(String reg:REGISTER_ATOMS) {
+            registerMasks.put(reg, 1L << l.size());
+            l.add(new CPUOpDependency(reg, null, null, null, null));
+        }
+        for(int flag:new int[]{CPUConstants.flag_C, CPUConstants.flag_N,
+                               CPUConstants.flag_PV, CPUConstants.flag_H,
+                               CPUConstants.flag_Z, CPUConstants.flag_S}) {
+            String name = CPUConstants.flagName(flag);
+            flagMasks.put(name, 1L << l.size());
+            l.add(new CPUOpDependency(null, name, null, null, null));
+        }
+        for(String pair[]:REGISTER_PAIRS) {
+            registerMasks.put(pair[0], registerMasks.get(pair[1]) | registerMasks.get(pair[2]));
+        }
+        atoms = l.toArray(new CPUOpDependency[0]);
+        allAtoms = (1L << atoms.length) - 1;
+    }
+
+
+    public void build(CodeBase code)
+    {
+        nodes.clear();
+        retNodes.clear();
+        jumpToAddressNodes.clear();
+        worklist.clear();
+        pendingTouched.clear();
+        pendingRemoved.clear();
+        List<Node> all = new ArrayList<>();
+        for(SourceFile f:code.getSourceFiles()) {
+            for(int i = 0;i<f.getStatements().size();i++) {
+                Node node = getNode(f.getStatements().get(i));
+                evaluateDependencies(node);
+                evaluateFlow(node, f.nextExecutionStatements(i, true, new ArrayList<>(), code), code);
+                all.add(node);
+            }
+        }
+        // Backwards, so most statements are evaluated after their successors:
+        for(int i = all.size()-1;i>=0;i--) {
+            enqueue(all.get(i));
+        }
+        propagate();
+        retDestinationsUpToDate = true;
+    }
+
+
+    Node getNode(CodeStatement s)
+    {
+        Node node = nodes.get(s);
+        if (node == null) {
+            node = new Node(s);
+            nodes.put(s, node);
+        }
+        return node;
+    }
+
+
+    void enqueue(Node node)
+    {
+        if (!node.queued) {
+            node.queued = true;
+            worklist.add(node);
+        }
+    }
+
+
+    /*
+    Recomputes which registers/flags the statement of "node" reads and
+    overwrites.
+    */
+    void evaluateDependencies(Node node)
+    {
+        CodeStatement s = node.s;
+        node.use = 0;
+        node.kill = 0;
+        node.data = s.type == CodeStatement.STATEMENT_DATA_BYTES ||
+                    s.type == CodeStatement.STATEMENT_DATA_WORDS ||
+                    s.type == CodeStatement.STATEMENT_DATA_DOUBLE_WORDS;
+        node.ret = false;
+        node.jumpToAddress = false;
+        if (s.type == CodeStatement.STATEMENT_CPUOP) {
+            for(int i = 0;i<atoms.length;i++) {
+                if (s.op.checkInputDependency(atoms[i])) node.use |= 1L << i;
+                if (s.op.checkOutputDependency(atoms[i]) == null) node.kill |= 1L << i;
+            }
+            if (s.op.isRet()) {
+                node.ret = true;
+            } else {
+                Expression target = s.op.getTargetJumpExpression();
+                if (target != null && target.type != Expression.EXPRESSION_SYMBOL) {
+                    node.jumpToAddress = true;
+                }
+            }
+        }
+        if (node.ret) {
+            retNodes.add(node);
+        } else {
+            retNodes.remove(node);
+        }
+        if (node.jumpToAddress) {
+            jumpToAddressNodes.add(node);
+        } else {
+            jumpToAddressNodes.remove(node);
+        }
+    }
+
+
+    /*
+    Recomputes the next statements of "node" ("next" is the result of
+    "nextExecutionStatements").
+    */
+    void evaluateFlow(Node node, List<Pair<CodeStatement, List<CodeStatement>>> next, CodeBase code)
+    {
+        node.retDestinations = null;
+        if (node.ret) node.retDestinations = code.getStatementPossibleDestinations(node.s);
+        node.flowUpToDate = true;
+        for(Node n:node.next) {
+            n.previous.remove(node);
+        }
+        node.next.clear();
+        if (next == null) {
+            node.flow = FLOW_UNCLEAR;
+            return;
+        }
+        node.flow = FLOW_NORMAL;
+        for(Pair<CodeStatement, List<CodeStatement>> pair:next) {
+            if (pair.getRight() == null || !pair.getRight().isEmpty()) {
+                node.flow = FLOW_BARRIER;
+            }
+        }
+        if (node.flow == FLOW_BARRIER) return;
+        for(Pair<CodeStatement, List<CodeStatement>> pair:next) {
+            Node n = getNode(pair.getLeft());
+            if (!node.next.contains(n)) {
+                node.next.add(n);
+                n.previous.add(node);
+            }
+        }
+    }
+
+
+    /*
+    Runs the worklist until a fixpoint is reached.
+    */
+    void propagate()
+    {
+        while(!worklist.isEmpty()) {
+            Node node = worklist.poll();
+            node.queued = false;
+            long mayOut = 0, mustOut = 0, retOut = 0;
+            if (node.flow == FLOW_UNCLEAR) {
+                mayOut = allAtoms;
+                mustOut = allAtoms;
+            } else if (node.flow == FLOW_BARRIER) {
+                mayOut = allAtoms;
+            } else {
+                for(Node n:node.next) {
+                    mayOut |= n.mayIn;
+                    mustOut |= n.mustIn;
+                    retOut |= n.retIn;
+                }
+            }
+            if (node.ret) {
+                // So that "must" does not depend on the "ret" destinations:
+                mustOut = 0;
+            }
+            long mayIn = node.use | (mayOut & ~node.kill);
+            long mustIn = node.use | (mustOut & ~node.kill);
+            long retIn = retOut & ~node.kill;
+            if (node.data) {
+                mayIn = allAtoms;
+                mustIn = allAtoms;
+                retIn = 0;
+            } else if (node.ret) {
+                retIn = allAtoms;
+            }
+            node.mayOut = mayOut;
+            node.mustOut = mustOut;
+            node.retOut = retOut;
+            if (mayIn != node.mayIn || mustIn != node.mustIn || retIn != node.retIn) {
+                node.mayIn = mayIn;
+                node.mustIn = mustIn;
+                node.retIn = retIn;
+                for(Node n:node.previous) {
+                    enqueue(n);
+                }
+            }
+        }
+    }
+
+
+    /*
+    To be called after the code is modified: "touched" are the statements
+    that were modified, added or removed, or that are right before/after
+    them (see "LivenessCache.statementsTouchedBy"), and "removed" those that
+    were removed. The analysis is not updated until "update" is called.
+    */
+    public void statementsChanged(List<CodeStatement> touched, List<CodeStatement> removed)
+    {
+        pendingTouched.addAll(touched);
+        pendingRemoved.addAll(removed);
+    }
+
+
+    /*
+    Brings the analysis up to date with the changes reported via
+    "statementsChanged" (the addresses and execution flow of "code" must
+    have been reset already), except for the "ret" destinations, which are
+    checked only when needed (see "updateRetDestinations").
+    */
+    public void update(CodeBase code)
+    {
+        if (pendingTouched.isEmpty() && pendingRemoved.isEmpty()) return;
+        List<Node> changed = new ArrayList<>();
+        for(CodeStatement s:pendingRemoved) {
+            if (s.source.getStatements().contains(s)) continue;
+            Node node = nodes.remove(s);
+            if (node == null) continue;
+            for(Node n:node.next) {
+                n.previous.remove(node);
+            }
+            retNodes.remove(node);
+            jumpToAddressNodes.remove(node);
+            changed.addAll(node.previous);
+        }
+        for(CodeStatement s:pendingTouched) {
+            if (!nodes.containsKey(s) && pendingRemoved.contains(s)) continue;
+            Node node = getNode(s);
+            changed.add(node);
+            changed.addAll(node.previous);
+        }
+        changed.addAll(jumpToAddressNodes);
+        pendingTouched.clear();
+        pendingRemoved.clear();
+        retDestinationsUpToDate = false;
+        reevaluate(changed, code);
+    }
+
+
+    /*
+    Reevaluates the "ret"s whose destinations changed since they were last
+    evaluated.
+    */
+    public void updateRetDestinations(CodeBase code)
+    {
+        List<Node> changed = new ArrayList<>();
+        for(Node node:retNodes) {
+            List<StatementTransition> destinations = code.getStatementPossibleDestinations(node.s);
+            if (!node.flowUpToDate ||
+                (destinations != node.retDestinations &&
+                 (destinations == null || !destinations.equals(node.retDestinations)))) {
+                changed.add(node);
+            }
+        }
+        retDestinationsUpToDate = true;
+        reevaluate(changed, code);
+    }
+
+
+    /*
+    Reevaluates the "changed" statements, and recomputes all the statements
+    from which they can be reached. The next statements of "ret"s are only
+    reevaluated if their destinations are up to date.
+    */
+    void reevaluate(List<Node> changed, CodeBase code)
+    {
+        HashSet<Node> reevaluated = new HashSet<>();
+        for(Node node:changed) {
+            if (nodes.get(node.s) != node || !reevaluated.add(node)) continue;
+            evaluateDependencies(node);
+            if (node.ret && !retDestinationsUpToDate) {
+                node.flowUpToDate = false;
+            } else {
+                evaluateFlow(node, node.s.source.nextExecutionStatements(node.s, true, new ArrayList<>(), code), code);
+            }
+        }
+        List<Node> open = new ArrayList<>(reevaluated);
+        HashSet<Node> closed = new HashSet<>(reevaluated);
+        while(!open.isEmpty()) {
+            Node node = open.remove(open.size()-1);
+            node.mayIn = 0;
+            node.mustIn = 0;
+            node.retIn = 0;
+            enqueue(node);
+            for(Node n:node.previous) {
+                if (closed.add(n)) open.add(n);
+            }
+        }
+        propagate();
+    }
+
+
+    long dependencyMask(CPUOpDependency dep)
+    {
+        if (dep.port != null || dep.memoryStart != null || dep.memoryEnd != null) return 0;
+        Long mask = null;
+        if (dep.register != null && dep.flag == null) {
+            mask = registerMasks.get(dep.register);
+        } else if (dep.flag != null && dep.register == null) {
+            mask = flagMasks.get(dep.flag);
+        }
+        if (mask == null) return 0;
+        return mask;
+    }
+
+
+    /*
+    Same as "Pattern.depUsedAfter", except that it returns "null" also when
+    the analysis cannot tell, in which case the caller needs to fall back to
+    "Pattern.depUsedAfter". Returns "true" in some of the cases where
+    "Pattern.depUsedAfter" would return "null" (which callers also treat as
+    "used").
+    */
+    public Boolean usedAfter(CodeStatement s, CPUOpDependency dep, CodeBase code)
+    {
+        long mask = dependencyMask(dep);
+        if (mask == 0) return null;
+        Node node = nodes.get(s);
+        if (node == null) return null;
+        if (node.ret && !retDestinationsUpToDate) {
+            if (!updateOnQueries) return null;
+            updateRetDestinations(code);
+        }
+        if (node.flow == FLOW_UNCLEAR) return true;
+        if (node.flow == FLOW_BARRIER) return null;
+        if ((node.mustOut & mask) != 0) return true;
+        if ((node.retOut & mask) != 0 && !retDestinationsUpToDate) {
+            if (!updateOnQueries) return null;
+            updateRetDestinations(code);
+        }
+        if ((node.mayOut & mask) == 0) return false;
+        return null;
+    }
+}
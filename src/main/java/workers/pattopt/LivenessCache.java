@@ -0,0 +1,222 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package workers.pattopt;
+
+import code.CPUOpDependency;
+import code.CodeBase;
+import code.CodeStatement;
+import code.Expression;
+import code.SourceFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import util.Pair;
+import workers.pattopt.ExecutionFlowAnalysis.StatementTransition;
+
+/**
+ *
+ * @author santi
+ *
+ * Cache of the results of "Pattern.depUsedAfter" during pattern-based
+ * optimization, keyed by (statement, dependency, call stack). The same
+ * queries are repeated for many patterns at the same line, and for the
+ * lines the optimizer looks ahead, so they are only computed once.
+ *
+ * Each entry records the statements examined when computing it. When an
+ * optimization is applied, only the entries that examined a statement
+ * touched by it are discarded (those are the entries of the statements
+ * from which the modified code can be reached). The destinations of
+ * "ret" statements come from a table computed for the whole program, so
+ * entries that used them are instead validated when retrieved, checking
+ * the destinations are still the same. Entries that depend on the value
+ * of labels (jumps to numeric addresses) are not cached.
+ *
+ * If "analysis" is set, it is consulted before searching (see
+ * "LivenessAnalysis"), and it is updated together with the cache.
+ */
+public class LivenessCache {
+    public static final int MAX_REFERENCES = 4 * 1024 * 1024;
+
+    public static class Entry {
+        DepCheckNode key;
+        Boolean result = null;
+        boolean cacheable = true;
+        List<CodeStatement> examined = new ArrayList<>();
+        List<Pair<CodeStatement, List<StatementTransition>>> retDestinations = new ArrayList<>();
+
+
+        public Entry(CodeStatement s, CPUOpDependency dep, List<CodeStatement> callStack)
+        {
+            key = new DepCheckNode(s, dep, callStack);
+        }
+
+
+        /*
+        Called each time the next statements after "s" are about to be determined.
+        */
+        public void examine(CodeStatement s, List<CodeStatement> callStack, CodeBase code)
+        {
+            if (!cacheable) return;
+            examined.add(s);
+            if (s.type != CodeStatement.STATEMENT_CPUOP) return;
+            if (s.op.isRet()) {
+                if (callStack != null && callStack.isEmpty()) {
+                    retDestinations.add(Pair.of(s, code.getStatementPossibleDestinations(s)));
+                }
+            } else {
+                Expression target = s.op.getTargetJumpExpression();
+                if (target != null && target.type != Expression.EXPRESSION_SYMBOL) {
+                    cacheable = false;
+                }
+            }
+        }
+    }
+
+    public LivenessAnalysis analysis = null;
+    HashMap<CodeStatement, List<Entry>> entries = new HashMap<>();
+    HashMap<CodeStatement, List<Entry>> entriesThatExamined = new HashMap<>();
+    int nReferences = 0;
+
+    // Statistics:
+    public long nQueries = 0, nHits = 0;
+
+
+    synchronized public Entry get(CodeStatement s, CPUOpDependency dep, List<CodeStatement> callStack, CodeBase code)
+    {
+        nQueries++;
+        List<Entry> l = entries.get(s);
+        if (l == null) return null;
+        for(int i = 0;i<l.size();i++) {
+            Entry entry = l.get(i);
+            if (entry.key.match(dep, callStack)) {
+                for(Pair<CodeStatement, List<StatementTransition>> pair:entry.retDestinations) {
+                    List<StatementTransition> destinations = code.getStatementPossibleDestinations(pair.getLeft());
+                    if (destinations != pair.getRight() &&
+                        (destinations == null || !destinations.equals(pair.getRight()))) {
+                        l.remove(i);
+                        return null;
+                    }
+                }
+                nHits++;
+                return entry;
+            }
+        }
+        return null;
+    }
+
+
+    synchronized public void add(Entry entry)
+    {
+        if (!entry.cacheable) return;
+        if (nReferences > MAX_REFERENCES) clear();
+        List<Entry> l = entries.get(entry.key.s);
+        if (l == null) {
+            l = new ArrayList<>();
+            entries.put(entry.key.s, l);
+        }
+        l.add(entry);
+        for(CodeStatement s:entry.examined) {
+            List<Entry> l2 = entriesThatExamined.get(s);
+            if (l2 == null) {
+                l2 = new ArrayList<>();
+                entriesThatExamined.put(s, l2);
+            }
+            l2.add(entry);
+        }
+        nReferences += entry.examined.size() + 1;
+    }
+
+
+    synchronized public void clear()
+    {
+        entries.clear();
+        entriesThatExamined.clear();
+        nReferences = 0;
+    }
+
+
+    /*
+    Returns the statements that applying "match" to "f" will touch (to be
+    called before applying it, see "invalidate"): the statements in the
+    match (removed or kept), and the statements around them whose next
+    statements might change (the one right before, the "include" statement
+    of "f" if the match is at the very beginning of the file, and those
+    right after, up to the first non-empty one, as "push" looks back at the
+    previous statements to see if a label is being pushed).
+    */
+    public static List<CodeStatement> statementsTouchedBy(SourceFile f, PatternMatch match)
+    {
+        List<CodeStatement> statements = new ArrayList<>();
+        for(List<CodeStatement> l2:match.map.values()) {
+            statements.addAll(l2);
+        }
+        return statementsTouchedBy(f, statements);
+    }
+
+
+    /*
+    Same as above, but for an arbitrary list of statements of "f" that is
+    going to be modified.
+    */
+    public static List<CodeStatement> statementsTouchedBy(SourceFile f, List<CodeStatement> statements)
+    {
+        List<CodeStatement> touched = new ArrayList<>();
+        List<CodeStatement> l = f.getStatements();
+        int start = -1, end = -1;
+        for(CodeStatement s:statements) {
+            touched.add(s);
+            int idx = l.indexOf(s);
+            if (idx < 0) continue;
+            if (start == -1 || idx < start) start = idx;
+            if (idx > end) end = idx;
+        }
+        if (start == -1) return touched;
+        if (start > 0) {
+            touched.add(l.get(start - 1));
+        } else if (f.parentInclude != null) {
+            touched.add(f.parentInclude);
+        }
+        for(int i = start;i<l.size();i++) {
+            CodeStatement s = l.get(i);
+            touched.add(s);
+            if (i > end && !s.isEmptyAllowingComments()) break;
+        }
+        return touched;
+    }
+
+
+    /*
+    Same as below, for the statements added/removed when applying "match".
+    */
+    public void invalidate(List<CodeStatement> touched, PatternMatch match, CodeBase code)
+    {
+        invalidate(touched, match.added, match.removed, code);
+    }
+
+
+    /*
+    Discards the entries that examined any of the "touched" statements
+    (see "statementsTouchedBy"), plus any statements "added", and updates
+    "analysis" (the addresses and execution flow of "code" must have been
+    reset already).
+    */
+    synchronized public void invalidate(List<CodeStatement> touched, List<CodeStatement> added,
+                                        List<CodeStatement> removed, CodeBase code)
+    {
+        touched.addAll(added);
+        if (analysis != null) {
+            analysis.statementsChanged(touched, removed);
+            analysis.update(code);
+        }
+        for(CodeStatement s:touched) {
+            List<Entry> l = entriesThatExamined.remove(s);
+            if (l == null) continue;
+            for(Entry entry:l) {
+                List<Entry> l2 = entries.get(entry.key.s);
+                if (l2 != null) l2.remove(entry);
+            }
+        }
+    }
+}
@@ -951,7 +951,7 @@ public class Pattern {
                 for(int i = 1;i<constraint.args.length;i++) {
                     String reg = constraint.args[i];
                     CodeStatement s = match.map.get(idx).get(match.map.get(idx).size()-1);
-                    Boolean result = regUsedAfter(s, reg, f, code);
+                    Boolean result = regUsedAfter(s, reg, f, code, pbo == null ? null:pbo.livenessCache);
                     if (result == null) {
                         maybeLogOptimization(match, pbo, f.getStatements().get(index_to_display_message_on).sl);
                         return false;
@@ -968,7 +968,7 @@ public class Pattern {
                 for(int i = 1;i<constraint.args.length;i++) {
                     String flag = constraint.args[i].replace(" ", "");   // this is because the P/V flag, otherwise, it's generated as "P / V" and there is no match
 
-                    Boolean result = flagUsedAfter(match.map.get(idx).get(match.map.get(idx).size()-1), flag, f, code);
+                    Boolean result = flagUsedAfter(match.map.get(idx).get(match.map.get(idx).size()-1), flag, f, code, pbo == null ? null:pbo.livenessCache);
                     if (result == null) {
                         maybeLogOptimization(match, pbo, f.getStatements().get(index_to_display_message_on).sl);
                         return false;
@@ -1501,7 +1501,7 @@ public class Pattern {
                 // Check that they are not used:
                 for(CPUOpDependency d:regFlagOutputDeps) {
                     if (d.register != null) {
-                        Boolean result = regUsedAfter(s2, d.register, f, code);
+                        Boolean result = regUsedAfter(s2, d.register, f, code, pbo == null ? null:pbo.livenessCache);
                         if (result == null) {
                             maybeLogOptimization(match, pbo, f.getStatements().get(index_to_display_message_on).sl);
                             return false;
@@ -1509,7 +1509,7 @@ public class Pattern {
                             if (result) return false;
                         }
                     } else if (d.flag != null) {
-                        Boolean result = flagUsedAfter(s2, d.flag, f, code);
+                        Boolean result = flagUsedAfter(s2, d.flag, f, code, pbo == null ? null:pbo.livenessCache);
                         if (result == null) {
                             maybeLogOptimization(match, pbo, f.getStatements().get(index_to_display_message_on).sl);
                             return false;
@@ -1858,25 +1858,65 @@ public class Pattern {
     
     
     public static Boolean regUsedAfter(CodeStatement s, String reg, SourceFile f, CodeBase code)
+    {
+        return regUsedAfter(s, reg, f, code, null);
+    }
+
+
+    public static Boolean regUsedAfter(CodeStatement s, String reg, SourceFile f, CodeBase code, LivenessCache cache)
     {
         CPUOpDependency dep = new CPUOpDependency(reg.toUpperCase(), null, null, null, null);
-        return depUsedAfter(s, dep, f, code);
+        return depUsedAfter(s, dep, f, code, cache);
     }
 
 
     public static Boolean flagUsedAfter(CodeStatement s, String flag, SourceFile f, CodeBase code)
+    {
+        return flagUsedAfter(s, flag, f, code, null);
+    }
+
+
+    public static Boolean flagUsedAfter(CodeStatement s, String flag, SourceFile f, CodeBase code, LivenessCache cache)
     {
         CPUOpDependency dep = new CPUOpDependency(null, flag.toUpperCase(), null, null, null);
-        return depUsedAfter(s, dep, f, code);
+        return depUsedAfter(s, dep, f, code, cache);
     }
 
 
+    public static Boolean depUsedAfter(CodeStatement s, CPUOpDependency a_dep, SourceFile f, CodeBase code)
+    {
+        return depUsedAfter(s, a_dep, f, code, null);
+    }
+
+    
     // - returns true/false if we know for sure the dependency is or not used
     // - returns null when it's unclear
-    public static Boolean depUsedAfter(CodeStatement s, CPUOpDependency a_dep, SourceFile f, CodeBase code)
+    // - "cache" can be null (no caching), and if it has a "LivenessAnalysis",
+    //   the search is only done when the analysis cannot tell
+    public static Boolean depUsedAfter(CodeStatement s, CPUOpDependency a_dep, SourceFile f, CodeBase code, LivenessCache cache)
+    {
+        if (cache == null) return depUsedAfterInternal(s, a_dep, f, code, null);
+        if (cache.analysis != null) {
+            Boolean used = cache.analysis.usedAfter(s, a_dep, code);
+            if (used != null) return used;
+        }
+        List<CodeStatement> callStack = new ArrayList<>();
+        LivenessCache.Entry entry = cache.get(s, a_dep, callStack, code);
+        if (entry == null) {
+            entry = new LivenessCache.Entry(s, a_dep, callStack);
+            entry.result = depUsedAfterInternal(s, a_dep, f, code, entry);
+            cache.add(entry);
+        }
+        return entry.result;
+    }
+
+
+    // - "entry" (if not null) records the statements examined
+    static Boolean depUsedAfterInternal(CodeStatement s, CPUOpDependency a_dep, SourceFile f, CodeBase code, LivenessCache.Entry entry)
     {
         List<DepCheckNode> open = new ArrayList<>();
         HashMap<CodeStatement,List<DepCheckNode>> closed = new HashMap<>();
+        if (entry != null) entry.examine(s, new ArrayList<>(), code);
         List<Pair<CodeStatement, List<CodeStatement>>> tmp = f.nextExecutionStatements(s, true, new ArrayList<>(), code);
         if (tmp == null) {
             // It's hard to tell where is this instruction going to jump,
@@ -1896,6 +1936,7 @@ public class Pattern {
             CodeStatement next = node.s;
             CPUOpDependency dep = node.dep;
             List<CodeStatement> callStack = node.callStack;
+            if (entry != null) entry.examine(next, callStack, code);
             // config.trace("    "+next.sl.lineNumber+": "+next);
 
             if (next.type == CodeStatement.STATEMENT_CPUOP) {
@@ -9,12 +9,16 @@ import java.util.List;
 
 import cl.MDLConfig;
 import cl.OptimizationResult;
+import code.CPUOp;
+import code.CPUOpSpec;
 import code.CodeBase;
 import code.SourceFile;
 import code.CodeStatement;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.commons.io.FilenameUtils;
 import util.Pair;
 import util.Resources;
@@ -33,6 +37,7 @@ public class PatternBasedOptimizer implements MDLWorker {
     public boolean logPotentialOptimizations = false;    
     public boolean onlyOnePotentialOptimizationPerLine = true;
     public boolean preventLabelDependentOptimizations = false;
+    public boolean usePatternIndex = true;  // only disabled to test the index does not change the result
     
     MDLConfig config;
     MDLConfig patternsConfig;   // we have a separate configuration, as the assembler used to define the patterns
@@ -41,9 +46,17 @@ public class PatternBasedOptimizer implements MDLWorker {
     boolean silent = false;
     int nPasses = 2;
     int stopAfter = -1;
+    int nThreads = 1;
     String inputPatternsFileName = null;
     List<Pattern> patterns = new ArrayList<>();
     
+    // Patterns indexed by the op they can start with (see "indexPatterns"):
+    HashMap<String, List<Pattern>> patternsByFirstOp = new HashMap<>();
+    List<Pattern> patternsWithAnyFirstOp = new ArrayList<>();
+    // Concurrent, as it is filled lazily by the "-po-threads" matching threads (ops can come
+    // from the code or from the patterns, so the specs are not all known in advance):
+    ConcurrentHashMap<CPUOpSpec, List<Pattern>> candidatePatternsCache = new ConcurrentHashMap<>();
+    
     // Some optimizations depend on certain labels to have specific values. After applying them,
     // we need to ensure that other optimizations to not change those values and make the code incorrect.
     // These lists accumulate conditions that previous optimizations assume, to make sure subsequent 
@@ -51,10 +64,30 @@ public class PatternBasedOptimizer implements MDLWorker {
     List<EqualityConstraint> equalitiesToMaintain = new ArrayList<>();
     public boolean alreadyShownAPotentialOptimization = false;
     
-    HashSet<CodeStatement> statementsWhereIXIsSP = null;
-    HashSet<CodeStatement> statementsWhereIYIsSP = null;
+    volatile HashSet<CodeStatement> statementsWhereIXIsSP = null;
+    volatile HashSet<CodeStatement> statementsWhereIYIsSP = null;
     
     List<PatternMatch> appliedOptimizations = new ArrayList<>();
+    
+    // Cache of the register/flag liveness queries done while matching
+    // (only while "optimize" is running, null otherwise):
+    LivenessCache livenessCache = null;
+    
+    /*
+    Parallel matching ("-po-threads"): the matches starting at a window of
+    consecutive lines are found in parallel, all on the same version of the
+    code, and then consumed in order by the optimization loop. Applying an
+    optimization discards the window, so the matches used are exactly the
+    ones the serial loop would have found, and the result is the same.
+    The window starts at one line per thread, and doubles each time it is
+    fully consumed (up to MAX_LINES_PER_THREAD lines per thread), as long
+    stretches of code with no optimizations are common.
+    */
+    public static final int MAX_LINES_PER_THREAD = 32;
+    SourceFile windowFile = null;
+    boolean windowLastPass = false;
+    int windowStart = 0;
+    List<List<PatternMatch>> windowMatches = null;
 
 
     public PatternBasedOptimizer(MDLConfig a_config)
@@ -77,7 +110,8 @@ public class PatternBasedOptimizer implements MDLWorker {
                                      "'data/pbo-patterns-size.txt'. Notice that some dialects might change the default, for example, the " +
                                      "sdcc dialect sets the default to 'data/pbo-patterns-sdcc-speed.txt'\n" +
                "- ```-po-ldo```: some pattern-based optimizations depend on the specific value that some labels take ('label-dependent optimizations', ldo). These might be dangerous for code that is still in development. This flag prevents those from being generated by MDL.\n" +
-               "- ```-po-stop-after <n>```: Stops optimizing after n optimizations. This is useful for debugging, if there is any optimization that breaks the code, to help locate it.\n";
+               "- ```-po-stop-after <n>```: Stops optimizing after n optimizations. This is useful for debugging, if there is any optimization that breaks the code, to help locate it.\n" +
+               "- ```-po-threads <n>```: Sets the number of threads to use to find pattern matches (default 1). The optimizations applied are the same as with a single thread. This is ignored when using ```-popotential```/```-popotential-all```.\n";
     }
 
     @Override
@@ -150,6 +184,20 @@ public class PatternBasedOptimizer implements MDLWorker {
             }
             return true;
         }
+        if (flags.get(0).equals("-po-threads") && flags.size()>=2) {
+            flags.remove(0);
+            String tmp = flags.remove(0);
+            if (!config.tokenizer.isInteger(tmp)) {
+                config.error("Invalid argument to -po-threads: " + tmp);
+                return false;
+            }
+            nThreads = Integer.parseInt(tmp);
+            if (nThreads <= 0) {
+                config.error("Invalid argument to -po-threads: " + tmp + " (number of threads must be a positive integer)");
+                return false;
+            }
+            return true;
+        }
         return false;
     }
 
@@ -173,6 +221,47 @@ public class PatternBasedOptimizer implements MDLWorker {
         patternsConfig.tokenizer.allowDashPlusLabels = config.tokenizer.allowDashPlusLabels;
         
         loadPatterns(inputPatternsFileName);
+        indexPatterns();
+    }
+    
+    
+    /*
+    Indexes the patterns by the op their first line can match, so that each
+    line of code is only matched against the patterns that could start with
+    it. Each candidate list keeps the patterns in the same order as in
+    "patterns", as that order is used to break ties when selecting matches.
+    */
+    void indexPatterns()
+    {
+        patternsByFirstOp.clear();
+        patternsWithAnyFirstOp.clear();
+        candidatePatternsCache.clear();
+        for(Pattern p:patterns) {
+            String key = usePatternIndex ? p.pattern.get(0).indexKey():null;
+            if (key == null) {
+                patternsWithAnyFirstOp.add(p);
+                for(List<Pattern> l:patternsByFirstOp.values()) l.add(p);
+            } else {
+                List<Pattern> l = patternsByFirstOp.get(key);
+                if (l == null) {
+                    l = new ArrayList<>(patternsWithAnyFirstOp);
+                    patternsByFirstOp.put(key, l);
+                }
+                l.add(p);
+            }
+        }
+    }
+    
+    
+    List<Pattern> getCandidatePatterns(CPUOp op)
+    {
+        List<Pattern> l = candidatePatternsCache.get(op.spec);
+        if (l == null) {
+            l = patternsByFirstOp.get(CPUOpPattern.indexKey(op.spec.opName, op.args.size()));
+            if (l == null) l = patternsWithAnyFirstOp;
+            candidatePatternsCache.putIfAbsent(op.spec, l);
+        }
+        return l;
     }
     
     
@@ -304,6 +393,14 @@ public class PatternBasedOptimizer implements MDLWorker {
     public OptimizationResult optimize(CodeBase code) {        
         initPatterns();
         OptimizationResult r = new OptimizationResult();
+        livenessCache = new LivenessCache();
+        if (!logPotentialOptimizations) {
+            // (when logging potential optimizations we need to know which
+            // liveness queries are unclear, which only the search tells)
+            livenessCache.analysis = new LivenessAnalysis(config);
+            livenessCache.analysis.updateOnQueries = nThreads <= 1;
+            livenessCache.analysis.build(code);
+        }
         
         // Finding the optimal set of optimizations would require systematic search,
         // which would be unfeasible computationally. So, just use a simple heuristic to
@@ -328,6 +425,9 @@ public class PatternBasedOptimizer implements MDLWorker {
             }
             if (done) break;
         }
+        windowMatches = null;
+        config.debug("PatternBasedOptimizer: liveness cache hits: " + livenessCache.nHits + " / " + livenessCache.nQueries);
+        livenessCache = null;
         
         code.resetAddressesAndFlow();
 
@@ -344,7 +444,10 @@ public class PatternBasedOptimizer implements MDLWorker {
     
     public void getMatchesStartingFromLine(SourceFile f, int i, List<PatternMatch> matches, boolean lastPass, CodeBase code)
     {
-        for(Pattern patt: patterns) {
+        CodeStatement s = f.getStatements().get(i);
+        // Patterns can only start matching at a CPU op:
+        if (s.type != CodeStatement.STATEMENT_CPUOP) return;
+        for(Pattern patt: getCandidatePatterns(s.op)) {
             PatternMatch match = patt.match(i, f, code, false, false, this);
             if (match != null &&
                 preventLabelDependentOptimizations &&
@@ -361,6 +464,73 @@ public class PatternBasedOptimizer implements MDLWorker {
     }
     
     
+    /*
+    Same as "getMatchesStartingFromLine", but when using several threads, the
+    matches are taken from the current window of lines matched in parallel
+    (creating a new window starting at line "i" if needed).
+    */
+    void findMatchesStartingFromLine(SourceFile f, int i, List<PatternMatch> matches, boolean lastPass, CodeBase code)
+    {
+        // Potential optimizations are logged while matching, so they need to be found in order:
+        if (nThreads <= 1 || logPotentialOptimizations) {
+            getMatchesStartingFromLine(f, i, matches, lastPass, code);
+            return;
+        }
+        if (windowMatches == null || windowFile != f || windowLastPass != lastPass ||
+            i < windowStart || i >= windowStart + windowMatches.size()) {
+            int size = nThreads;
+            if (windowMatches != null && windowFile == f && windowLastPass == lastPass &&
+                i == windowStart + windowMatches.size()) {
+                // The previous window was fully consumed:
+                size = Math.min(windowMatches.size() * 2, nThreads * MAX_LINES_PER_THREAD);
+            }
+            size = Math.min(size, f.getStatements().size() - i);
+            windowFile = f;
+            windowLastPass = lastPass;
+            windowStart = i;
+            windowMatches = matchWindowInParallel(f, i, size, lastPass, code);
+            if (windowMatches == null) {
+                getMatchesStartingFromLine(f, i, matches, lastPass, code);
+                return;
+            }
+        }
+        matches.addAll(windowMatches.get(i - windowStart));
+    }
+    
+    
+    /*
+    Returns the matches starting at each of the "size" lines starting from
+    "start", or null if any of the threads failed (in which case, matching is
+    redone in the current thread, so that any error is reported as usual).
+    */
+    List<List<PatternMatch>> matchWindowInParallel(SourceFile f, int start, int size, boolean lastPass, CodeBase code)
+    {
+        List<List<PatternMatch>> matches = new ArrayList<>();
+        for(int i = 0;i<size;i++) matches.add(new ArrayList<>());
+        int n = Math.min(nThreads, size);
+        // The current thread takes care of the first share of the lines:
+        PatternMatchingThread threads[] = new PatternMatchingThread[n];
+        for(int i = 0;i<n;i++) {
+            threads[i] = new PatternMatchingThread(this, f, code, lastPass, start, i, n, matches);
+            if (i > 0) threads[i].start();
+        }
+        threads[0].run();
+        try {
+            for(int i = 1;i<n;i++) threads[i].join();
+        } catch (InterruptedException e) {
+            config.error("PatternBasedOptimizer: interrupted while matching patterns: " + e);
+            return null;
+        }
+        for(PatternMatchingThread thread:threads) {
+            if (thread.exception != null) {
+                config.debug("PatternBasedOptimizer: parallel matching failed: " + thread.exception);
+                return null;
+            }
+        }
+        return matches;
+    }
+    
+    
     // Returns whether any optimization was done:
     public boolean optimizeStartingFromLine(SourceFile f, int i, CodeBase code, OptimizationResult r, boolean lastPass)
     {
@@ -371,7 +541,7 @@ public class PatternBasedOptimizer implements MDLWorker {
         if (!lastPass) alreadyShownAPotentialOptimization = true;
 
         List<PatternMatch> matches = new ArrayList<>();
-        getMatchesStartingFromLine(f, i, matches, lastPass, code);
+        findMatchesStartingFromLine(f, i, matches, lastPass, code);
         
         if (!matches.isEmpty()) {
             // Look for patterns that match in the lines that will be modified beyond line "i",
@@ -390,7 +560,7 @@ public class PatternBasedOptimizer implements MDLWorker {
             }
             lastMatchedLine = Math.min(i+maximumLookAhead, lastMatchedLine);
             for(int ii = i+1; ii<=lastMatchedLine;ii++) {
-                getMatchesStartingFromLine(f, ii, matches, lastPass, code);
+                findMatchesStartingFromLine(f, ii, matches, lastPass, code);
             }
         }
         
@@ -442,10 +612,16 @@ public class PatternBasedOptimizer implements MDLWorker {
                     statementToDisplayMessageOn = f.getStatements().get(i);
                 }
 
-                if (bestPatt != null && 
-                    bestPatt.apply(f, bestMatch, code, equalitiesToMaintain)) {
+                // The statements touched need to be determined before applying the pattern
+                // (even if it is undone, as the undo does not restore everything):
+                List<CodeStatement> touched = null;
+                if (livenessCache != null) touched = LivenessCache.statementsTouchedBy(f, bestMatch);
+                boolean applied = bestPatt != null && bestPatt.apply(f, bestMatch, code, equalitiesToMaintain);
+                if (livenessCache != null) livenessCache.invalidate(touched, bestMatch, code);
+                if (applied) {
                     statementsWhereIXIsSP = null;
                     statementsWhereIYIsSP = null;
+                    windowMatches = null;
                     if (config.isInfoEnabled() && !silent) {
                         int bytesSaved = bestPatt.getSpaceSaving(bestMatch, code);
                         String timeSavedString = bestPatt.getTimeSavingString(bestMatch, code);
@@ -523,10 +699,12 @@ public class PatternBasedOptimizer implements MDLWorker {
     - Search for occurrences of "ld ix, 0", "add ix, sp" (and the same for "iy")
     - Then records the set of instructions for which ix retains the value of sp
     */
-    public void searchStatementsWhereIXIYAreSP(CodeBase code)
+    synchronized public void searchStatementsWhereIXIYAreSP(CodeBase code)
     {
-        statementsWhereIXIsSP = new LinkedHashSet<>();
-        statementsWhereIYIsSP = new LinkedHashSet<>();
+        // Another pattern matching thread might have done it already:
+        if (statementsWhereIXIsSP != null) return;
+        HashSet<CodeStatement> ixSP = new LinkedHashSet<>();
+        HashSet<CodeStatement> iySP = new LinkedHashSet<>();
         
         for(SourceFile f:code.getSourceFiles()) {
             for(CodeStatement s:f.getStatements()) {
@@ -534,17 +712,20 @@ public class PatternBasedOptimizer implements MDLWorker {
                     CodeStatement s2 = SPAssignedToRegister(s, "ix", code);
                     if (s2 != null) {
                         config.debug("searchStatementsWhereIXIYAreSP ix match at " + s.sl);
-                        markSPAssignedToRegisterStartingFrom(s2, "ix", statementsWhereIXIsSP, code);
+                        markSPAssignedToRegisterStartingFrom(s2, "ix", ixSP, code);
                     } else {
                         s2 = SPAssignedToRegister(s, "iy", code);
                         if (s2 != null) {
                             config.debug("searchStatementsWhereIXIYAreSP iy match at " + s.sl);
-                            markSPAssignedToRegisterStartingFrom(s2, "iy", statementsWhereIYIsSP, code);
+                            markSPAssignedToRegisterStartingFrom(s2, "iy", iySP, code);
                         }
                     }
                 }
             }
         }
+        // "iy" first, as the other threads only check "statementsWhereIXIsSP":
+        statementsWhereIYIsSP = iySP;
+        statementsWhereIXIsSP = ixSP;
 //        for(CodeStatement s:statementsWhereIXIsSP) {
 //            config.info("ix: " + s.sl);
 //        }
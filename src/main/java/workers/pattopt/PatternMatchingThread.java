@@ -0,0 +1,56 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package workers.pattopt;
+
+import code.CodeBase;
+import code.SourceFile;
+import java.util.List;
+
+/**
+ *
+ * @author santi
+ *
+ * Finds the pattern matches starting at a subset of the lines of a window
+ * of consecutive lines of a source file ("-po-threads"): lines
+ * start+first, start+first+step, start+first+2*step, etc. The code is not
+ * modified while the threads are running, so all of them see the same
+ * version of the code (and of the execution flow tables).
+ */
+public class PatternMatchingThread extends Thread {
+    PatternBasedOptimizer pbo;
+    SourceFile f;
+    CodeBase code;
+    boolean lastPass;
+    int start, first, step;
+    List<List<PatternMatch>> matches;   // one list per line in the window
+    Exception exception = null;
+
+
+    public PatternMatchingThread(PatternBasedOptimizer a_pbo, SourceFile a_f, CodeBase a_code, boolean a_lastPass,
+                                 int a_start, int a_first, int a_step, List<List<PatternMatch>> a_matches)
+    {
+        pbo = a_pbo;
+        f = a_f;
+        code = a_code;
+        lastPass = a_lastPass;
+        start = a_start;
+        first = a_first;
+        step = a_step;
+        matches = a_matches;
+    }
+
+
+    @Override
+    public void run()
+    {
+        try {
+            for(int i = first;i<matches.size();i+=step) {
+                pbo.getMatchesStartingFromLine(f, start + i, matches.get(i), lastPass, code);
+            }
+        } catch (Exception e) {
+            exception = e;
+        }
+    }
+}
@@ -12,5 +12,18 @@ import cl.MDLConfig;
  * @author santi
  */
 public interface PrecomputedTestCaseGenerator {
+    // Register values that often elicit special cases (zero, all ones, sign boundaries):
+    int EDGE_CASE_VALUES[] = {0x00, 0xff, 0x7f, 0x80, 0x01};
+    
     PrecomputedTestCase generateTestCase(MDLConfig config) throws Exception;
+    
+    /*
+    Generates the test case number "edgeCase" of a set of targeted test cases
+    (e.g., with registers set to "EDGE_CASE_VALUES", or to values that result
+    in carries). Returns null if there are no more edge cases.
+    */
+    default PrecomputedTestCase generateEdgeCaseTestCase(int edgeCase, MDLConfig config) throws Exception
+    {
+        return null;
+    }
 }
@@ -238,6 +238,15 @@ public class PrecomputedTestCaseGeneratorForOptimization implements PrecomputedT
             }
         }
 
+        return simulateTestCase(test, config);
+    }
+    
+    
+    /*
+    Executes the code to optimize starting from the start state of "test", and
+    uses the resulting state to fill in its goal state.
+    */
+    PrecomputedTestCase simulateTestCase(PrecomputedTestCase test, MDLConfig config) throws Exception {
         // Set up the simulator:
         int currentAddress = startAddress;
         for(Integer value:opBytes) {
@@ -350,5 +359,59 @@ public class PrecomputedTestCaseGeneratorForOptimization implements PrecomputedT
         }        
                             
         return test;
-    }    
+    }
+    
+    
+    /*
+    Edge cases are, in this order:
+    - all the registers that are not fixed in the start state set to each of
+      the "EDGE_CASE_VALUES"
+    - each register set to a different one of the "EDGE_CASE_VALUES"
+    - random values, except for the registers other than "A", that are set
+      so that adding them to / subtracting them from "A" produces a carry or
+      a zero.
+    */
+    @Override
+    public PrecomputedTestCase generateEdgeCaseTestCase(int edgeCase, MDLConfig config) throws Exception {
+        int n = EDGE_CASE_VALUES.length;
+        PrecomputedTestCase test = new PrecomputedTestCase();
+        if (spec.allowRamUse) test.trackMemoryWrites = true;
+
+        test.startRegisters = startRegisters;
+        test.startRegisterValues = new int[registersToInit.size()];
+        for(int i = 0;i<registersToInit.size();i++) {
+            if (startRegisterValues[i] != null) {
+                test.startRegisterValues[i] = startRegisterValues[i];
+            } else if (edgeCase < n) {
+                test.startRegisterValues[i] = EDGE_CASE_VALUES[edgeCase];
+            } else if (edgeCase < 2*n) {
+                test.startRegisterValues[i] = EDGE_CASE_VALUES[(edgeCase + i) % n];
+            } else if (edgeCase < 2*n + 3) {
+                test.startRegisterValues[i] = random.nextInt(256);
+            } else {
+                return null;
+            }
+        }
+        if (edgeCase >= 2*n) {
+            int AIdx = registersToInit.indexOf(RegisterNames.A);
+            if (AIdx < 0) return null;
+            int A = test.startRegisterValues[AIdx];
+            for(int i = 0;i<registersToInit.size();i++) {
+                if (i == AIdx || startRegisterValues[i] != null) continue;
+                switch(edgeCase - 2*n) {
+                    case 0: // A + r == 0x100
+                        test.startRegisterValues[i] = (0x100 - A) & 0xff;
+                        break;
+                    case 1: // A - r == 0
+                        test.startRegisterValues[i] = A;
+                        break;
+                    default: // A - r == -1
+                        test.startRegisterValues[i] = (A + 1) & 0xff;
+                        break;
+                }
+            }
+        }
+        
+        return simulateTestCase(test, config);
+    }
 }
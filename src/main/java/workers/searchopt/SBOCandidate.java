@@ -33,6 +33,10 @@ public class SBOCandidate {
     // Cached dependencies (which registers/flags do these ops depend on, and which do they set):
     public boolean inputDependencies[] = null;
     public int outputDependencies[] = null;
+    // The same dependencies packed as bitmasks (bit "i" corresponds to "allDependencies.get(i)"),
+    // which is what is used in the inner loop of the search:
+    public long inputDependencyMask = 0;
+    public long outputDependencyMask = 0;
     public boolean directContributionToGoal = false;
     public boolean isAbsoluteJump = false;
     public boolean isRelativeJump = false;
@@ -94,6 +98,10 @@ public class SBOCandidate {
                 }
             }
         }
+        inputDependencyMask = Specification.dependencyMask(inputDependencies);
+        for(int i = 0;i<outputDependencies.length;i++) {
+            if (outputDependencies[i] != 0) outputDependencyMask |= 1L << i;
+        }
     }
     
     
@@ -106,6 +114,8 @@ public class SBOCandidate {
         opString = c.opString;
         inputDependencies = c.inputDependencies;
         outputDependencies = c.outputDependencies;
+        inputDependencyMask = c.inputDependencyMask;
+        outputDependencyMask = c.outputDependencyMask;
         directContributionToGoal = c.directContributionToGoal;
         isAbsoluteJump = c.isAbsoluteJump;
         isRelativeJump = c.isRelativeJump;
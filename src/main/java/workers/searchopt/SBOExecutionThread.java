@@ -18,6 +18,7 @@ import java.util.Random;
 import util.microprocessor.IMemory;
 import util.microprocessor.PlainZ80IO;
 import util.microprocessor.PlainZ80Memory;
+import util.microprocessor.PlainByteZ80Memory;
 import util.microprocessor.ProcessorException;
 import util.microprocessor.TrackingZ80Memory;
 import util.microprocessor.Z80.CPUConfig;
@@ -28,6 +29,14 @@ import util.microprocessor.Z80.Z80Core;
 /**
  *
  * @author santi
+ *
+ * Note on the transposition table ("-so-lossy-transposition-table"): two
+ * prefixes are considered equivalent if they result in the same CPU state on
+ * only TRANSPOSITION_TEST_CASES test cases, which does not prove they compute
+ * the same function. So, the table is lossy: if two different prefixes
+ * happen to agree on those test cases, the subtree of the second one is
+ * skipped, and the search might miss the optimal solution (the solutions
+ * found are still checked on all the test cases, as without the table).
  */
 public class SBOExecutionThread extends Thread {
     String threadID = "";
@@ -49,6 +58,7 @@ public class SBOExecutionThread extends Thread {
     
     // Store the current program, and additional info to create jumps afterwards:
     CPUOp currentOps[] = null;
+    SBOCandidate currentCandidates[] = null;
     int currentOpsAddresses[] = null;
     int currentAbsoluteJumps_n = 0;
     int currentAbsoluteJumps[] = null;  // stores the indexes of "jp"s
@@ -58,19 +68,62 @@ public class SBOExecutionThread extends Thread {
     int minimumInstructionTime = 1;
     
     // The "dependencies" array, contains the set of dependencies (Registers/flags) that
-    // have already been set by previous instructions:
-    // - 1 means they are set from the start state
-    // - 2 means they are set by an instruction
-    // - 3 means both
-    int currentDependencies[][] = null;
+    // have already been set by previous instructions, packed as a bitmask (bit "i"
+    // corresponds to "allDependencies.get(i)"). Those set from the start state are
+    // in "initialDependencies", and the goal dependencies that must be set by some
+    // instruction are in "goalDependenciesToSet":
+    long currentDependencies[] = null;
+    long initialDependencies = 0;
+    long goalDependenciesToSet = 0;
+    
+    // Transposition table (null if disabled). The search state of a prefix is
+    // identified by its number of ops, size, time, dependencies and the CPU
+    // state resulting from executing it on the first "transpositionNTestCases"
+    // test cases (with fixed values in the registers that are randomized).
+    // This is not a proof of equivalence (see the class comment):
+    public static final int TRANSPOSITION_TEST_CASES = 8;
+    public static final RegisterNames TRANSPOSITION_REGISTERS[] = {
+        RegisterNames.AF, RegisterNames.BC, RegisterNames.DE, RegisterNames.HL,
+        RegisterNames.AF_ALT, RegisterNames.BC_ALT, RegisterNames.DE_ALT, RegisterNames.HL_ALT,
+        RegisterNames.IX, RegisterNames.IY, RegisterNames.SP, RegisterNames.I, RegisterNames.R};
+    SBOTranspositionTable transpositionTable = null;
+    int transpositionNTestCases = 0;
+    int transpositionRandomValues[][] = null;
+    int transpositionState[] = null;
+    int nSplits = 0;
+    
+    // Incremental emulation: "snapshots[k][i]" stores the CPU state after executing
+    // the first "k" ops of the current program on test case "i", so that programs
+    // that share a prefix do not need to execute it again. A snapshot is valid if
+    // "snapshotVersions[k][i] == levelVersions[k]" (so, all the snapshots of a
+    // level can be invalidated at once by incrementing its version). This is only
+    // used for programs without jumps, and when RAM and IO are not allowed and
+    // no memory is randomized (as snapshots do not include memory):
+    boolean incrementalEmulation = false;
+    int snapshots[][][] = null;
+    int snapshotVersions[][] = null;
+    int levelVersions[] = null;
+    int snapshotNLevels = 0;
+    
+    // Thread-local version of "spec.testCaseOrder". Each time a test case rejects
+    // a candidate, it is moved up in the order if it has rejected more candidates
+    // than the one before, so that the most discriminating tests are tried first.
+    // The new counts are merged back into "spec" when the thread finishes:
+    int testCaseOrder[] = null;
+    long testCaseRejections[] = null;
+    long testCaseRejectionsAtStart[] = null;
+    
+    // Thread-local search metrics (null if not collected). They are added to
+    // "globalState.metrics" when the thread finishes:
+    SBOSearchMetrics metrics = null;
+    long instructionsCounted = 0;
     
     SBOGlobalSearchState globalState;
     // local state:
-    int bestIdx = 0;
-    List<CPUOp> bestOps = null;
-    int bestSize = 0;
-    float bestTime = 0;
     long solutionsEvaluated = 0;
+    // The clock is only checked once every "TIME_CHECK_PERIOD" search nodes:
+    public static final int TIME_CHECK_PERIOD = 4096;
+    int nodesSinceTimeCheck = 0;
     
     int codeMaxOps;
     int codeMaxAddress;
@@ -101,6 +154,8 @@ public class SBOExecutionThread extends Thread {
         
         if (spec.allowRamUse) {
             z80Memory = new TrackingZ80Memory(null);
+        } else if (globalState.byteMemory) {
+            z80Memory = new PlainByteZ80Memory();
         } else {
             z80Memory = new PlainZ80Memory();
         }
@@ -110,25 +165,58 @@ public class SBOExecutionThread extends Thread {
         // Run the search process to generate code:
         // Search via iterative deepening:
         currentOps = new CPUOp[spec.maxOps];
+        currentCandidates = new SBOCandidate[spec.maxOps];
         currentOpsAddresses = new int[spec.maxOps+1];
         currentAbsoluteJumps_n = 0;
         currentAbsoluteJumps = new int[spec.maxOps];
         currentRelativeJumps_n = 0;
         currentRelativeJumps = new int[spec.maxOps];
         
-        currentDependencies = new int[spec.maxOps+1][nDependencies];
-        {
-            boolean initialDependencies[] = spec.getInitialDependencies(allDependencies);
-            for(int i = 0;i<nDependencies;i++) {
-                currentDependencies[0][i] = initialDependencies[i] ? 1:0;
-            }
-        }
-//        config.debug("Initial dependency set: " + Arrays.toString(currentDependencies[0]));        
+        currentDependencies = new long[spec.maxOps+1];
+        initialDependencies = Specification.dependencyMask(spec.getInitialDependencies(allDependencies));
+        goalDependenciesToSet = spec.getGoalDependenciesToSetMask();
+//        config.debug("Initial dependency set: " + Long.toBinaryString(initialDependencies));        
 
         codeMaxOps = a_codeMaxOps;
         codeMaxAddress = a_codeMaxAddress;
         maxSimulationTime = a_maxSimulationTime;
         
+        // The CPU state used for the transposition table does not include
+        // memory or IO ports, so it is only used when those are not allowed.
+        // With loops, a jump added later can execute the prefix again, so
+        // two prefixes that leave the same CPU state are not equivalent:
+        if (globalState.transpositionTable != null && !spec.allowRamUse && !spec.allowIO && !spec.allowLoops) {
+            transpositionTable = globalState.transpositionTable;
+            transpositionNTestCases = Math.min(TRANSPOSITION_TEST_CASES, spec.numberOfRandomSolutionChecks);
+            // The same values are used in all threads, so they can share the table:
+            Random r = new Random(0);
+            transpositionRandomValues = new int[transpositionNTestCases][eightBitRegistersToRandomize.length + 1];
+            for(int i = 0;i<transpositionNTestCases;i++) {
+                for(int j = 0;j<eightBitRegistersToRandomize.length;j++) {
+                    transpositionRandomValues[i][j] = r.nextInt(256);
+                }
+                transpositionRandomValues[i][eightBitRegistersToRandomize.length] = r.nextInt(256*256);
+            }
+            transpositionState = new int[5 + transpositionNTestCases * (TRANSPOSITION_REGISTERS.length + 1)];
+        }
+        
+        if (!spec.allowRamUse && !spec.allowIO && memoryAddressesToRandomize.length == 0) {
+            incrementalEmulation = true;
+            snapshots = new int[spec.maxOps][spec.numberOfRandomSolutionChecks][];
+            snapshotVersions = new int[spec.maxOps][spec.numberOfRandomSolutionChecks];
+            levelVersions = new int[spec.maxOps];
+            Arrays.fill(levelVersions, 1);
+        }
+        
+        testCaseOrder = spec.getTestCaseOrder();
+        testCaseRejections = spec.getTestCaseRejections();
+        testCaseRejectionsAtStart = Arrays.copyOf(testCaseRejections, testCaseRejections.length);
+        
+        if (globalState.metrics != null) {
+            metrics = new SBOSearchMetrics(codeMaxOps, testCaseRejections.length);
+            instructionsCounted = z80.getInstructionsExecuted();
+        }
+        
         minimumInstructionTime = -1;
         for(CPUOpSpec spec:config.opParser.getOpSpecs()) {
             int minTime = spec.times[0];
@@ -146,110 +234,227 @@ public class SBOExecutionThread extends Thread {
     public void run() {
         try {
             while(true) {
-                SBOCandidate op = globalState.getNextStartingOp();
-                if (op == null) return;
+                SBOSearchTask task = globalState.getNextTask();
+                if (task == null) return;
 
-                List<SBOCandidate> candidateOps = new ArrayList<>();
-                candidateOps.add(op);                
-                // Loop, just in case something changes in between because of another thread:
-                do {
-                    bestIdx = globalState.bestIdx;
-                    bestOps = globalState.bestOps;
-                    bestSize = globalState.bestSize;
-                    bestTime = globalState.bestTime;
-                }while(bestIdx != globalState.bestIdx);
-                solutionsEvaluated = 0;
+                try {
+                    solutionsEvaluated = 0;
 
-                if (spec.searchType == SearchBasedOptimizer.SEARCH_ID_OPS ||
-                    spec.searchType == SearchBasedOptimizer.SEARCH_ID_OPS_SAFE) {
-                    depthFirstSearch(0, spec.codeStartAddress, candidateOps);
-                } else if (spec.searchType == SearchBasedOptimizer.SEARCH_ID_BYTES) {
-                    depthFirstSearch(0, spec.codeStartAddress, candidateOps);
-                } else if (spec.searchType == SearchBasedOptimizer.SEARCH_ID_CYCLES) {
-                    depthFirstSearch_timeBounded(0, 0, spec.codeStartAddress, candidateOps);
+                    int depth = replayPrefix(task.prefix);
+                    if (spec.searchType == SearchBasedOptimizer.SEARCH_ID_OPS ||
+                        spec.searchType == SearchBasedOptimizer.SEARCH_ID_OPS_SAFE) {
+                        depthFirstSearch(depth, task.codeAddress, task.candidateOps);
+                    } else if (spec.searchType == SearchBasedOptimizer.SEARCH_ID_BYTES) {
+                        depthFirstSearch(depth, task.codeAddress, task.candidateOps);
+                    } else if (spec.searchType == SearchBasedOptimizer.SEARCH_ID_CYCLES) {
+                        depthFirstSearch_timeBounded(depth, task.currentTime, task.codeAddress, task.candidateOps);
+                    }
+                    globalState.incrementSolutionsEvaluated(solutionsEvaluated);
+                } finally {
+                    globalState.taskDone();
                 }
-                globalState.incrementSolutionsEvaluated(solutionsEvaluated);
             }
         } catch (Exception e) {
             config.error(e.getMessage());
             config.error(Arrays.toString(e.getStackTrace()));
+        } finally {
+            for(int i = 0;i<testCaseRejections.length;i++) {
+                testCaseRejections[i] -= testCaseRejectionsAtStart[i];
+            }
+            spec.addTestCaseRejections(testCaseRejections);
+            if (metrics != null) {
+                System.arraycopy(testCaseRejections, 0, metrics.testCaseRejections, 0, testCaseRejections.length);
+                globalState.metrics.add(metrics);
+            }
         }
     }
     
+    
+    /*
+    Returns true if the search must stop because the time budget is over.
+    */
+    final boolean outOfTime()
+    {
+        if (globalState.deadline > 0) {
+            nodesSinceTimeCheck++;
+            if (nodesSinceTimeCheck >= TIME_CHECK_PERIOD) {
+                nodesSinceTimeCheck = 0;
+                if (System.currentTimeMillis() >= globalState.deadline) {
+                    globalState.timedOut = true;
+                }
+            }
+        }
+        return globalState.timedOut;
+    }
+    
+    
+    final void count(int depth, int metric)
+    {
+        if (metrics != null) metrics.counts[depth][metric]++;
+    }
+    
+    
+    /*
+    Attributes the instructions executed by the simulator since the last call
+    to the given depth.
+    */
+    final void countInstructions(int depth)
+    {
+        long instructions = z80.getInstructionsExecuted();
+        metrics.counts[depth][SBOSearchMetrics.INSTRUCTIONS] += instructions - instructionsCounted;
+        instructionsCounted = instructions;
+    }
+    
+    
+    /*
+    Restores the search state (program, dependencies and jumps) corresponding
+    to a prefix of ops that was split by another thread. The prefix was already
+    validated by that thread, so no checks are done here.
+    Returns the depth at which search should continue.
+    */
+    int replayPrefix(SBOCandidate prefix[]) throws Exception
+    {
+        currentAbsoluteJumps_n = 0;
+        currentRelativeJumps_n = 0;
+        if (incrementalEmulation) invalidateSnapshots(0);
+        int codeAddress = spec.codeStartAddress;
+        for(int depth = 0;depth<prefix.length;depth++) {
+            SBOCandidate candidate = prefix[depth];
+            currentDependencies[depth+1] = currentDependencies[depth] | candidate.outputDependencyMask;
+            z80Memory.loadBytes(codeAddress, candidate.bytes);
+            currentOps[depth] = candidate.op;
+            currentCandidates[depth] = candidate;
+            currentOpsAddresses[depth] = codeAddress;
+            if (candidate.isAbsoluteJump) {
+                currentAbsoluteJumps[currentAbsoluteJumps_n] = depth;
+                currentAbsoluteJumps_n++;
+            } else if (candidate.isRelativeJump) {
+                currentRelativeJumps[currentRelativeJumps_n] = depth;
+                currentRelativeJumps_n++;
+            }
+            codeAddress += candidate.bytes.length;
+        }
+        return prefix.length;
+    }
+    
+    
+    /*
+    If there are idle threads, this hands over the subtree below the current
+    prefix (which ends in the op at "depth") to the global work queue, so that
+    an idle thread can steal it. Returns true if the subtree was split.
+    */
+    boolean splitSearch(int depth, int nextAddress, int nextTime, SBOCandidate candidate)
+    {
+        if (!globalState.shouldSplit(depth+1, codeMaxOps)) return false;
+        nSplits++;
+        globalState.addTask(new SBOSearchTask(Arrays.copyOf(currentCandidates, depth+1), 
+                                              candidate.potentialFollowUps, 
+                                              nextAddress, nextTime));
+        return true;
+    }
+    
         
     boolean depthFirstSearch(int depth, int codeAddress,
                              List<SBOCandidate> candidateOps) throws Exception
     {
+        if (outOfTime()) return false;
         if (depth >= codeMaxOps || codeAddress >= codeMaxAddress) {
             return evaluateSolution(depth, 0, 0, codeAddress);
         } else {
             boolean found = false;
+            count(depth, SBOSearchMetrics.NODES);
                         
             for(SBOCandidate candidate : candidateOps) {
                 int nextAddress = codeAddress + candidate.bytes.length;
 //                if (candidate.jumpTarget != null) {
 //                    if (candidate.isRelativeJump && candidate.jumpTarget > nextAddress) continue;
 //                }
-                if (nextAddress > codeMaxAddress) continue;
+                if (nextAddress > codeMaxAddress) {
+                    count(depth, SBOSearchMetrics.PRUNED_LIMITS);
+                    continue;
+                }
                 // the very last op must contribute to the goal:
                 if (!candidate.directContributionToGoal &&
                     (depth == codeMaxOps-1 || codeMaxAddress == nextAddress)) {
+                    count(depth, SBOSearchMetrics.PRUNED_GOAL_CONTRIBUTION);
                     continue;
                 }
                 int size = nextAddress - spec.codeStartAddress;
-                if (!canBeBest(depth+1, size)) continue;
-                boolean dependenciesSatisfied = true;
-                for(int i = 0;i<nDependencies;i++) {
-                    if (candidate.inputDependencies[i] && currentDependencies[depth][i] == 0) {
-                        dependenciesSatisfied = false;
-                        break;
-                    }
-                    currentDependencies[depth+1][i] = currentDependencies[depth][i] | candidate.outputDependencies[i];
+                if (!canBeBest(depth+1, size)) {
+                    count(depth, SBOSearchMetrics.PRUNED_BEST_BOUND);
+                    continue;
                 }
+                boolean dependenciesSatisfied = (candidate.inputDependencyMask & ~(initialDependencies | currentDependencies[depth])) == 0;
                 if (!dependenciesSatisfied) {
+                    count(depth, SBOSearchMetrics.PRUNED_DEPENDENCIES);
                     continue;
                 }
+                currentDependencies[depth+1] = currentDependencies[depth] | candidate.outputDependencyMask;
                 if (depth == codeMaxOps-1 || codeMaxAddress == nextAddress) {
                     // this is the last op we can add, so all output dependencies MUST be satisfied:
-                    boolean goalDependenciesSatisfied = true;
-                    for(int i: spec.goalDependencyIndexes) {
-                          if (!spec.goalDependenciesSatisfiedFromTheStart[i] &&
-                              currentDependencies[depth+1][i] < 2) {
-                            goalDependenciesSatisfied = false;
-                            break;
-                        }
-                    }
+                    boolean goalDependenciesSatisfied = (goalDependenciesToSet & ~currentDependencies[depth+1]) == 0;
                     if (!goalDependenciesSatisfied) {
+                        count(depth, SBOSearchMetrics.PRUNED_GOAL_DEPENDENCIES);
                         continue;
                     }
                 }
-                System.arraycopy(candidate.bytes, 0, z80Memory.getMemoryArray(), codeAddress, candidate.bytes.length);
+                z80Memory.loadBytes(codeAddress, candidate.bytes);
                 currentOps[depth] = candidate.op;
+                currentCandidates[depth] = candidate;
                 currentOpsAddresses[depth] = codeAddress;
+                if (incrementalEmulation) invalidateSnapshots(depth);
                 if (candidate.isAbsoluteJump) {
                     // It does not make sense to have an unconditional jump before a conditional one:
-                    if (candidate.isUnconditionalJump && currentAbsoluteJumps_n == 0 && currentRelativeJumps_n == 0) continue;
+                    if (candidate.isUnconditionalJump && currentAbsoluteJumps_n == 0 && currentRelativeJumps_n == 0) {
+                        count(depth, SBOSearchMetrics.PRUNED_JUMPS);
+                        continue;
+                    }
                     currentAbsoluteJumps[currentAbsoluteJumps_n] = depth;
                     currentAbsoluteJumps_n++;
-                    if (depthFirstSearch(depth+1, nextAddress, candidate.potentialFollowUps)) {
+                    if (!splitSearch(depth, nextAddress, 0, candidate) &&
+                        depthFirstSearch(depth+1, nextAddress, candidate.potentialFollowUps)) {
                         found = true;
                         // we keep going, in case we find a solution of the same size, but faster
                     }
                     currentAbsoluteJumps_n--;
                 } else if (candidate.isRelativeJump) {
                     // It does not make sense to have an unconditional jump before a conditional one:
-                    if (candidate.isUnconditionalJump && currentAbsoluteJumps_n == 0 && currentRelativeJumps_n == 0) continue;
+                    if (candidate.isUnconditionalJump && currentAbsoluteJumps_n == 0 && currentRelativeJumps_n == 0) {
+                        count(depth, SBOSearchMetrics.PRUNED_JUMPS);
+                        continue;
+                    }
                     currentRelativeJumps[currentRelativeJumps_n] = depth;
                     currentRelativeJumps_n++;
-                    if (depthFirstSearch(depth+1, nextAddress, candidate.potentialFollowUps)) {
+                    if (!splitSearch(depth, nextAddress, 0, candidate) &&
+                        depthFirstSearch(depth+1, nextAddress, candidate.potentialFollowUps)) {
                         found = true;
                         // we keep going, in case we find a solution of the same size, but faster
                     }
                     currentRelativeJumps_n--;
                 } else {
-                    if (depthFirstSearch(depth+1, nextAddress, candidate.potentialFollowUps)) {
+                    long hash = 0;
+                    int stateLength = 0;
+                    // Only used if at least two more ops can be added (otherwise, the subtree is
+                    // cheaper to explore than to compute the signature):
+                    if (transpositionTable != null && depth+2 < codeMaxOps) {
+                        stateLength = transpositionSignature(depth+1, nextAddress, 0);
+                        if (metrics != null) countInstructions(depth);
+                        if (stateLength > 0) {
+                            hash = SBOTranspositionTable.hash(candidate.potentialFollowUps, transpositionState, stateLength);
+                            if (transpositionTable.contains(hash, candidate.potentialFollowUps, transpositionState, stateLength)) {
+                                count(depth, SBOSearchMetrics.PRUNED_TRANSPOSITION);
+                                continue;
+                            }
+                        }
+                    }
+                    int nSplitsBefore = nSplits;
+                    if (!splitSearch(depth, nextAddress, 0, candidate) &&
+                        depthFirstSearch(depth+1, nextAddress, candidate.potentialFollowUps)) {
                         found = true;
                         // we keep going, in case we find a solution of the same size, but faster
+                    } else if (stateLength > 0 && nSplits == nSplitsBefore && !globalState.timedOut) {
+                        // The whole subtree was explored, and contained no solution:
+                        transpositionTable.store(hash, candidate.potentialFollowUps, transpositionState, stateLength);
                     }
                 }
             }
@@ -261,6 +466,7 @@ public class SBOExecutionThread extends Thread {
     boolean depthFirstSearch_timeBounded(int depth, int currentTime, int codeAddress,
                                          List<SBOCandidate> candidateOps) throws Exception
     {
+        if (outOfTime()) return false;
         if (depth >= codeMaxOps || codeAddress >= codeMaxAddress || currentTime >= maxSimulationTime) {
             return evaluateSolution(depth, 0, 0, codeAddress);
         } else if (currentTime > maxSimulationTime - minimumInstructionTime) {
@@ -268,49 +474,59 @@ public class SBOExecutionThread extends Thread {
             return false;
         } else {
             boolean found = false;
+            count(depth, SBOSearchMetrics.NODES);
             for(SBOCandidate candidate : candidateOps) {
                 int nextAddress = codeAddress + candidate.bytes.length;
-                if (nextAddress > codeMaxAddress) continue;
+                if (nextAddress > codeMaxAddress) {
+                    count(depth, SBOSearchMetrics.PRUNED_LIMITS);
+                    continue;
+                }
                 // the very last op must contribute to the goal:
                 if (!candidate.directContributionToGoal &&
                     (depth == codeMaxOps-1 || codeMaxAddress == nextAddress)) {
+                    count(depth, SBOSearchMetrics.PRUNED_GOAL_CONTRIBUTION);
                     continue;
                 }
                 int nextTime = currentTime + candidate.op.spec.times[candidate.op.spec.times.length-1];
-                if (nextTime > maxSimulationTime) continue;
+                if (nextTime > maxSimulationTime) {
+                    count(depth, SBOSearchMetrics.PRUNED_LIMITS);
+                    continue;
+                }
                 int size = codeAddress - spec.codeStartAddress;
-                if (!canBeBest(depth+1, size)) continue;
-                boolean dependenciesSatisfied = true;
-                for(int i = 0;i<nDependencies;i++) {
-                    if (candidate.inputDependencies[i] && currentDependencies[depth][i] == 0) {
-                        dependenciesSatisfied = false;
-                        break;
-                    }
-                    currentDependencies[depth+1][i] = currentDependencies[depth][i] | candidate.outputDependencies[i];
+                if (!canBeBest(depth+1, size)) {
+                    count(depth, SBOSearchMetrics.PRUNED_BEST_BOUND);
+                    continue;
+                }
+                boolean dependenciesSatisfied = (candidate.inputDependencyMask & ~(initialDependencies | currentDependencies[depth])) == 0;
+                if (!dependenciesSatisfied) {
+                    count(depth, SBOSearchMetrics.PRUNED_DEPENDENCIES);
+                    continue;
                 }
-                if (!dependenciesSatisfied) continue;
+                currentDependencies[depth+1] = currentDependencies[depth] | candidate.outputDependencyMask;
                 if (depth == codeMaxOps-1 || codeMaxAddress == nextAddress || nextTime == maxSimulationTime) {
                     // This is the last op we can add, so all output dependencies MUST be satisfied:
-                    boolean goalDependenciesSatisfied = true;
-                    for(int i: spec.goalDependencyIndexes) {
-                          if (!spec.goalDependenciesSatisfiedFromTheStart[i] &&
-                              currentDependencies[depth+1][i] < 2) {
-                            goalDependenciesSatisfied = false;
-                            break;
-                        }
+                    boolean goalDependenciesSatisfied = (goalDependenciesToSet & ~currentDependencies[depth+1]) == 0;
+                    if (!goalDependenciesSatisfied) {
+                        count(depth, SBOSearchMetrics.PRUNED_GOAL_DEPENDENCIES);
+                        continue;
                     }
-                    if (!goalDependenciesSatisfied) continue;
                 }                                    
                                
-                System.arraycopy(candidate.bytes, 0, z80Memory.getMemoryArray(), codeAddress, candidate.bytes.length);
+                z80Memory.loadBytes(codeAddress, candidate.bytes);
                 currentOps[depth] = candidate.op;
+                currentCandidates[depth] = candidate;
                 currentOpsAddresses[depth] = codeAddress;
+                if (incrementalEmulation) invalidateSnapshots(depth);
                 if (candidate.isAbsoluteJump) {
                     // It does not make sense to have an unconditional jump before a conditional one:
-                    if (candidate.isUnconditionalJump && currentAbsoluteJumps_n == 0 && currentRelativeJumps_n == 0) continue;
+                    if (candidate.isUnconditionalJump && currentAbsoluteJumps_n == 0 && currentRelativeJumps_n == 0) {
+                        count(depth, SBOSearchMetrics.PRUNED_JUMPS);
+                        continue;
+                    }
                     currentAbsoluteJumps[currentAbsoluteJumps_n] = depth;
                     currentAbsoluteJumps_n++;
-                    if (depthFirstSearch_timeBounded(depth+1, 
+                    if (!splitSearch(depth, nextAddress, nextTime, candidate) &&
+                        depthFirstSearch_timeBounded(depth+1, 
                                                      nextTime, 
                                                      nextAddress,
                                                      candidate.potentialFollowUps)) {
@@ -320,10 +536,14 @@ public class SBOExecutionThread extends Thread {
                     currentAbsoluteJumps_n--;
                 } else if (candidate.isRelativeJump) {
                     // It does not make sense to have an unconditional jump before a conditional one:
-                    if (candidate.isUnconditionalJump && currentAbsoluteJumps_n == 0 && currentRelativeJumps_n == 0) continue;
+                    if (candidate.isUnconditionalJump && currentAbsoluteJumps_n == 0 && currentRelativeJumps_n == 0) {
+                        count(depth, SBOSearchMetrics.PRUNED_JUMPS);
+                        continue;
+                    }
                     currentRelativeJumps[currentRelativeJumps_n] = depth;
                     currentRelativeJumps_n++;
-                    if (depthFirstSearch_timeBounded(depth+1, 
+                    if (!splitSearch(depth, nextAddress, nextTime, candidate) &&
+                        depthFirstSearch_timeBounded(depth+1, 
                                                      nextTime, 
                                                      nextAddress,
                                                      candidate.potentialFollowUps)) {
@@ -332,12 +552,30 @@ public class SBOExecutionThread extends Thread {
                     }
                     currentRelativeJumps_n--;
                 } else {
-                    if (depthFirstSearch_timeBounded(depth+1, 
+                    long hash = 0;
+                    int stateLength = 0;
+                    if (transpositionTable != null && depth+2 < codeMaxOps) {
+                        stateLength = transpositionSignature(depth+1, nextAddress, nextTime);
+                        if (metrics != null) countInstructions(depth);
+                        if (stateLength > 0) {
+                            hash = SBOTranspositionTable.hash(candidate.potentialFollowUps, transpositionState, stateLength);
+                            if (transpositionTable.contains(hash, candidate.potentialFollowUps, transpositionState, stateLength)) {
+                                count(depth, SBOSearchMetrics.PRUNED_TRANSPOSITION);
+                                continue;
+                            }
+                        }
+                    }
+                    int nSplitsBefore = nSplits;
+                    if (!splitSearch(depth, nextAddress, nextTime, candidate) &&
+                        depthFirstSearch_timeBounded(depth+1, 
                                                      nextTime, 
                                                      nextAddress,
                                                      candidate.potentialFollowUps)) {
                         found = true;
                         // we keep going, in case we find a solution of the same speed, but smaller
+                    } else if (stateLength > 0 && nSplits == nSplitsBefore && !globalState.timedOut) {
+                        // The whole subtree was explored, and contained no solution:
+                        transpositionTable.store(hash, candidate.potentialFollowUps, transpositionState, stateLength);
                     }
                 }
             }
@@ -346,6 +584,104 @@ public class SBOExecutionThread extends Thread {
     }    
     
 
+    /*
+    Fills "transpositionState" with the search state after the first "nOps"
+    ops of the current program (which end at "breakPoint"), for the
+    transposition table. Returns the number of elements used, or 0 if the
+    transposition table cannot be used for this prefix (e.g., if it contains
+    jumps).
+    */
+    int transpositionSignature(int nOps, int breakPoint, int currentTime) throws Exception
+    {
+        if (currentAbsoluteJumps_n > 0 || currentRelativeJumps_n > 0) return 0;
+        int idx = 0;
+        transpositionState[idx++] = nOps;
+        transpositionState[idx++] = breakPoint;
+        transpositionState[idx++] = currentTime;
+        transpositionState[idx++] = (int)currentDependencies[nOps];
+        transpositionState[idx++] = (int)(currentDependencies[nOps] >>> 32);
+        try {
+            for(int i = 0;i<transpositionNTestCases;i++) {
+                if (spec.precomputedTestCases[i] == null) {
+                    spec.precomputedTestCases[i] = spec.testCaseGenerator.generateTestCase(config);
+                }
+                z80.shallowReset();
+                int values[] = transpositionRandomValues[i];
+                for(int j = 0;j<eightBitRegistersToRandomize.length;j++) {
+                    z80.setRegisterValue(eightBitRegistersToRandomize[j], values[j]);
+                }
+                if (randomizeSP) {
+                    z80.setRegisterValue(RegisterNames.SP, values[eightBitRegistersToRandomize.length]);
+                }
+                z80.setProgramCounter(spec.codeStartAddress);
+                spec.precomputedTestCases[i].initCPU(z80);
+                z80.runUntil(breakPoint, spec.maxSimulationTime);
+                if (z80.getProgramCounter() != breakPoint) return 0;
+                for(RegisterNames register:TRANSPOSITION_REGISTERS) {
+                    transpositionState[idx++] = z80.getRegisterValue(register);
+                }
+                transpositionState[idx++] = (int)z80.getTStates();
+            }
+        } catch (ProcessorException e) {
+            return 0;
+        }
+        return idx;
+    }
+    
+    
+    /*
+    Called when the op at position "depth" changes, to invalidate the snapshots
+    that depended on it.
+    */
+    final void invalidateSnapshots(int depth)
+    {
+        // Snapshots at level 0 only depend on the test case and the random values of
+        // the registers. They are refreshed each time one of the first two ops
+        // changes, so that programs keep being tested with different random values:
+        int first = (depth <= 1 ? 0 : depth+1);
+        for(int level = first;level<snapshotNLevels;level++) {
+            levelVersions[level]++;
+        }
+        if (snapshotNLevels > first) snapshotNLevels = first;
+    }
+    
+    
+    /*
+    Leaves the CPU in the state resulting from executing the first "nOps" ops
+    of the current program on test case "testIndex". It starts from the
+    deepest snapshot available, and saves new snapshots along the way.
+    */
+    final void emulatePrefix(int nOps, int testIndex) throws ProcessorException
+    {
+        int level = Math.min(nOps, snapshotNLevels-1);
+        while(level >= 0 && snapshotVersions[level][testIndex] != levelVersions[level]) level--;
+        if (level >= 0) {
+            z80.restoreState(snapshots[level][testIndex]);
+        } else {
+            initTestCase(spec.precomputedTestCases[testIndex]);
+            level = 0;
+            saveSnapshot(level, testIndex);
+        }
+        for(level++;level <= nOps;level++) {
+            int breakPoint = currentOpsAddresses[level];
+            z80.runUntil(breakPoint, spec.maxSimulationTime);
+            if (z80.getProgramCounter() != breakPoint) return;
+            saveSnapshot(level, testIndex);
+        }
+    }
+    
+    
+    final void saveSnapshot(int level, int testIndex)
+    {
+        if (snapshots[level][testIndex] == null) {
+            snapshots[level][testIndex] = new int[Z80Core.STATE_SIZE];
+        }
+        z80.saveState(snapshots[level][testIndex]);
+        snapshotVersions[level][testIndex] = levelVersions[level];
+        if (snapshotNLevels <= level) snapshotNLevels = level+1;
+    }
+    
+    
     final boolean evaluateSolution(int depth, int nextAbsoluteJump, int nextRelativeJump, int breakPoint) throws Exception
     {
         if (currentAbsoluteJumps_n > nextAbsoluteJump) {
@@ -393,13 +729,6 @@ public class SBOExecutionThread extends Thread {
         }
         
         try {
-            while(bestIdx != globalState.bestIdx) {
-                bestIdx = globalState.bestIdx;
-                bestOps = globalState.bestOps;
-                bestSize = globalState.bestSize;
-                bestTime = globalState.bestTime;                
-            }
-            
             // Print statement to print sequences and visually inspect if there are any prunable ones:
 //            System.out.println(Arrays.toString(currentOps));
 //            if (depth == 0) System.out.println(Arrays.toString(currentOps));
@@ -409,17 +738,19 @@ public class SBOExecutionThread extends Thread {
 //            boolean debug = Arrays.toString(currentOps).equals("[neg, ld l, a, add a, l, sbc a, a, ld h, a]");
             
             solutionsEvaluated++;
+            count(depth, SBOSearchMetrics.LEAVES);
 
             int size = breakPoint - spec.codeStartAddress;
             float time = -1;
             for(int i = 0; i < spec.numberOfRandomSolutionChecks; i++) {
-                if (spec.precomputedTestCases[i] == null) {
-                    spec.precomputedTestCases[i] = spec.testCaseGenerator.generateTestCase(config);
+                int testIndex = testCaseOrder[i];
+                if (spec.precomputedTestCases[testIndex] == null) {
+                    spec.precomputedTestCases[testIndex] = spec.testCaseGenerator.generateTestCase(config);
                 }
-//                int time2 = evaluateSolutionInternal(breakPoint, spec.precomputedTestCases[i], true);  // debug = true
-                int time2 = evaluateSolutionInternal(breakPoint, spec.precomputedTestCases[i], false);
-//                int time2 = evaluateSolutionInternal(breakPoint, spec.precomputedTestCases[i]);
+//                int time2 = evaluateSolutionInternal(depth, breakPoint, testIndex, true);  // debug = true
+                int time2 = evaluateSolutionInternal(depth, breakPoint, testIndex, false);
                 if (time2 < 0) {
+                    testCaseRejected(i);
                     return false;
                 }
                 switch(spec.searchTimeCalculation) {
@@ -466,9 +797,7 @@ public class SBOExecutionThread extends Thread {
                     }
                     localBestOps.add(op);
                 }
-                globalState.newBest(localBestOps, size, time);
-
-                if (showNewBestDuringSearch) {
+                if (globalState.newBest(localBestOps, size, time) && showNewBestDuringSearch) {
                     config.info("New solution found (size: "+size+" bytes, time: " + time + " " + config.timeUnit + "s):");
                     for(CPUOp op:localBestOps) {
                         config.info("    " + op);
@@ -480,16 +809,47 @@ public class SBOExecutionThread extends Thread {
             // This could happen if the program self-modifies itself and garbles the codebase,
             // resulting in an inexisting opcode.
             return false;
-        }            
+        } finally {
+            if (metrics != null) countInstructions(depth);
+        }
+    }
+    
+    
+    final void testCaseRejected(int position)
+    {
+        int testIndex = testCaseOrder[position];
+        testCaseRejections[testIndex]++;
+        if (position > 0 &&
+            testCaseRejections[testIndex] > testCaseRejections[testCaseOrder[position-1]]) {
+            testCaseOrder[position] = testCaseOrder[position-1];
+            testCaseOrder[position-1] = testIndex;
+        }
     }
     
     
     // return -1 is solution fails
     // return time it takes if solution succeeds
-    // "i" is the index of the 
-    final int evaluateSolutionInternal(int breakPoint, PrecomputedTestCase testCase, boolean debug) throws ProcessorException
+    // "testIndex" is the index of the test case to use
+    final int evaluateSolutionInternal(int depth, int breakPoint, int testIndex, boolean debug) throws ProcessorException
     {
+        PrecomputedTestCase testCase = spec.precomputedTestCases[testIndex];
+        
         // evaluate solution:
+        if (incrementalEmulation && depth > 0 &&
+            currentAbsoluteJumps_n == 0 && currentRelativeJumps_n == 0) {
+            // Only the last op needs to be executed (unless the snapshots are not there yet):
+            emulatePrefix(depth-1, testIndex);
+        } else {
+            initTestCase(testCase);
+        }
+        
+        z80.runUntil(breakPoint, spec.maxSimulationTime);
+        return checkTestCase(testCase, breakPoint, debug);
+    }
+    
+    
+    final void initTestCase(PrecomputedTestCase testCase)
+    {
         z80.shallowReset();
 
         for(CPUConstants.RegisterNames register: eightBitRegistersToRandomize) {
@@ -514,11 +874,11 @@ public class SBOExecutionThread extends Thread {
         if (spec.allowRamUse) {
             ((TrackingZ80Memory)z80.getRAM()).clearMemoryAccesses();
         }
-        
-        while(z80.getProgramCounter() < breakPoint && 
-              z80.getTStates() < spec.maxSimulationTime) {
-            z80.executeOneInstruction();
-        }
+    }
+    
+    
+    final int checkTestCase(PrecomputedTestCase testCase, int breakPoint, boolean debug)
+    {
         if (z80.getTStates() >= spec.maxSimulationTime) {
             if (spec.allowRamUse) {
                 ((TrackingZ80Memory)z80.getRAM()).clearMemoryAccessesRandomizingThem(spec.codeStartAddress, breakPoint);
@@ -555,29 +915,16 @@ public class SBOExecutionThread extends Thread {
     }    
     
     
+    /*
+    These always check against the latest best solution published by any thread:
+    */
     public boolean canBeBest(int nOps, int size)
     {
-        return !(bestOps != null &&
-                (size > bestSize ||
-                (size == bestSize && nOps > bestOps.size())));
+        return SBOGlobalSearchState.canBeBest(globalState.getBest(), nOps, size);
     }
     
     
     public boolean isBetter(int nOps, int size, float time) {
-        return bestOps == null ||
-                size < bestSize ||
-                (size == bestSize && nOps < bestOps.size()) ||
-                (size == bestSize && nOps == bestOps.size() && time < bestTime);
+        return SBOGlobalSearchState.isBetter(globalState.getBest(), nOps, size, time);
     }
-    
-    
-    public void newBest(List<CPUOp> ops, int size, float time)
-    {
-        if (isBetter(ops.size(), size, time)) {
-            bestIdx ++;
-            bestOps = ops;
-            bestSize = size;
-            bestTime = time;
-        }
-    }    
 }
@@ -6,23 +6,58 @@
 package workers.searchopt;
 
 import code.CPUOp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  *
  * @author santi
  */
 public class SBOGlobalSearchState {
-    long solutionsEvaluated = 0;
+    public static final int DEFAULT_SPLIT_DEPTH = 2;
     
-    int bestIdx = 0;    // Each time the best solution changes, this gets incremented by 1.
-                        // It is used to trigger a slower synchronization only when needed.
-    List<CPUOp> bestOps = null;
-    int bestSize = 0;
-    float bestTime = 0;
+    LongAdder solutionsEvaluated = new LongAdder();
     
-    int nextCandidateOpAtDepth0 = 0;
-    List<SBOCandidate> candidateOpsAtDepth0;
+    // The best solution found so far (null if none). Solutions are immutable,
+    // so threads can just read this reference to get a consistent bound, and
+    // new solutions are published with compare-and-set:
+    AtomicReference<SBOSolution> best = new AtomicReference<>(null);
+    
+    // Work queue shared by all the threads. Threads take tasks from the front,
+    // and when some threads are idle, busy threads split the subtrees they
+    // are exploring (up to "splitDepth" ops) and push them at the back, so
+    // that the idle threads can steal them:
+    int splitDepth = DEFAULT_SPLIT_DEPTH;
+    ArrayDeque<SBOSearchTask> tasks = new ArrayDeque<>();
+    int nRunningTasks = 0;
+    volatile int nQueuedTasks = 0;
+    volatile int nIdleThreads = 0;
+    
+    // Optional transposition table (disabled if the size is 0). A new table
+    // is created for each iteration of the iterative deepening search, as
+    // entries are only valid for a given set of search bounds:
+    int transpositionTableSize = 0;
+    // Whether search threads simulate memory with a byte array (less cache
+    // footprint per thread) rather than an int array (only used if memory is
+    // not allowed in the search):
+    boolean byteMemory = false;
+    SBOTranspositionTable transpositionTable = null;
+    
+    // Optional search metrics (disabled if "collectMetrics" is false). Each
+    // thread collects its own, and adds them here when it finishes. A new
+    // object is created for each iteration of the iterative deepening search:
+    boolean collectMetrics = false;
+    SBOSearchMetrics metrics = null;
+    
+    // Wall-clock time (as in "System.currentTimeMillis") at which search must
+    // stop (0 means no time limit). Threads check the clock periodically, and
+    // once one of them sees it has passed, it sets "timedOut" so all of them
+    // stop. The best solution found so far is kept:
+    long deadline = 0;
+    volatile boolean timedOut = false;
 
     
     public SBOGlobalSearchState()
@@ -30,79 +65,142 @@ public class SBOGlobalSearchState {
     }
         
     
-    public void init(List<SBOCandidate> allCandidateOps, boolean isZeroDepth)
+    synchronized public void init(List<SBOCandidate> allCandidateOps, boolean isZeroDepth, int codeStartAddress,
+                                  int codeMaxOps, int nTestCases)
     {
-        nextCandidateOpAtDepth0 = 0;
-        candidateOpsAtDepth0 = allCandidateOps;
+        tasks.clear();
+        nRunningTasks = 0;
+        if (transpositionTableSize > 0) {
+            transpositionTable = new SBOTranspositionTable(transpositionTableSize);
+        }
+        if (collectMetrics) {
+            metrics = new SBOSearchMetrics(codeMaxOps, nTestCases);
+        }
+        int start = 0;
         // at depth 0, we just need to do one check (as none of these ops will be added anyway):
         if (isZeroDepth) {
-            nextCandidateOpAtDepth0 = candidateOpsAtDepth0.size()-1;
+            start = allCandidateOps.size()-1;
+        }
+        for(int i = start;i<allCandidateOps.size();i++) {
+            List<SBOCandidate> candidateOps = new ArrayList<>();
+            candidateOps.add(allCandidateOps.get(i));
+            tasks.addLast(new SBOSearchTask(new SBOCandidate[0], candidateOps, codeStartAddress, 0));
         }
+        nQueuedTasks = tasks.size();
     }
     
     
-    synchronized public SBOCandidate getNextStartingOp()
+    /*
+    Returns the next task to execute, waiting if the queue is empty but other
+    threads are still running tasks (as they might split them). Returns null
+    when there is no more work left. Every task obtained via this method must
+    be released with "taskDone".
+    */
+    synchronized public SBOSearchTask getNextTask() throws InterruptedException
     {
-        if (nextCandidateOpAtDepth0 >= candidateOpsAtDepth0.size()) {
-            return null;
-        } else {
-            nextCandidateOpAtDepth0++;
-            return candidateOpsAtDepth0.get(nextCandidateOpAtDepth0 - 1);
+        while(tasks.isEmpty()) {
+            if (nRunningTasks == 0) return null;
+            nIdleThreads++;
+            wait();
+            nIdleThreads--;
         }
+        nRunningTasks++;
+        SBOSearchTask task = tasks.pollFirst();
+        nQueuedTasks = tasks.size();
+        return task;
     }
     
     
-    public void incrementSolutionsEvaluated(long amount)
+    synchronized public void addTask(SBOSearchTask task)
     {
-        solutionsEvaluated+=amount;
+        tasks.addLast(task);
+        nQueuedTasks = tasks.size();
+        notify();
     }
-
     
-    public boolean canBeBest(int nOps, int size)
+    
+    synchronized public void taskDone()
     {
-        return !(bestOps != null &&
-                (size > bestSize ||
-                (size == bestSize && nOps > bestOps.size())));
+        nRunningTasks--;
+        if (nRunningTasks == 0 && tasks.isEmpty()) {
+            // Wake up all idle threads, so they can terminate:
+            notifyAll();
+        }
     }
     
     
-    public boolean isBetter(int nOps, int size, float time) {
-        return bestOps == null ||
-                size < bestSize ||
-                (size == bestSize && nOps < bestOps.size()) ||
-                (size == bestSize && nOps == bestOps.size() && time < bestTime);
+    /*
+    Whether a thread that is about to explore the subtree below a prefix of
+    "prefixLength" ops should hand it over to the work queue instead. This is
+    called in the inner loop of the search, so it only reads volatile fields.
+    */
+    public boolean shouldSplit(int prefixLength, int codeMaxOps)
+    {
+        return prefixLength <= splitDepth &&
+               prefixLength < codeMaxOps &&
+               nIdleThreads > nQueuedTasks;
     }
     
     
-    synchronized public void newBest(List<CPUOp> ops, int size, float time)
+    public boolean timedOut()
     {
-        if (isBetter(ops.size(), size, time)) {
-            bestIdx ++;
-            bestOps = ops;
-            bestSize = size;
-            bestTime = time;
-        }
+        return timedOut;
+    }
+    
+    
+    public void incrementSolutionsEvaluated(long amount)
+    {
+        solutionsEvaluated.add(amount);
     }
     
     
-//    synchronized public void sync(SBOGlobalSearchState s)
-//    {
-//        if (s.bestOps != null &&
-//            isBetter(s.bestOps.size(), s.bestSize, s.bestTime)) {
-//            bestIdx ++;
-//            bestOps = s.bestOps;
-//            bestSize = s.bestSize;
-//            bestTime = s.bestTime;            
-//        }
-//        solutionsEvaluated += s.solutionsEvaluated;
-//    }
-//
-//
-//    synchronized public void copyToAnotherState(SBOGlobalSearchState s)
-//    {
-//        s.bestOps = bestOps;
-//        s.bestSize = bestSize;
-//        s.bestTime = bestTime;
-//    }
+    public long getSolutionsEvaluated()
+    {
+        return solutionsEvaluated.sum();
+    }
+    
+    
+    public SBOSolution getBest()
+    {
+        return best.get();
+    }
+    
+    
+    public List<CPUOp> getBestOps()
+    {
+        SBOSolution solution = best.get();
+        if (solution == null) return null;
+        return solution.ops;
+    }
 
+    
+    public static boolean canBeBest(SBOSolution best, int nOps, int size)
+    {
+        return !(best != null &&
+                (size > best.size ||
+                (size == best.size && nOps > best.ops.size())));
+    }
+    
+    
+    public static boolean isBetter(SBOSolution best, int nOps, int size, float time) {
+        return best == null ||
+                size < best.size ||
+                (size == best.size && nOps < best.ops.size()) ||
+                (size == best.size && nOps == best.ops.size() && time < best.time);
+    }
+    
+    
+    /*
+    Returns true if the solution was better than the current best (and thus
+    became the new best).
+    */
+    public boolean newBest(List<CPUOp> ops, int size, float time)
+    {
+        SBOSolution solution = new SBOSolution(ops, size, time);
+        while(true) {
+            SBOSolution current = best.get();
+            if (!isBetter(current, ops.size(), size, time)) return false;
+            if (best.compareAndSet(current, solution)) return true;
+        }
+    }
 }
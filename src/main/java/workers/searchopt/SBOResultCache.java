@@ -0,0 +1,280 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package workers.searchopt;
+
+import cl.MDLConfig;
+import code.CPUOpDependency;
+import code.CodeBase;
+import code.CodeStatement;
+import code.Expression;
+import code.SourceFile;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+import parser.SourceLine;
+import util.microprocessor.Z80.CPUConstants.RegisterNames;
+
+/**
+ *
+ * @author santi
+ *
+ * Persistent cache of the results of the search-based optimizer. Each entry
+ * maps a hash of a normalized specification (and of the code being optimized)
+ * to the best sequence of ops found for it, or to "no improvement". This way,
+ * repeated runs over the same code do not need to search again.
+ *
+ * The cache is stored as a text file in a cache directory, one entry per
+ * line: "<key>\t<op1>; <op2>; ..." (or "<key>\t-" if no solution was found, and
+ * "<key>\t()" if the best solution is to remove the code altogether).
+ * 
+ * Two kinds of keys are used: "specificationKey" (used by "-so-cache") and
+ * "windowKey" (used by "-so-incremental"), which is a fingerprint of the
+ * window of code to optimize and its live-register context, and that can be
+ * checked before the specification is even built.
+ *
+ */
+public class SBOResultCache {
+    public static final String CACHE_FILE_NAME = "mdl-sbo-cache.txt";
+    public static final String INCREMENTAL_FILE_NAME = "mdl-sbo-incremental.txt";
+    // Increment this if anything in the search changes in a way that would
+    // invalidate previously cached results:
+    public static final String CACHE_FORMAT_VERSION = "3";
+    public static final String NO_IMPROVEMENT = "-";
+    public static final String REMOVE_CODE = "()";
+    
+    // Returned by "get" when the cache recorded that no improvement was found
+    // (compared by reference, as an empty list means "remove the code"):
+    public static final List<CodeStatement> NO_IMPROVEMENT_RESULT = Collections.unmodifiableList(new ArrayList<>());
+
+    MDLConfig config;
+    String directory;
+    String fileName;
+    HashMap<String, String> entries = new HashMap<>();
+    boolean modified = false;
+    // If this is true, entries that were not looked up or stored during this
+    // run are removed when saving (so the file does not grow with stale entries):
+    boolean keepOnlyUsedEntries = false;
+    HashSet<String> usedKeys = new HashSet<>();
+    int nHits = 0;
+    int nMisses = 0;
+
+
+    public SBOResultCache(String a_directory, String a_fileName, boolean a_keepOnlyUsedEntries, MDLConfig a_config)
+    {
+        directory = a_directory;
+        fileName = a_fileName;
+        keepOnlyUsedEntries = a_keepOnlyUsedEntries;
+        config = a_config;
+    }
+
+
+    public String getFileName()
+    {
+        return directory + File.separator + fileName;
+    }
+
+
+    public boolean load()
+    {
+        entries.clear();
+        modified = false;
+        File f = new File(getFileName());
+        if (!f.exists()) return true;
+        try (BufferedReader br = new BufferedReader(new FileReader(f))) {
+            String line = br.readLine();
+            while(line != null) {
+                int idx = line.indexOf('\t');
+                if (idx > 0) {
+                    entries.put(line.substring(0, idx), line.substring(idx+1));
+                }
+                line = br.readLine();
+            }
+        } catch (Exception e) {
+            config.error("Cannot read the search-based optimizer cache file '" + getFileName() + "': " + e.getMessage());
+            return false;
+        }
+        config.debug("SBOResultCache: loaded " + entries.size() + " entries from " + getFileName());
+        return true;
+    }
+
+
+    public boolean save()
+    {
+        if (keepOnlyUsedEntries) {
+            if (entries.keySet().retainAll(usedKeys)) modified = true;
+        }
+        if (!modified) return true;
+        File dir = new File(directory);
+        if (!dir.exists() && !dir.mkdirs()) {
+            config.error("Cannot create the search-based optimizer cache directory '" + directory + "'");
+            return false;
+        }
+        try (FileWriter fw = new FileWriter(getFileName())) {
+            for(String key:entries.keySet()) {
+                fw.write(key + "\t" + entries.get(key) + "\n");
+            }
+        } catch (Exception e) {
+            config.error("Cannot write the search-based optimizer cache file '" + getFileName() + "': " + e.getMessage());
+            return false;
+        }
+        modified = false;
+        return true;
+    }
+
+
+    /*
+    Computes the key for a given optimization problem: the ops being optimized
+    (with the values their constants evaluate to), and the normalized
+    specification (which contains the start/goal registers and flags, and all
+    the search parameters).
+    */
+    public String specificationKey(Specification spec, List<CPUOpDependency> allDependencies,
+                                   List<CodeStatement> codeToOptimize, CodeBase code)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("v").append(CACHE_FORMAT_VERSION);
+        sb.append(";cpu:").append(config.cpu);
+        sb.append(";code:").append(codeFingerprint(codeToOptimize, code));
+        sb.append(spec.canonicalString(allDependencies));
+        return hash(sb.toString());
+    }
+    
+    
+    /*
+    Computes the fingerprint of a window of code to optimize: its ops, the
+    register values known before it, which registers are read inside of the
+    window, which registers/flags are live after it, and the search settings.
+    */
+    public String windowKey(List<CodeStatement> codeToOptimize, CodeBase code,
+                            HashMap<String, Integer> knownRegisterValues,
+                            List<RegisterNames> inputRegisters, List<RegisterNames> registersUsedAfter,
+                            List<Integer> flagsUsedAfter, String searchSettings)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("v").append(CACHE_FORMAT_VERSION);
+        sb.append(";cpu:").append(config.cpu);
+        sb.append(";code:").append(codeFingerprint(codeToOptimize, code));
+        sb.append(";known:").append(new TreeMap<>(knownRegisterValues));
+        sb.append(";input:").append(inputRegisters);
+        sb.append(";regsafter:").append(registersUsedAfter);
+        sb.append(";flagsafter:").append(flagsUsedAfter);
+        sb.append(";settings:").append(searchSettings);
+        return hash(sb.toString());
+    }
+    
+    
+    String codeFingerprint(List<CodeStatement> codeToOptimize, CodeBase code)
+    {
+        StringBuilder sb = new StringBuilder();
+        for(CodeStatement s:codeToOptimize) {
+            sb.append(s.op.toString());
+            for(Expression arg:s.op.args) {
+                if (arg.evaluatesToIntegerConstant()) {
+                    sb.append("|").append(arg.evaluateToInteger(s, code, true));
+                }
+            }
+            sb.append(";");
+        }
+        return sb.toString();
+    }
+    
+    
+    static String hash(String key)
+    {
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            byte hash[] = md.digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder();
+            for(byte b:hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (Exception e) {
+            // SHA-256 is always available, but just in case, fall back to the raw key:
+            return key.replace("\t", " ").replace("\n", " ");
+        }
+    }
+
+
+    /*
+    Returns the cached result as a list of statements (with "sf" as their source, and
+    empty if the code is to be removed), "NO_IMPROVEMENT_RESULT" if the cache
+    recorded that no improvement was found, or null if the key is not in the
+    cache (or the cached ops cannot be parsed).
+    */
+    public List<CodeStatement> get(String key, SourceFile sf, CodeBase code, MDLConfig internalConfig)
+    {
+        usedKeys.add(key);
+        String value = entries.get(key);
+        if (value == null) {
+            nMisses++;
+            return null;
+        }
+        if (value.equals(NO_IMPROVEMENT)) {
+            nHits++;
+            return NO_IMPROVEMENT_RESULT;
+        }
+        List<CodeStatement> l = new ArrayList<>();
+        if (!value.equals(REMOVE_CODE)) {
+            int lineNumber = 1;
+            for(String opString:value.split(";")) {
+                String line = "    " + opString.trim();
+                List<String> tokens = internalConfig.tokenizer.tokenize(line);
+                SourceLine sl = new SourceLine(line, sf, lineNumber);
+                List<CodeStatement> parsed = internalConfig.lineParser.parse(tokens, sl, sf, null, code, internalConfig);
+                if (parsed == null || parsed.size() != 1 || parsed.get(0).op == null) {
+                    config.warn("SBOResultCache: could not parse cached op '" + opString + "', ignoring cache entry.");
+                    entries.remove(key);
+                    modified = true;
+                    nMisses++;
+                    return null;
+                }
+                l.add(parsed.get(0));
+                lineNumber++;
+            }
+        }
+        nHits++;
+        return l;
+    }
+
+
+    public void put(String key, List<CodeStatement> optimized)
+    {
+        String value;
+        if (optimized == null) {
+            value = NO_IMPROVEMENT;
+        } else {
+            List<String> opStrings = new ArrayList<>();
+            for(CodeStatement s:optimized) {
+                if (s.op != null) opStrings.add(s.op.toString());
+            }
+            value = (opStrings.isEmpty() ? REMOVE_CODE : String.join("; ", opStrings));
+        }
+        usedKeys.add(key);
+        if (!value.equals(entries.put(key, value))) modified = true;
+    }
+
+
+    public int getNHits()
+    {
+        return nHits;
+    }
+
+
+    public int getNMisses()
+    {
+        return nMisses;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package workers.searchopt;
+
+import cl.MDLConfig;
+import java.io.FileWriter;
+
+/**
+ *
+ * @author santi
+ *
+ * Counters collected during one iteration of the iterative deepening search
+ * of the search-based optimizer (enabled with "-so-metrics"). Each search
+ * thread collects its own, and they are added together at the end of the
+ * iteration, so no synchronization is needed during search.
+ *
+ * Counters are kept per depth (number of ops in the program prefix):
+ * - nodes: prefixes whose possible next ops were expanded (the empty prefix
+ *   is split into one search task per first op, and is counted once per task)
+ * - leaves: complete programs that were emulated
+ * - instructions: instructions executed by the Z80 simulator
+ * - pruned-*: candidate ops discarded before being added to a prefix, and
+ *   the reason why (the SequenceFilter is applied when precomputing the
+ *   candidate ops, and hence does not show up here).
+ *
+ */
+public class SBOSearchMetrics {
+    public static final int NODES = 0;
+    public static final int LEAVES = 1;
+    public static final int INSTRUCTIONS = 2;
+    public static final int PRUNED_LIMITS = 3;              // max size/time exceeded
+    public static final int PRUNED_BEST_BOUND = 4;          // cannot improve the best solution so far
+    public static final int PRUNED_DEPENDENCIES = 5;        // inputs of the op not set yet
+    public static final int PRUNED_GOAL_CONTRIBUTION = 6;   // last op does not contribute to the goal
+    public static final int PRUNED_GOAL_DEPENDENCIES = 7;   // goal registers/flags not set by the last op
+    public static final int PRUNED_JUMPS = 8;               // unconditional jump before any conditional one
+    public static final int PRUNED_TRANSPOSITION = 9;       // equivalent prefix already explored
+    public static final String METRIC_NAMES[] = {
+        "nodes", "leaves", "instructions",
+        "pruned-limits", "pruned-best-bound", "pruned-dependencies",
+        "pruned-goal-contribution", "pruned-goal-dependencies", "pruned-jumps",
+        "pruned-transposition"};
+
+    public long counts[][];
+    // How many programs were rejected by each test case (by test case index):
+    public long testCaseRejections[];
+
+
+    public SBOSearchMetrics(int maxDepth, int nTestCases)
+    {
+        counts = new long[maxDepth+1][METRIC_NAMES.length];
+        testCaseRejections = new long[nTestCases];
+    }
+
+
+    synchronized public void add(SBOSearchMetrics m)
+    {
+        for(int depth = 0;depth<counts.length && depth<m.counts.length;depth++) {
+            for(int metric = 0;metric<METRIC_NAMES.length;metric++) {
+                counts[depth][metric] += m.counts[depth][metric];
+            }
+        }
+        for(int i = 0;i<testCaseRejections.length && i<m.testCaseRejections.length;i++) {
+            testCaseRejections[i] += m.testCaseRejections[i];
+        }
+    }
+
+
+    /*
+    Writes the report to "fileName" (appending to it if "append" is true).
+    If the file name ends in ".json", each report is written as a single line
+    JSON object. Otherwise, it is written as CSV rows of the form:
+    "search,levelType,level,scope,index,metric,value", where "scope" is either
+    "depth" or "testcase" (and "index" is the depth or test case index).
+    */
+    public boolean writeReport(String fileName, boolean append,
+                               int search, String levelType, int level,
+                               long solutionsEvaluated, long timeMillis,
+                               MDLConfig config)
+    {
+        try (FileWriter fw = new FileWriter(fileName, append)) {
+            if (fileName.toLowerCase().endsWith(".json")) {
+                fw.write(toJSON(search, levelType, level, solutionsEvaluated, timeMillis) + "\n");
+            } else {
+                if (!append) fw.write("search,levelType,level,scope,index,metric,value\n");
+                String prefix = search + "," + levelType + "," + level + ",";
+                fw.write(prefix + "search,0,solutions," + solutionsEvaluated + "\n");
+                fw.write(prefix + "search,0,time-ms," + timeMillis + "\n");
+                for(int depth = 0;depth<counts.length;depth++) {
+                    for(int metric = 0;metric<METRIC_NAMES.length;metric++) {
+                        fw.write(prefix + "depth," + depth + "," + METRIC_NAMES[metric] + "," + counts[depth][metric] + "\n");
+                    }
+                }
+                for(int i = 0;i<testCaseRejections.length;i++) {
+                    if (testCaseRejections[i] == 0) continue;
+                    fw.write(prefix + "testcase," + i + ",rejections," + testCaseRejections[i] + "\n");
+                }
+            }
+        } catch (Exception e) {
+            config.error("Cannot write the search-based optimizer metrics file '" + fileName + "': " + e.getMessage());
+            return false;
+        }
+        return true;
+    }
+
+
+    public String toJSON(int search, String levelType, int level,
+                         long solutionsEvaluated, long timeMillis)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"search\": ").append(search);
+        sb.append(", \"levelType\": \"").append(levelType).append("\"");
+        sb.append(", \"level\": ").append(level);
+        sb.append(", \"solutions\": ").append(solutionsEvaluated);
+        sb.append(", \"time-ms\": ").append(timeMillis);
+        sb.append(", \"depths\": [");
+        for(int depth = 0;depth<counts.length;depth++) {
+            if (depth > 0) sb.append(", ");
+            sb.append("{\"depth\": ").append(depth);
+            for(int metric = 0;metric<METRIC_NAMES.length;metric++) {
+                sb.append(", \"").append(METRIC_NAMES[metric]).append("\": ").append(counts[depth][metric]);
+            }
+            sb.append("}");
+        }
+        sb.append("], \"testCaseRejections\": {");
+        boolean first = true;
+        for(int i = 0;i<testCaseRejections.length;i++) {
+            if (testCaseRejections[i] == 0) continue;
+            if (!first) sb.append(", ");
+            sb.append("\"").append(i).append("\": ").append(testCaseRejections[i]);
+            first = false;
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package workers.searchopt;
+
+import java.util.List;
+
+/**
+ *
+ * @author santi
+ *
+ * A unit of work for the SBOExecutionThreads: a (possibly empty) prefix of
+ * ops that has already been validated, and the list of candidate ops to try
+ * next. Threads that run out of work pick these up from SBOGlobalSearchState.
+ *
+ */
+public class SBOSearchTask {
+    public SBOCandidate prefix[];
+    public List<SBOCandidate> candidateOps;
+    public int codeAddress;
+    public int currentTime;
+
+
+    public SBOSearchTask(SBOCandidate a_prefix[], List<SBOCandidate> a_candidateOps,
+                         int a_codeAddress, int a_currentTime)
+    {
+        prefix = a_prefix;
+        candidateOps = a_candidateOps;
+        codeAddress = a_codeAddress;
+        currentTime = a_currentTime;
+    }
+}
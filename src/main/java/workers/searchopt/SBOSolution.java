@@ -0,0 +1,33 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package workers.searchopt;
+
+import code.CPUOp;
+import java.util.List;
+
+/**
+ *
+ * @author santi
+ *
+ * An immutable solution found by the search-based optimizer. Since it cannot
+ * change once created, search threads can read the best solution found so
+ * far (in SBOGlobalSearchState) without locking, and always get a consistent
+ * set of ops, size and time.
+ *
+ */
+public class SBOSolution {
+    public final List<CPUOp> ops;
+    public final int size;
+    public final float time;
+
+
+    public SBOSolution(List<CPUOp> a_ops, int a_size, float a_time)
+    {
+        ops = a_ops;
+        size = a_size;
+        time = a_time;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package workers.searchopt;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author santi
+ *
+ * Bounded transposition table for the search-based optimizer. Different
+ * prefixes of ops often result in exactly the same search state (same
+ * number of ops, size and time, same dependencies, same follow-up ops, and
+ * same CPU state on the test cases). If the subtree below one of them was
+ * fully explored without finding any solution, the subtrees below all the
+ * others can be skipped. Since the CPU state is only compared on a few test
+ * cases, this can also skip prefixes that are not really equivalent, so the
+ * table can cost optimality (see SBOExecutionThread).
+ *
+ * The table is direct-mapped (a new entry always replaces the old one in the
+ * same slot), and is shared by all the search threads. Slots are protected
+ * by a set of striped locks, so that threads rarely contend.
+ *
+ */
+public class SBOTranspositionTable {
+    public static final int N_STRIPES = 64;
+
+    static class Entry {
+        long hash;
+        Object followUps;
+        int state[];
+
+        Entry(long a_hash, Object a_followUps, int a_state[])
+        {
+            hash = a_hash;
+            followUps = a_followUps;
+            state = a_state;
+        }
+    }
+
+    Entry table[];
+    int mask;
+    Object locks[] = new Object[N_STRIPES];
+
+
+    /*
+    "size" is rounded up to a power of two.
+    */
+    public SBOTranspositionTable(int size)
+    {
+        int actualSize = 1;
+        while(actualSize < size) actualSize *= 2;
+        table = new Entry[actualSize];
+        mask = actualSize - 1;
+        for(int i = 0;i<N_STRIPES;i++) {
+            locks[i] = new Object();
+        }
+    }
+
+
+    public static long hash(Object followUps, int state[], int stateLength)
+    {
+        long h = System.identityHashCode(followUps);
+        for(int i = 0;i<stateLength;i++) {
+            h = (h ^ state[i]) * 0x9E3779B97F4A7C15L;
+        }
+        return h ^ (h >>> 29);
+    }
+
+
+    /*
+    Returns true if the subtree below the search state defined by "followUps"
+    and the first "stateLength" elements of "state" is known not to contain
+    any solution.
+    */
+    public boolean contains(long hash, Object followUps, int state[], int stateLength)
+    {
+        int idx = (int)hash & mask;
+        synchronized(locks[idx & (N_STRIPES-1)]) {
+            Entry e = table[idx];
+            if (e == null || e.hash != hash || e.followUps != followUps ||
+                e.state.length != stateLength) return false;
+            for(int i = 0;i<stateLength;i++) {
+                if (e.state[i] != state[i]) return false;
+            }
+            return true;
+        }
+    }
+
+
+    public void store(long hash, Object followUps, int state[], int stateLength)
+    {
+        int idx = (int)hash & mask;
+        Entry e = new Entry(hash, followUps, Arrays.copyOf(state, stateLength));
+        synchronized(locks[idx & (N_STRIPES-1)]) {
+            table[idx] = e;
+        }
+    }
+}
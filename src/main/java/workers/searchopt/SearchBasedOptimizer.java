@@ -34,6 +34,8 @@ import util.microprocessor.Z80.CPUConstants;
 import util.microprocessor.Z80.CPUConstants.RegisterNames;
 import util.microprocessor.Z80.Z80Core;
 import workers.MDLWorker;
+import workers.pattopt.LivenessAnalysis;
+import workers.pattopt.LivenessCache;
 import workers.pattopt.Pattern;
 
 /**
@@ -77,12 +79,37 @@ public class SearchBasedOptimizer implements MDLWorker {
     int flags_maxOps = -1;
     int flags_nThreads = -1;
     int flags_nChecks = -1;
+    int flags_splitDepth = -1;
+    int flags_transpositionTableSize = 0;
+    boolean flags_byteMemory = false;
+    
+    // If not null, search metrics are written to this file after each
+    // iteration of the iterative deepening search:
+    String metricsFileName = null;
+    boolean metricsFileStarted = false;
+    int metricsSearchIndex = 0;
+    
+    // Wall-clock time budgets (in milliseconds, 0 means no limit) for the
+    // whole run, and for each individual search (each window of code in
+    // optimization mode). When a search runs out of time, the best solution
+    // found so far is used:
+    long flags_runTimeBudget = 0;
+    long flags_searchTimeBudget = 0;
+    long runDeadline = 0;
+    int nWindowsLeft = 1;
+    boolean lastSearchTimedOut = false;
     
     int optimization_max_block_size = 2;
 
     int stopAfter = -1;
     
     List<String> onlyOptimizeThesefiles = new ArrayList<>();
+    
+    String cacheDirectory = null;
+    SBOResultCache cache = null;
+    String incrementalDirectory = null;
+    SBOResultCache incrementalState = null;
+    int nSearches = 0;  // searches run in optimization mode (i.e., not replayed/cached)
 
     public final int DEPTH_TO_PRECOMPUTE3 = 4;
     public final int SIZE_TO_PRECOMPUTE3 = 7;
@@ -93,6 +120,7 @@ public class SearchBasedOptimizer implements MDLWorker {
     
     // Cache to accelerate computations:
     List<RegisterNames> registersUsedAfter_previous = null;
+    LivenessCache livenessCache = null;
 
     SequenceFilter filter = null;
     
@@ -118,9 +146,17 @@ public class SearchBasedOptimizer implements MDLWorker {
                "- ```-so-maxsize <n>```: (only for program generation) Sets the maximum number of bytes the resulting program can occupy.\n" +
                "- ```-so-maxtime <n>```: (only for program generation) Sets the maximum time (in whichever units the target CPU uses) that the resulting program can take to execute.\n" +
                "- ```-so-threads <n>```: Sets the number of threads to use during search (default value is the number of cores of the CPU).\n" +
+               "- ```-so-split-depth <n>```: When some search threads become idle, busy threads hand over the unexplored parts of their search trees to them. This sets the maximum number of ops of the program prefixes that can be handed over this way (default is " + SBOGlobalSearchState.DEFAULT_SPLIT_DEPTH + "). Larger values balance the work better among threads at the cost of some overhead.\n" +
+               "- ```-so-lossy-transposition-table <n>```: Trades search quality for speed (disabled by default): uses a transposition table with <n> entries, and prefixes of ops that result in the same CPU state as one whose continuations were already explored (without finding any solution) are skipped. The CPU state is only compared on a few test cases, so different prefixes can be considered equivalent, and the optimal solution might be missed (the solutions found are still checked as usual). This can significantly speed up searches for long programs, but uses more memory (note: it is not used if memory, IO ports or loops are allowed in the search).\n" +
+               "- ```-so-metrics <file>```: Collects search metrics (nodes expanded, pruned candidate ops by reason, programs emulated, simulated instructions per depth, and programs rejected by each test case), and writes them to <file> after each iteration of the iterative deepening search. If the file name ends in .json, each iteration is written as a one-line JSON object; otherwise, CSV is used. This is useful to identify which parts of the search to optimize, but makes search slightly slower.\n" +
+               "- ```-so-time-budget <seconds>```: Sets a wall-clock time budget for the whole run of the optimizer. When it runs out, searches stop and keep the best solution found so far, and no more code is optimized. In optimization mode, the remaining budget is split evenly among the remaining code windows, so time not used by one window is available for the ones after it. This is useful to have a predictable upper bound on build time (e.g., in continuous integration).\n" +
+               "- ```-so-window-time-budget <seconds>```: Sets a wall-clock time budget for each individual search (each window of code in optimization mode). When it runs out, search stops and keeps the best solution found so far (which might not be optimal).\n" +
+               "- ```-so-byte-memory```: Search threads simulate memory using one byte per address (rather than one int), which reduces the amount of CPU cache each thread needs. This can speed up search when using many threads (note: it is not used if memory is allowed in the search).\n" +
                "- ```-so-checks <n>```: Sets the number of random solution checks to consider a solution valid (default is 10000). Higher means more safety, but slower. If this is too low, the optimizer might generate wrong code by chance.\n" +
                "- ```-so-blocksize <n>```: (only for existing assembler optimization) Blocks of this number of instructions will be taken one at a time and optimized (default is 2).\n" +
                "- ```-so-file <name>```: (only for existing assembler optimization) limits optimizations to a particular file (this is useful, since this is a slow optimizer, and we might want to target optimizing just one part of the code). This flag can be repeated to specify several files.\n" +
+               "- ```-so-cache <directory>```: (only for existing assembler optimization) Stores the results of each search in a cache file in the specified directory, and reuses them in subsequent runs, so that only code that has changed needs to be searched again.\n" +
+               "- ```-so-incremental <directory>```: (only for existing assembler optimization) Records a fingerprint of each block of code considered for optimization (its instructions and the registers/flags live around it) and its outcome in the specified directory. In subsequent runs, blocks whose fingerprint has not changed are not searched again, and their previous outcome is replayed.\n" +
                "- ```-so-stop-after <n>```: Stops optimizing after n optimizations. This is useful for debugging, if there is any optimization that breaks the code, to help locate it.\n";
     }
 
@@ -226,6 +262,58 @@ public class SearchBasedOptimizer implements MDLWorker {
             }
             return true;
         }
+        if (flags.get(0).equals("-so-split-depth") && flags.size()>=2) {
+            flags.remove(0);
+            String tmp = flags.remove(0);
+            if (!config.tokenizer.isInteger(tmp)) {
+                config.error("Invalid argument to -so-split-depth: " + tmp);
+                return false;
+            }
+            flags_splitDepth = Integer.parseInt(tmp);
+            if (flags_splitDepth < 0) {
+                config.error("Invalid argument to -so-split-depth: " + tmp + " (split depth cannot be negative)");
+            }
+            return true;
+        }
+        if (flags.get(0).equals("-so-lossy-transposition-table") && flags.size()>=2) {
+            flags.remove(0);
+            String tmp = flags.remove(0);
+            if (!config.tokenizer.isInteger(tmp)) {
+                config.error("Invalid argument to -so-lossy-transposition-table: " + tmp);
+                return false;
+            }
+            flags_transpositionTableSize = Integer.parseInt(tmp);
+            if (flags_transpositionTableSize < 0) {
+                config.error("Invalid argument to -so-lossy-transposition-table: " + tmp + " (size cannot be negative)");
+                return false;
+            }
+            return true;
+        }
+        if ((flags.get(0).equals("-so-time-budget") || 
+             flags.get(0).equals("-so-window-time-budget")) && flags.size()>=2) {
+            String flag = flags.remove(0);
+            String tmp = flags.remove(0);
+            if (!config.tokenizer.isInteger(tmp) || Integer.parseInt(tmp) <= 0) {
+                config.error("Invalid argument to " + flag + ": " + tmp + " (time budget must be a positive number of seconds)");
+                return false;
+            }
+            if (flag.equals("-so-time-budget")) {
+                flags_runTimeBudget = Integer.parseInt(tmp) * 1000L;
+            } else {
+                flags_searchTimeBudget = Integer.parseInt(tmp) * 1000L;
+            }
+            return true;
+        }
+        if (flags.get(0).equals("-so-byte-memory")) {
+            flags.remove(0);
+            flags_byteMemory = true;
+            return true;
+        }
+        if (flags.get(0).equals("-so-metrics") && flags.size()>=2) {
+            flags.remove(0);
+            metricsFileName = flags.remove(0);
+            return true;
+        }
         if (flags.get(0).equals("-so-checks") && flags.size()>=2) {
             flags.remove(0);
             String tmp = flags.remove(0);
@@ -262,6 +350,16 @@ public class SearchBasedOptimizer implements MDLWorker {
             }
             return true;
         }
+        if (flags.get(0).equals("-so-cache") && flags.size()>=2) {
+            flags.remove(0);
+            cacheDirectory = flags.remove(0);
+            return true;
+        }
+        if (flags.get(0).equals("-so-incremental") && flags.size()>=2) {
+            flags.remove(0);
+            incrementalDirectory = flags.remove(0);
+            return true;
+        }
         if (flags.get(0).equals("-so-file") && flags.size()>=2) {
             flags.remove(0);
             onlyOptimizeThesefiles.add(flags.get(0));
@@ -289,6 +387,8 @@ public class SearchBasedOptimizer implements MDLWorker {
         }
         internalConfig.logger = config.logger;
         
+        runDeadline = 0;
+        if (flags_runTimeBudget > 0) runDeadline = System.currentTimeMillis() + flags_runTimeBudget;
         if (operation == SBO_GENERATE) {
             return workGenerate(a_code);
         } else {
@@ -346,6 +446,7 @@ public class SearchBasedOptimizer implements MDLWorker {
         
         List<CPUOpDependency> allDependencies = spec.precomputeAllDependencies();        
                 
+        nWindowsLeft = 1;
         return workGenerate(spec, filter, allDependencies, sf, code);
     }
     
@@ -360,6 +461,11 @@ public class SearchBasedOptimizer implements MDLWorker {
         // Precompute all the op dependencies before search:
         int nDependencies = allDependencies.size();
         config.debug("workGenerate: nDependencies: " + nDependencies);
+        if (nDependencies > 64) {
+            // Dependencies are packed into "long" bitmasks during search:
+            config.error("workGenerate: too many dependencies (" + nDependencies + "), the maximum is 64.");
+            return false;
+        }
                 
         List<SBOCandidate> allCandidateOps = SBOCandidate.precomputeCandidateOps(spec, allDependencies, code, filter, 1, internalConfig);
         if (allCandidateOps == null) return false;
@@ -415,6 +521,12 @@ public class SearchBasedOptimizer implements MDLWorker {
         }
                 
         SBOGlobalSearchState state = new SBOGlobalSearchState();
+        if (flags_splitDepth >= 0) state.splitDepth = flags_splitDepth;
+        state.transpositionTableSize = flags_transpositionTableSize;
+        state.byteMemory = flags_byteMemory;
+        state.collectMetrics = metricsFileName != null;
+        state.deadline = nextSearchDeadline();
+        metricsSearchIndex++;
 //        boolean goalDependencies[] = spec.getGoalDependencies(allDependencies);
         int nopDuration = config.opParser.getOpSpecs("nop").get(0).times[0];
         int nThreads = Runtime.getRuntime().availableProcessors();
@@ -436,7 +548,8 @@ public class SearchBasedOptimizer implements MDLWorker {
 //                        allCandidateOps = precomputeCandidateOps(spec, allDependencies, code, 4);
 //                        if (allCandidateOps == null) return false;                        
                     }
-                    state.init(allCandidateOps, depth==0);
+                    state.init(allCandidateOps, depth==0, spec.codeStartAddress,
+                               depth, spec.numberOfRandomSolutionChecks);
                     for(int i = 0;i<nThreads;i++) {
                         threads[i] = new SBOExecutionThread("thread-" + i, 
                                             spec, allDependencies,
@@ -447,13 +560,15 @@ public class SearchBasedOptimizer implements MDLWorker {
                         threads[i].start();
                     }
                     for(int i = 0;i<nThreads;i++) threads[i].join();
+                    if (!reportMetrics(state, "depth", depth, start)) return false;
+                    if (state.timedOut()) break;
                     String time = String.format("%.02f", (System.currentTimeMillis() - start)/1000.0f) + "s";
                     if (silentSearch) {
-                        config.debug("SearchBasedOptimizer: depth "+depth+" complete ("+state.solutionsEvaluated+" solutions tested, time elapsed: "+time+")");
+                        config.debug("SearchBasedOptimizer: depth "+depth+" complete ("+state.getSolutionsEvaluated()+" solutions tested, time elapsed: "+time+")");
                     } else {
-                        config.info("SearchBasedOptimizer: depth "+depth+" complete ("+state.solutionsEvaluated+" solutions tested, time elapsed: "+time+")");
+                        config.info("SearchBasedOptimizer: depth "+depth+" complete ("+state.getSolutionsEvaluated()+" solutions tested, time elapsed: "+time+")");
                     }
-                    if (state.bestOps != null) break;
+                    if (state.getBestOps() != null) break;
                 }
 
             } else if (spec.searchType == SEARCH_ID_BYTES) {
@@ -463,7 +578,8 @@ public class SearchBasedOptimizer implements MDLWorker {
                         allCandidateOps = SBOCandidate.precomputeCandidateOps(spec, allDependencies, code, filter, precomputeScheduleSize.get(size), config);
                         if (allCandidateOps == null) return false;                        
                     }
-                    state.init(allCandidateOps, size==0);
+                    state.init(allCandidateOps, size==0, spec.codeStartAddress,
+                               spec.maxOps, spec.numberOfRandomSolutionChecks);
                     for(int i = 0;i<nThreads;i++) {
                         threads[i] = new SBOExecutionThread("thread-" + i, 
                                             spec, allDependencies,
@@ -474,9 +590,11 @@ public class SearchBasedOptimizer implements MDLWorker {
                         threads[i].start();
                     }
                     for(int i = 0;i<nThreads;i++) threads[i].join();
-                    if (state.bestOps != null) break;
+                    if (!reportMetrics(state, "size", size, start)) return false;
+                    if (state.timedOut()) break;
+                    if (state.getBestOps() != null) break;
                     String time = String.format("%.02f", (System.currentTimeMillis() - start)/1000.0f) + "s";
-                    if (!silentSearch) config.info("SearchBasedOptimizer: size "+size+" complete ("+state.solutionsEvaluated+" solutions tested, time elapsed: "+time+")");
+                    if (!silentSearch) config.info("SearchBasedOptimizer: size "+size+" complete ("+state.getSolutionsEvaluated()+" solutions tested, time elapsed: "+time+")");
                 }
 
             } else if (spec.searchType == SEARCH_ID_CYCLES) {
@@ -487,7 +605,8 @@ public class SearchBasedOptimizer implements MDLWorker {
                         allCandidateOps = SBOCandidate.precomputeCandidateOps(spec, allDependencies, code, filter, precomputeScheduleSize.get(maxTime/nopDuration), config);
                         if (allCandidateOps == null) return false;                        
                     }
-                    state.init(allCandidateOps, maxTime==0);
+                    state.init(allCandidateOps, maxTime==0, spec.codeStartAddress,
+                               spec.maxOps, spec.numberOfRandomSolutionChecks);
                     for(int i = 0;i<nThreads;i++) {
                         threads[i] = new SBOExecutionThread("thread-" + i, 
                                             spec, allDependencies,
@@ -498,9 +617,11 @@ public class SearchBasedOptimizer implements MDLWorker {
                         threads[i].start();
                     }
                     for(int i = 0;i<nThreads;i++) threads[i].join();
-                    if (state.bestOps != null) break;
+                    if (!reportMetrics(state, "time", maxTime, start)) return false;
+                    if (state.timedOut()) break;
+                    if (state.getBestOps() != null) break;
                     String time = String.format("%.02f", (System.currentTimeMillis() - start)/1000.0f) + "s";
-                    if (!silentSearch) config.info("SearchBasedOptimizer: time "+maxTime+" complete ("+state.solutionsEvaluated+" solutions tested, time elapsed: "+time+")");
+                    if (!silentSearch) config.info("SearchBasedOptimizer: time "+maxTime+" complete ("+state.getSolutionsEvaluated()+" solutions tested, time elapsed: "+time+")");
                 }
                 
             } else {
@@ -512,14 +633,23 @@ public class SearchBasedOptimizer implements MDLWorker {
             config.error("Exception while executing the search-based optimizer: " + Arrays.toString(e.getStackTrace()));
             return false;
         }
+        
+        lastSearchTimedOut = state.timedOut();
+        if (lastSearchTimedOut) {
+            if (silentSearch) {
+                config.debug("SearchBasedOptimizer: time budget exhausted, search stopped.");
+            } else {
+                config.warn("SearchBasedOptimizer: time budget exhausted, search stopped (the solution found, if any, might not be optimal).");
+            }
+        }
             
-        if (state.bestOps == null) {
+        if (state.getBestOps() == null) {
             if (!silentSearch) config.error("No program that satisfied the specification was found.");
             return false;
         }
         
         int lineNumber = 1;
-        for(CPUOp op:state.bestOps) {
+        for(CPUOp op:state.getBestOps()) {
             SourceLine sl = new SourceLine("    " + op.toString(), sf, lineNumber);
             CodeStatement s = new CodeStatement(CodeStatement.STATEMENT_CPUOP, sl, sf, config);
             s.op = op;
@@ -528,12 +658,74 @@ public class SearchBasedOptimizer implements MDLWorker {
         }
         
         String time = String.format("%.02f", (System.currentTimeMillis() - start)/1000.0f) + "s";
-        if (!silentSearch) config.info("SearchBasedOptimizer: search ended ("+state.solutionsEvaluated+" solutions tested, time elapsed: "+time+")");
+        if (!silentSearch) config.info("SearchBasedOptimizer: search ended ("+state.getSolutionsEvaluated()+" solutions tested, time elapsed: "+time+")");
                 
         return true;
     }
     
     
+    /*
+    Returns the time at which the next search must stop (0 if there is no time
+    limit). If there is a time budget for the whole run, what is left of it is
+    split evenly among the "nWindowsLeft" searches still to run.
+    */
+    private long nextSearchDeadline()
+    {
+        long now = System.currentTimeMillis();
+        long allowance = -1;
+        if (flags_searchTimeBudget > 0) allowance = flags_searchTimeBudget;
+        if (runDeadline > 0) {
+            long share = Math.max(0, runDeadline - now) / Math.max(1, nWindowsLeft);
+            if (allowance < 0 || share < allowance) allowance = share;
+        }
+        if (allowance < 0) return 0;
+        return now + allowance;
+    }
+    
+    
+    /*
+    Writes the metrics collected during the last iteration of the iterative
+    deepening search (if enabled). The first report of this run overwrites the
+    file, and the rest are appended to it.
+    */
+    private boolean reportMetrics(SBOGlobalSearchState state, String levelType, int level, long start)
+    {
+        if (state.metrics == null) return true;
+        if (!state.metrics.writeReport(metricsFileName, metricsFileStarted,
+                                       metricsSearchIndex, levelType, level,
+                                       state.getSolutionsEvaluated(),
+                                       System.currentTimeMillis() - start, config)) {
+            return false;
+        }
+        metricsFileStarted = true;
+        return true;
+    }
+    
+    
+    public SBOResultCache getCache()
+    {
+        return cache;
+    }
+
+
+    public SBOResultCache getIncrementalState()
+    {
+        return incrementalState;
+    }
+
+
+    public int getNSearches()
+    {
+        return nSearches;
+    }
+
+
+    public boolean getLastSearchTimedOut()
+    {
+        return lastSearchTimedOut;
+    }
+
+
     private boolean workOptimize(CodeBase code) {
         int n_appliedOptimizations = 0;
         boolean done = false;
@@ -547,21 +739,41 @@ public class SearchBasedOptimizer implements MDLWorker {
         
         OptimizationResult r = new OptimizationResult();
         
+        if (cacheDirectory != null) {
+            cache = new SBOResultCache(cacheDirectory, SBOResultCache.CACHE_FILE_NAME, false, config);
+            if (!cache.load()) return false;
+        }
+        if (incrementalDirectory != null) {
+            incrementalState = new SBOResultCache(incrementalDirectory, SBOResultCache.INCREMENTAL_FILE_NAME, true, config);
+            if (!incrementalState.load()) return false;
+        }
+        nSearches = 0;
+        livenessCache = new LivenessCache();
+        livenessCache.analysis = new LivenessAnalysis(config);
+        livenessCache.analysis.build(code);
+        
+        // Number of ops to consider as the starting point of a window (to split the
+        // time budget among them):
+        nWindowsLeft = 0;
+        for (SourceFile f : code.getSourceFiles()) {
+            if (!shouldOptimizeFile(f)) continue;
+            for (CodeStatement s : f.getStatements()) {
+                if (s.op != null) nWindowsLeft++;
+            }
+        }
+        
         for (SourceFile f : code.getSourceFiles()) {
             HashMap<Integer,HashMap<String,Integer>> previousKnownRegisterValues = new HashMap<>();
             HashMap<String, Integer> knownRegisterValues = new HashMap<>();
             registersUsedAfter_previous = null;
-            if (!onlyOptimizeThesefiles.isEmpty()) {
-                boolean optimize = false;
-                for(String fileName:onlyOptimizeThesefiles) {
-                    if (f.fileName.contains(fileName)) {
-                        optimize = true;
-                        break;
-                    }
-                }
-                if (!optimize) continue;
-            }
+            if (!shouldOptimizeFile(f)) continue;
             for (int i = 0; i < f.getStatements().size() && !done; i++) {
+                if (runDeadline > 0 && System.currentTimeMillis() >= runDeadline) {
+                    config.warn("SearchBasedOptimizer: time budget exhausted, stopping optimization at " + f.getStatements().get(i).fileNameLineString());
+                    done = true;
+                    break;
+                }
+                if (f.getStatements().get(i).op != null && nWindowsLeft > 1) nWindowsLeft--;
                 HashMap<String, Integer> knownRegisterValuesCopy = new HashMap<>();
                 knownRegisterValuesCopy.putAll(knownRegisterValues);
                 previousKnownRegisterValues.put(i, knownRegisterValuesCopy);
@@ -574,7 +786,6 @@ public class SearchBasedOptimizer implements MDLWorker {
                 try {
                     if (optimizeStartingFromLine(f, i, knownRegisterValues, code, r)) {                        
                         i = Math.max(-1, i-2);   // go back a couple of statements, as more optimizations might chain
-                        code.resetAddressesAndFlow();
                         registersUsedAfter_previous = null;
                         
                         // Reset known values after optimization just in case:
@@ -611,7 +822,17 @@ public class SearchBasedOptimizer implements MDLWorker {
             if (done) break;
         }
         
+        livenessCache = null;
         code.resetAddressesAndFlow();
+        
+        if (cache != null) {
+            config.debug("SearchBasedOptimizer: cache hits: " + cache.getNHits() + ", misses: " + cache.getNMisses());
+            cache.save();
+        }
+        if (incrementalState != null) {
+            config.debug("SearchBasedOptimizer: incremental: " + incrementalState.getNHits() + " blocks replayed, " + incrementalState.getNMisses() + " blocks searched");
+            incrementalState.save();
+        }
 
         Integer noptimizations = r.optimizerSpecificStats.get(SBO_RESULT_KEY);
         if (noptimizations == null) noptimizations = 0;
@@ -624,6 +845,16 @@ public class SearchBasedOptimizer implements MDLWorker {
     }
     
     
+    private boolean shouldOptimizeFile(SourceFile f)
+    {
+        if (onlyOptimizeThesefiles.isEmpty()) return true;
+        for(String fileName:onlyOptimizeThesefiles) {
+            if (f.fileName.contains(fileName)) return true;
+        }
+        return false;
+    }
+    
+    
     private boolean isOptimizationSafeConstant(Expression exp, CodeBase code) 
     {
         if (exp.isConstant()) return true;
@@ -1015,6 +1246,21 @@ public class SearchBasedOptimizer implements MDLWorker {
             config.debug("    - Goal flags: " + flagsUsedAfterNames);
         }
         config.debug("    - sets memory: " + goalRequiresSettingMemory);
+        
+        SourceFile sf = new SourceFile(f.fileName + "[optimized]", null, null, code, config);
+        String windowKey = null;
+        if (incrementalState != null) {
+            windowKey = incrementalState.windowKey(codeToOptimize, code, knownRegisterValues, 
+                    inputRegisters, registersUsedAfter, flagsUsedAfter, 
+                    spec.searchType + "," + optimization_max_block_size + "," + spec.numberOfRandomSolutionChecks);
+            List<CodeStatement> previous = incrementalState.get(windowKey, sf, code, internalConfig);
+            if (previous != null) {
+                config.debug("SBO: block unchanged since the last run, replaying: " + previous);
+                if (previous == SBOResultCache.NO_IMPROVEMENT_RESULT) return false;
+                sf.getStatements().addAll(previous);
+                return applyOptimization(codeToOptimize, sf, constantsToExpressions, spec.searchType, f, code, r);
+            }
+        }
 
         // Start State:
         for(String reg:knownRegisterValues.keySet()) {
@@ -1044,6 +1290,92 @@ public class SearchBasedOptimizer implements MDLWorker {
         }
         spec.precomputeGoalDependencyIndexes();
 
+        String cacheKey = null;
+        List<CodeStatement> cached = null;
+        if (cache != null) {
+            cacheKey = cache.specificationKey(spec, allDependencies, codeToOptimize, code);
+            cached = cache.get(cacheKey, sf, code, internalConfig);
+            if (cached != null) {
+                config.debug("SBO: result found in the cache: " + cached);
+                if (cached == SBOResultCache.NO_IMPROVEMENT_RESULT) {
+                    if (windowKey != null) incrementalState.put(windowKey, null);
+                    return false;
+                }
+                sf.getStatements().addAll(cached);
+            }
+        }
+        
+        if (cached == null) {
+            lastSearchTimedOut = false;
+            nSearches++;
+            boolean found = searchForOptimization(spec, codeToOptimize, inputRegisters, registersUsedAfter, flagsUsedAfter, 
+                                                  allDependencies, sf, code);
+            // The result of a search cut short by the time budget, or run with the lossy
+            // transposition table, is not recorded, as a later run with more time or
+            // without the table might find a better one:
+            if (lastSearchTimedOut || flags_transpositionTableSize > 0) {
+                cacheKey = null;
+                windowKey = null;
+            }
+            if (!found) {
+                if (cacheKey != null) cache.put(cacheKey, null);
+                if (windowKey != null) incrementalState.put(windowKey, null);
+                return false;
+            }
+            if (cacheKey != null) cache.put(cacheKey, sf.getStatements());
+        }
+        if (windowKey != null) incrementalState.put(windowKey, sf.getStatements());
+        
+        return applyOptimization(codeToOptimize, sf, constantsToExpressions, spec.searchType, f, code, r);
+    }
+    
+    
+    /*
+    Replaces the constants in the optimized code found by search by the expressions
+    they came from, and replaces the original code if the result is better.
+    */
+    private boolean applyOptimization(List<CodeStatement> codeToOptimize, SourceFile sf, 
+                                      HashMap<Integer, List<Expression>> constantsToExpressions,
+                                      int searchType, SourceFile f, CodeBase code, OptimizationResult r)
+    {
+        // Replace constants by their corresponding expressions:
+//        System.out.println("constantsToExpressions: " + constantsToExpressions);
+        for(CodeStatement s:sf.getStatements()) {
+            if (s.op != null) {
+                for(int i = 0;i<s.op.args.size();i++) {
+                    Expression arg = s.op.args.get(i);
+                    if (arg.type == Expression.EXPRESSION_INTEGER_CONSTANT) {
+                        List<Expression> l = constantsToExpressions.get(arg.integerConstant);
+                        if (l != null && !l.isEmpty()) {
+                            s.op.args.set(i, l.get(0));
+                        }
+                    } else if (arg.type == Expression.EXPRESSION_PARENTHESIS &&
+                               arg.args.size() == 1 &&
+                               arg.args.get(0).type == Expression.EXPRESSION_INTEGER_CONSTANT) {
+                        // indirection:
+                        List<Expression> l = constantsToExpressions.get(arg.args.get(0).integerConstant);
+                        if (l != null && !l.isEmpty()) {
+                            arg.args.set(0, l.get(0));
+                        }
+                    }
+                }
+            }
+        }
+                
+        // - If better, replace:
+        return replaceIfBetter(codeToOptimize, sf.getStatements(), searchType, f, code, r);
+    }
+    
+    
+    /*
+    Generates the test cases for "spec", and runs the search. Returns "true" if
+    a solution was found (and stored in "sf").
+    */
+    private boolean searchForOptimization(Specification spec, List<CodeStatement> codeToOptimize,
+                                          List<RegisterNames> inputRegisters, List<RegisterNames> registersUsedAfter,
+                                          List<Integer> flagsUsedAfter, List<CPUOpDependency> allDependencies,
+                                          SourceFile sf, CodeBase code) throws Exception
+    {
         // Precompute test cases:
         spec.codeStartAddress = codeToOptimize.get(0).getAddress(code);
         IMemory z80Memory;
@@ -1069,7 +1401,13 @@ public class SearchBasedOptimizer implements MDLWorker {
                 flagsUsedAfter, z80, z80Memory, code, config);
         for(int i = 0;i<spec.numberOfRandomSolutionChecks;i++) {
             try {
-                spec.precomputedTestCases[i] = spec.testCaseGenerator.generateTestCase(config);
+                // Start with targeted edge cases (but leave at least half of the tests random):
+                if (i < spec.numberOfRandomSolutionChecks/2) {
+                    spec.precomputedTestCases[i] = spec.testCaseGenerator.generateEdgeCaseTestCase(i, config);
+                }
+                if (spec.precomputedTestCases[i] == null) {
+                    spec.precomputedTestCases[i] = spec.testCaseGenerator.generateTestCase(config);
+                }
             } catch(ProcessorException e) {
                 config.warn("Skipping lines, as instructions not supported by the z80 simulator were detected.");
                 return false;
@@ -1086,42 +1424,12 @@ public class SearchBasedOptimizer implements MDLWorker {
             config.error(Arrays.toString(e.getStackTrace()));
             return false;
         }
-        SourceFile sf = new SourceFile(f.fileName + "[optimized]", null, null, code, config);
-        if (!workGenerate(spec, filter, allDependencies, sf, code)) {
-            return false;
-        }
-        
-        // Replace constants by their corresponding expressions:
-//        System.out.println("constantsToExpressions: " + constantsToExpressions);
-        for(CodeStatement s:sf.getStatements()) {
-            if (s.op != null) {
-                for(int i = 0;i<s.op.args.size();i++) {
-                    Expression arg = s.op.args.get(i);
-                    if (arg.type == Expression.EXPRESSION_INTEGER_CONSTANT) {
-                        List<Expression> l = constantsToExpressions.get(arg.integerConstant);
-                        if (l != null && !l.isEmpty()) {
-                            s.op.args.set(i, l.get(0));
-                        }
-                    } else if (arg.type == Expression.EXPRESSION_PARENTHESIS &&
-                               arg.args.size() == 1 &&
-                               arg.args.get(0).type == Expression.EXPRESSION_INTEGER_CONSTANT) {
-                        // indirection:
-                        List<Expression> l = constantsToExpressions.get(arg.args.get(0).integerConstant);
-                        if (l != null && !l.isEmpty()) {
-                            arg.args.set(0, l.get(0));
-                        }
-                    }
-                }
-            }
-        }
-                
-        // - If better, replace:
-        return replaceIfBetter(codeToOptimize, sf.getStatements(), spec.searchType, f, r);
+        return workGenerate(spec, filter, allDependencies, sf, code);
     }
     
     
     boolean replaceIfBetter(List<CodeStatement> originalCode, List<CodeStatement> optimized, int criteria, SourceFile f, 
-                            OptimizationResult r)
+                            CodeBase code, OptimizationResult r)
     {
         boolean better = false;
         int n1 = 0, bytes1 = 0, time1[] = {0, 0};
@@ -1206,6 +1514,7 @@ public class SearchBasedOptimizer implements MDLWorker {
                         "replace " + originalString + " with " + optimizedString + " ("+bytesSaved+" bytes, " +
                         timeSavedString + " " +config.timeUnit+"s saved)");
             // replace!:
+            List<CodeStatement> touched = LivenessCache.statementsTouchedBy(f, originalCode);
             List<CodeStatement> additionalStatements = new ArrayList<>();
             int insertionPoint = f.getStatements().indexOf(originalCode.get(0));
             for(CodeStatement s:originalCode) {
@@ -1232,6 +1541,12 @@ public class SearchBasedOptimizer implements MDLWorker {
                 f.addStatement(insertionPoint, s);
                 insertionPoint++;
             }
+            code.resetAddressesAndFlow();
+            if (livenessCache != null) {
+                List<CodeStatement> added = new ArrayList<>(additionalStatements);
+                added.addAll(optimized);
+                livenessCache.invalidate(touched, added, originalCode, code);
+            }
             
             r.addOptimizerSpecific(SBO_RESULT_KEY, 1);
             r.addSavings(bytesSaved, timeSaved);
@@ -1297,7 +1612,7 @@ public class SearchBasedOptimizer implements MDLWorker {
                     continue;
                 }
                 CodeStatement s = l.get(l.size()-1);
-                Boolean used = Pattern.regUsedAfter(s, CPUConstants.registerName(reg), f, code);
+                Boolean used = Pattern.regUsedAfter(s, CPUConstants.registerName(reg), f, code, livenessCache);
                 if (used == null || used == true) {
                     registers.add(reg);
                 }
@@ -1328,7 +1643,7 @@ public class SearchBasedOptimizer implements MDLWorker {
                 }
                 if (check) {
                     CodeStatement s = l.get(l.size()-1);
-                    Boolean used2 = Pattern.regUsedAfter(s, CPUConstants.registerName(reg), f, code);
+                    Boolean used2 = Pattern.regUsedAfter(s, CPUConstants.registerName(reg), f, code, livenessCache);
                     if (used2 == null || used2 == true) used = true;
 //                } else {
 //                    // DEBUG (to ensure using the cache is identical to calculating from scratch):
@@ -1379,7 +1694,7 @@ public class SearchBasedOptimizer implements MDLWorker {
                                     CPUConstants.flag_Z, CPUConstants.flag_S}) {
 //            for(CodeStatement s:l) {
                 CodeStatement s = l.get(l.size()-1);
-                Boolean used = Pattern.flagUsedAfter(s, CPUConstants.flagName(flag), f, code);
+                Boolean used = Pattern.flagUsedAfter(s, CPUConstants.flagName(flag), f, code, livenessCache);
 //                System.out.println("    flag: " + CPUConstants.flagName(flag) + ": " + notUsed);
                 if (used == null || used == true) {
                     flags.add(flag);
@@ -11,6 +11,8 @@ import code.CodeBase;
 import code.Expression;
 import code.SourceConstant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import util.Pair;
@@ -52,6 +54,11 @@ public class Specification {
     // expressions:
     public PrecomputedTestCaseGenerator testCaseGenerator = null;
     public PrecomputedTestCase precomputedTestCases[] = null;
+    // Order in which the test cases are tried during search (the ones that
+    // reject the most candidate programs first), and how many candidates each
+    // of them has rejected so far (accumulated across search threads):
+    int testCaseOrder[] = null;
+    long testCaseRejections[] = null;
     
     
     boolean initialDependencies[] = null;
@@ -415,6 +422,77 @@ public class Specification {
     }
     
     
+    /*
+    Returns a copy of the current test case order, for a search thread to use.
+    */
+    synchronized public int[] getTestCaseOrder()
+    {
+        initTestCaseOrder();
+        return Arrays.copyOf(testCaseOrder, testCaseOrder.length);
+    }
+    
+    
+    synchronized public long[] getTestCaseRejections()
+    {
+        initTestCaseOrder();
+        return Arrays.copyOf(testCaseRejections, testCaseRejections.length);
+    }
+    
+    
+    void initTestCaseOrder()
+    {
+        if (testCaseOrder == null || testCaseOrder.length != numberOfRandomSolutionChecks) {
+            testCaseOrder = new int[numberOfRandomSolutionChecks];
+            testCaseRejections = new long[numberOfRandomSolutionChecks];
+            for(int i = 0;i<testCaseOrder.length;i++) testCaseOrder[i] = i;
+        }
+    }
+    
+    
+    /*
+    Adds the rejection counts collected by a search thread (only the ones since
+    it called "getTestCaseRejections"), and sorts the test
+    cases so that the ones that reject more candidates are tried first.
+    */
+    synchronized public void addTestCaseRejections(long rejections[])
+    {
+        if (testCaseRejections == null || testCaseRejections.length != rejections.length) return;
+        for(int i = 0;i<rejections.length;i++) {
+            testCaseRejections[i] += rejections[i];
+        }
+        List<Integer> order = new ArrayList<>();
+        for(int i:testCaseOrder) order.add(i);
+        // Stable sort, so ties keep their previous order:
+        order.sort((i1, i2) -> Long.compare(testCaseRejections[i2], testCaseRejections[i1]));
+        for(int i = 0;i<testCaseOrder.length;i++) testCaseOrder[i] = order.get(i);
+    }
+    
+    
+    /*
+    Returns the mask of the goal dependencies that need to be set by some
+    instruction (i.e., those that are not already satisfied from the start).
+    Bit "i" corresponds to "allDependencies.get(i)".
+    */
+    public long getGoalDependenciesToSetMask()
+    {
+        long mask = 0;
+        for(int i:goalDependencyIndexes) {
+            if (!goalDependenciesSatisfiedFromTheStart[i]) mask |= 1L << i;
+        }
+        return mask;
+    }
+    
+    
+    public static long dependencyMask(boolean dependencies[])
+    {
+        long mask = 0;
+        for(int i = 0;i<dependencies.length;i++) {
+            if (dependencies[i]) mask |= 1L << i;
+        }
+        return mask;
+    }
+    
+    
     public List<CPUOpDependency> precomputeAllDependencies()
     {
         // Precompute all the op dependencies before search:
@@ -444,10 +522,61 @@ public class Specification {
         if (allowRamUse) {
             allDependencies.add(new CPUOpDependency(null, null, null, "0", "0x10000"));
         }
+        // Note: dependencies are packed into "long" bitmasks during search,
+        // so there can be at most 64 of them (there are at most 19 above).
         return allDependencies;
     }    
     
     
+    /*
+    Returns a description of all the parameters of the specification that can
+    influence the result of the search, in a canonical form (lists that are
+    sets are sorted), so it can be used as a key (e.g., by SBOResultCache).
+    Note: "codeStartAddress" is not included on purpose, as the result of 
+    a search with no jumps does not depend on where the code is placed.
+    */
+    public String canonicalString(List<CPUOpDependency> allDependencies)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("search:").append(searchType).append(",").append(searchTimeCalculation);
+        sb.append(";checks:").append(numberOfRandomSolutionChecks);
+        sb.append(";maxops:").append(maxOps);
+        sb.append(";maxsize:").append(maxSizeInBytes);
+        sb.append(";maxtime:").append(maxSimulationTime);
+        sb.append(";ram:").append(allowRamUse);
+        sb.append(";io:").append(allowIO);
+        sb.append(";ghost:").append(allowGhostRegisters);
+        sb.append(";loops:").append(allowLoops);
+        sb.append(";ops:").append(sortedCopy(allowedOps));
+        sb.append(";registers:").append(sortedCopy(allowedRegisters));
+        sb.append(";c8:").append(sortedCopy(allowed8bitConstants));
+        sb.append(";c16:").append(sortedCopy(allowed16bitConstants));
+        sb.append(";offsets:").append(sortedCopy(allowedOffsetConstants));
+        List<String> tmp = new ArrayList<>();
+        for(SpecificationExpression exp:startState) tmp.add(exp.toString());
+        sb.append(";start:").append(sortedCopy(tmp));
+        tmp.clear();
+        for(SpecificationExpression exp:goalState) tmp.add(exp.toString());
+        sb.append(";goal:").append(sortedCopy(tmp));
+        if (goalDependencies != null) {
+            tmp.clear();
+            for(int i = 0;i<allDependencies.size();i++) {
+                if (goalDependencies[i]) tmp.add(allDependencies.get(i).toString());
+            }
+            sb.append(";goaldeps:").append(sortedCopy(tmp));
+        }
+        return sb.toString();
+    }
+    
+    
+    static <T extends Comparable<T>> List<T> sortedCopy(List<T> l)
+    {
+        List<T> sorted = new ArrayList<>(l);
+        Collections.sort(sorted);
+        return sorted;
+    }
+    
+    
     @Override
     public String toString() {
         String tmp = "start_state:\n";
@@ -0,0 +1,187 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package test;
+
+import cl.MDLConfig;
+import code.CPUOpDependency;
+import code.CodeBase;
+import code.CodeStatement;
+import code.SourceFile;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import workers.pattopt.LivenessAnalysis;
+import workers.pattopt.LivenessCache;
+import workers.pattopt.Pattern;
+import workers.pattopt.PatternBasedOptimizer;
+import workers.pattopt.PatternMatch;
+
+/**
+ *
+ * @author santi
+ */
+public class LivenessAnalysisTest {
+    private final MDLConfig config;
+    private final CodeBase code;
+
+    public LivenessAnalysisTest() {
+        config = new MDLConfig();
+        code = new CodeBase(config);
+    }
+
+    /*
+    In these test cases, we check that whenever the LivenessAnalysis gives an
+    answer, it is the same one the forward search in "Pattern.depUsedAfter"
+    gives (where "null" counts as "used"), for every statement and register/flag.
+    Then, we remove a statement, update the analysis and check again.
+    */
+    @Test public void test1() throws IOException { test("data/flowtests/test1.asm"); }
+    @Test public void test2() throws IOException { test("data/flowtests/test2.asm"); }
+    @Test public void test5() throws IOException { test("data/flowtests/test5-sp.asm"); }
+    @Test public void test6() throws IOException { test("data/flowtests/test6.asm"); }
+    @Test public void test7() throws IOException { test("data/flowtests/test7-rst.asm"); }
+    @Test public void test11() throws IOException { test("data/flowtests/test11-jumptables.asm"); }
+
+    /*
+    These apply the optimization patterns one by one, keeping a LivenessCache
+    up to date as the pattern-based optimizer does, and check that after each
+    optimization the cached answers are the same as those of the uncached
+    "Pattern.depUsedAfter".
+    */
+    @Test public void testCache1() throws IOException { testCache("data/potests/test60.asm", false); }
+    @Test public void testCache2() throws IOException { testCache("data/potests/test62.asm", false); }
+    @Test public void testCache2Analysis() throws IOException { testCache("data/potests/test62.asm", true); }
+
+
+    private void test(String inputFile) throws IOException
+    {
+        Assert.assertTrue(config.parseArgs(inputFile));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
+        LivenessAnalysis analysis = new LivenessAnalysis(config);
+        analysis.build(code);
+        int nAnswered = compareWithSearch(analysis);
+        Assert.assertTrue(nAnswered > 0);
+
+        // Remove the first op that is not a jump/ret, and check again:
+        for(SourceFile f:code.getSourceFiles()) {
+            for(CodeStatement s:f.getStatements()) {
+                if (s.op == null || s.label != null || s.op.mightJump()) continue;
+                List<CodeStatement> removed = new ArrayList<>();
+                removed.add(s);
+                List<CodeStatement> touched = LivenessCache.statementsTouchedBy(f, removed);
+                f.getStatements().remove(s);
+                code.resetAddressesAndFlow();
+                analysis.statementsChanged(touched, removed);
+                analysis.update(code);
+                compareWithSearch(analysis);
+                return;
+            }
+        }
+    }
+
+
+    private void testCache(String inputFile, boolean useAnalysis) throws IOException
+    {
+        Assert.assertTrue(config.parseArgs(inputFile));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
+        PatternBasedOptimizer pbo = new PatternBasedOptimizer(config);
+        pbo.initPatterns();
+        LivenessCache cache = new LivenessCache();
+        if (useAnalysis) {
+            cache.analysis = new LivenessAnalysis(config);
+            cache.analysis.build(code);
+        }
+        compareWithCache(cache);
+
+        int nApplied = 0;
+        for(SourceFile f:code.getSourceFiles()) {
+            for(int i = 0;i<f.getStatements().size();i++) {
+                List<PatternMatch> matches = new ArrayList<>();
+                pbo.getMatchesStartingFromLine(f, i, matches, true, code);
+                for(PatternMatch match:matches) {
+                    if (!match.pattern.canBeInstantiated(match, code)) continue;
+                    // Same as in "PatternBasedOptimizer.optimizeStartingFromLine":
+                    List<CodeStatement> touched = LivenessCache.statementsTouchedBy(f, match);
+                    boolean applied = match.pattern.apply(f, match, code, new ArrayList<>());
+                    cache.invalidate(touched, match, code);
+                    compareWithCache(cache);
+                    if (applied) {
+                        nApplied++;
+                        i = Math.max(-1, i-3);
+                    }
+                    break;
+                }
+            }
+        }
+        Assert.assertTrue(nApplied > 0);
+        // (with the analysis, the search and so the cache are rarely needed):
+        if (!useAnalysis) Assert.assertTrue(cache.nHits > 0);
+    }
+
+
+    private int compareWithSearch(LivenessAnalysis analysis)
+    {
+        List<CPUOpDependency> deps = dependenciesToCheck();
+        int nAnswered = 0;
+        for(SourceFile f:code.getSourceFiles()) {
+            for(CodeStatement s:f.getStatements()) {
+                for(CPUOpDependency dep:deps) {
+                    Boolean used = analysis.usedAfter(s, dep, code);
+                    if (used == null) continue;
+                    Boolean expected = Pattern.depUsedAfter(s, dep, f, code);
+                    Assert.assertEquals("Liveness of " + dep + " after " + s.fileNameLineString(),
+                                        expected == null || expected, used);
+                    nAnswered++;
+                }
+            }
+        }
+        return nAnswered;
+    }
+
+
+    /*
+    Checks that every answer of "cache" (including those computed now, that
+    are added to it) is the same one the uncached forward search gives.
+    */
+    private void compareWithCache(LivenessCache cache)
+    {
+        List<CPUOpDependency> deps = dependenciesToCheck();
+        for(SourceFile f:code.getSourceFiles()) {
+            for(CodeStatement s:f.getStatements()) {
+                for(CPUOpDependency dep:deps) {
+                    Boolean used = Pattern.depUsedAfter(s, dep, f, code, cache);
+                    Boolean expected = Pattern.depUsedAfter(s, dep, f, code);
+                    if (cache.analysis != null) {
+                        // the analysis answers "used" when the search is unclear:
+                        Assert.assertEquals("Liveness of " + dep + " after " + s.fileNameLineString(),
+                                            expected == null || expected, used == null || used);
+                    } else {
+                        Assert.assertEquals("Liveness of " + dep + " after " + s.fileNameLineString(),
+                                            expected, used);
+                    }
+                }
+            }
+        }
+    }
+
+
+    private List<CPUOpDependency> dependenciesToCheck()
+    {
+        List<CPUOpDependency> deps = new ArrayList<>();
+        for(String reg:new String[]{"A", "B", "C", "D", "E", "H", "L", "IXL", "SP", "BC", "DE", "HL", "IX"}) {
+            deps.add(new CPUOpDependency(reg, null, null, null, null));
+        }
+        for(String flag:new String[]{"C", "N", "P/V", "H", "Z", "S"}) {
+            deps.add(new CPUOpDependency(null, flag, null, null, null));
+        }
+        return deps;
+    }
+}
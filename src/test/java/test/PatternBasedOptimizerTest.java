@@ -13,7 +13,9 @@ import code.SourceConstant;
 import code.SourceFile;
 import code.CodeStatement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import workers.pattopt.PatternMatch;
 import workers.AnnotatedSourceCodeGenerator;
 import workers.SourceCodeGenerator;
 import workers.pattopt.PatternBasedOptimizer;
@@ -91,6 +93,9 @@ public class PatternBasedOptimizerTest {
     @Test public void test52sdcc() throws Exception { test("data/potests/test52sdcc.asm", "sdcc", null, "size",  1, 5, 5); }
     @Test public void test54() throws Exception { test("data/potests/test54.asm", null, null, "size",  2, 4, 4); }
     @Test public void test54ldo() throws Exception { testWithoutLabelDependentOptimizations("data/potests/test54.asm", null, null, "size",  0, 0, 0, null); }
+    @Test public void test6threads() throws Exception { testWithThreads("data/potests/test6.asm", 3, 7, 18, 23, "data/potests/test6-expected.asm"); }
+    @Test public void test28threads() throws Exception { testWithThreads("data/potests/test28.asm", 4, 8, 37, 37, "data/potests/test28-expected.asm"); }
+    @Test public void test36threads() throws Exception { testWithThreads("data/potests/test36.asm", 2, 7, 70, 70, "data/potests/test36-expected.asm"); }
     @Test public void test55() throws Exception { test("data/potests/test55.asm", null, null, "size",  3, 13, 13, null); }
     @Test public void test56() throws Exception { test("data/potests/test56.asm", null, null, "size",  3, 19, 19, null); }
     @Test public void test57() throws Exception { test("data/potests/test57.asm", null, null, "size",  3, 13, 8, null); }
@@ -123,6 +128,8 @@ public class PatternBasedOptimizerTest {
     @Test public void test83() throws Exception { test("data/potests/test83.asm", null, null, "size", 4, 20, 20, "data/potests/test83-expected.asm"); }
     @Test public void test84() throws Exception { test("data/potests/test84.asm", null, null, "size", 3, 15, 15, "data/potests/test84-expected.asm"); }
     @Test public void test85() throws Exception { test("data/potests/test85.asm", null, null, "size", 0, 0, 0, "data/potests/test85-expected.asm"); }
+    @Test public void testPatternIndex() throws Exception { testPatternIndex("data/potests/index-test.asm", "data/potests/index-patterns.txt", 4); }
+    @Test public void testPatternIndexDefaultPatterns() throws Exception { testPatternIndex("data/potests/test62.asm", null, 22); }
 
     
     private void test(String inputFile, String dialect, String cpu, String target,
@@ -180,6 +187,18 @@ public class PatternBasedOptimizerTest {
     }
     
 
+    private void testWithThreads(String inputFile, int nThreads,
+                                 int expectedSavedBytes, int expectedSavedTime1, int expectedSavedTime2,
+                                 String expectedOutputFile) throws Exception
+    {
+        Assert.assertTrue(config.parseArgs(inputFile, "-po-threads", "" + nThreads, "-po", "size"));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));        
+        testInternal(expectedSavedBytes, expectedSavedTime1, expectedSavedTime2, expectedOutputFile);
+    }
+    
+
     private void testInternal(int expectedSavedBytes, int expectedSavedTime1, int expectedSavedTime2,
                               String expectedOutputFile) throws Exception
     {
@@ -230,4 +249,61 @@ public class PatternBasedOptimizerTest {
             Assert.assertTrue(GenerationTest.compareOutputs(result, expectedOutputFile));
         }
     }
+
+
+    /*
+    Optimizes the input file with the patterns indexed by their first op, and
+    checking all the patterns at every line, and checks both find the same
+    matches at each line (before optimizing) and produce the same output.
+    */
+    private void testPatternIndex(String inputFile, String patternsFile, int expectedSavedBytes) throws Exception
+    {
+        List<List<String>> matchesFound = new ArrayList<>();
+        List<String> outputs = new ArrayList<>();
+        List<OptimizationResult> results = new ArrayList<>();
+        for(boolean usePatternIndex:new boolean[]{true, false}) {
+            MDLConfig config2 = new MDLConfig();
+            PatternBasedOptimizer pbo2 = new PatternBasedOptimizer(config2);
+            config2.registerWorker(pbo2);
+            CodeBase code2 = new CodeBase(config2);
+            List<String> patternFlags = new ArrayList<>();
+            if (patternsFile != null) patternFlags.addAll(Arrays.asList("-popatterns", patternsFile));
+            List<String> args = new ArrayList<>(Arrays.asList(inputFile, "-po", "size"));
+            args.addAll(patternFlags);
+            Assert.assertTrue(config2.parseArgs(args.toArray(new String[0])));
+            Assert.assertTrue(
+                    "Could not parse file " + inputFile,
+                    config2.codeBaseParser.parseMainSourceFiles(config2.inputFiles, code2));
+            
+            // ("optimize" loads the patterns again, so matching uses a separate optimizer):
+            PatternBasedOptimizer matcher = new PatternBasedOptimizer(config2);
+            matcher.usePatternIndex = usePatternIndex;
+            if (!patternFlags.isEmpty()) Assert.assertTrue(matcher.parseFlag(patternFlags));
+            matcher.initPatterns();
+            List<String> lineMatches = new ArrayList<>();
+            for(SourceFile f:code2.getSourceFiles()) {
+                for(int i = 0;i<f.getStatements().size();i++) {
+                    List<PatternMatch> matches = new ArrayList<>();
+                    matcher.getMatchesStartingFromLine(f, i, matches, true, code2);
+                    for(PatternMatch match:matches) {
+                        lineMatches.add(f.fileName + "#" + i + ": " + match.pattern.getInstantiatedName(match));
+                    }
+                }
+            }
+            matchesFound.add(lineMatches);
+
+            pbo2.usePatternIndex = usePatternIndex;
+            results.add(pbo2.optimize(code2));
+            SourceCodeGenerator scg = new SourceCodeGenerator(config2);
+            outputs.add(scg.outputFileString(code2.outputs.get(0), code2));
+        }
+        
+        Assert.assertFalse(matchesFound.get(0).isEmpty());
+        Assert.assertEquals(matchesFound.get(1), matchesFound.get(0));
+        Assert.assertEquals(outputs.get(1), outputs.get(0));
+        Assert.assertEquals("r.bytesSaved", expectedSavedBytes, results.get(0).bytesSaved);
+        Assert.assertEquals("r.bytesSaved", results.get(1).bytesSaved, results.get(0).bytesSaved);
+        Assert.assertEquals("r.timeSavings[0]", results.get(1).timeSavings[0], results.get(0).timeSavings[0]);
+        Assert.assertEquals("r.timeSavings[1]", results.get(1).timeSavings[1], results.get(0).timeSavings[1]);
+    }
 }
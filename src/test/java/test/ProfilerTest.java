@@ -0,0 +1,61 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package test;
+
+import cl.MDLConfig;
+import code.CodeBase;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import workers.SourceCodeExecution;
+
+/**
+ *
+ * @author santi
+ */
+public class ProfilerTest {
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final SourceCodeExecution sce;
+
+    public ProfilerTest() {
+        config = new MDLConfig();
+        sce = new SourceCodeExecution(config);
+        config.registerWorker(sce);
+        code = new CodeBase(config);
+    }
+    
+    @Test public void test1() throws Exception { Assert.assertTrue(test("data/executiontests/profile1.asm", 
+                                                                        new String[]{"start 36",
+                                                                                     "start;func1 29",
+                                                                                     "start;func1;func2 16",
+                                                                                     "start;func2 16"})); }
+
+    private boolean test(String inputFile, String expectedLines[]) throws Exception
+    {
+        Assert.assertTrue(config.parseArgs(inputFile));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
+
+        File profileFile = File.createTempFile("mdl-profile", ".txt");
+        profileFile.deleteOnExit();
+        sce.startAddressUser = "start";
+        sce.endAddressUser = "end";
+        sce.profileFileName = profileFile.getAbsolutePath();
+        Assert.assertTrue(sce.work(code));
+        
+        List<String> lines = Files.readAllLines(profileFile.toPath());
+        for(String expected: expectedLines) {
+            if (!lines.contains(expected)) {
+                config.error("Expected line '" + expected + "' not found in:\n" + lines);
+                return false;
+            }
+        }
+        return lines.size() == expectedLines.length;
+    }        
+}
@@ -8,7 +8,9 @@ package test;
 import cl.MDLConfig;
 import code.CodeBase;
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.StringTokenizer;
@@ -62,6 +64,33 @@ public class SearchBasedGeneratorTest {
     @Test public void test14() throws IOException { test("data/searchtests/test14.txt", new String[]{"data/searchtests/test14-expected.txt", "data/searchtests/test14-expected2.txt"}, "speed"); }
     @Test public void test14u() throws IOException { test("data/searchtests/test14u.txt", new String[]{"data/searchtests/test14u-expected.txt", "data/searchtests/test14u-expected2.txt"}, "speed"); }
     @Test public void test15() throws IOException { test("data/searchtests/test15.txt", new String[]{"data/searchtests/test15-expected.txt"}, "speed"); }
+    @Test public void testTranspositionTable() throws IOException { test("data/searchtests/test-large2.txt", new String[]{"data/searchtests/test-large2-expected.asm"}, null, "-so-lossy-transposition-table", "65536"); }
+    @Test public void testTimeBudget() throws IOException
+    {
+        // This search takes much longer than the budget, so it must be stopped
+        // when the budget runs out (whether a solution was found by then or not):
+        Assert.assertTrue(config.parseArgs("data/searchtests/test-large5.txt", "-so", "-so-window-time-budget", "1"));
+        sbo.work(code);
+        Assert.assertTrue(sbo.getLastSearchTimedOut());
+    }
+    @Test public void testMetrics() throws IOException
+    {
+        File metricsFile = File.createTempFile("mdl-sbo-metrics", ".csv");
+        metricsFile.deleteOnExit();
+        test("data/searchtests/test1.txt", new String[]{"data/searchtests/test1-expected.asm"}, null, "-so-metrics", metricsFile.getAbsolutePath());
+        List<String> lines = Files.readAllLines(metricsFile.toPath());
+        Assert.assertEquals("search,levelType,level,scope,index,metric,value", lines.get(0));
+        // There must be at least one program emulated in the last iteration:
+        boolean leavesFound = false;
+        for(String line:lines) {
+            String columns[] = line.split(",");
+            if (columns[3].equals("depth") && columns[5].equals("leaves") &&
+                Long.parseLong(columns[6]) > 0) {
+                leavesFound = true;
+            }
+        }
+        Assert.assertTrue(leavesFound);
+    }
 
 //    @Test public void testLShift9() throws IOException { test("data/searchtests/test-large1.txt", "data/searchtests/test-large1-expected.asm"); }
 //    @Test public void testLShift9size() throws IOException { test("data/searchtests/test-large1.txt", "data/searchtests/test-large1-size-expected.asm", "size"); }
@@ -116,14 +145,15 @@ public class SearchBasedGeneratorTest {
     }
     
     
-    private void test(String inputFile, String expectedOutputs[], String searchTypeArg) throws IOException
+    private void test(String inputFile, String expectedOutputs[], String searchTypeArg, String ... extraArgs) throws IOException
     {
-        if (searchTypeArg != null) {
-            Assert.assertTrue(config.parseArgs(inputFile, "-so", searchTypeArg));
-        } else {
-            Assert.assertTrue(config.parseArgs(inputFile, "-so"));
-//            Assert.assertTrue(config.parseArgs(inputFile, "-so", "-so-threads", "1"));
-        }
+        List<String> args = new ArrayList<>();
+        args.add(inputFile);
+        args.add("-so");
+        if (searchTypeArg != null) args.add(searchTypeArg);
+        for(String arg:extraArgs) args.add(arg);
+        Assert.assertTrue(config.parseArgs(args.toArray(new String[0])));
+//        Assert.assertTrue(config.parseArgs(inputFile, "-so", "-so-threads", "1"));
         if (expectedOutputs == null) {
             Assert.assertFalse(
                     "Solution found, when there should not have been one for specification file: " + inputFile,
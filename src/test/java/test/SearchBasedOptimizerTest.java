@@ -7,10 +7,16 @@ package test;
 
 import cl.MDLConfig;
 import code.CodeBase;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
 import workers.SourceCodeGenerator;
+import workers.searchopt.SBOResultCache;
 import workers.searchopt.SearchBasedOptimizer;
 
 /**
@@ -70,9 +76,27 @@ public class SearchBasedOptimizerTest {
               new String[]{"data/searchtests/opt-test18-expected.asm"}); }
     @Test public void test19() throws IOException { test("data/searchtests/opt-test19.asm", 
               new String[]{"data/searchtests/opt-test19-expected.asm"}); }
+    @Test public void testCache() throws IOException { testCache("data/searchtests/opt-test2.asm", 
+            new String[]{"data/searchtests/opt-test2-expected.asm", "data/searchtests/opt-test2-expected2.asm"}, 
+            new String[][]{{"-so-cache"}, {"-so-cache"}}); }
+    @Test public void testIncremental() throws IOException { testCache("data/searchtests/opt-test2.asm", 
+            new String[]{"data/searchtests/opt-test2-expected.asm", "data/searchtests/opt-test2-expected2.asm"}, 
+            new String[][]{{"-so-incremental"}, {"-so-incremental"}}); }
+    // opt-test5 has a block that is removed altogether (which should not be confused with "no improvement"):
+    @Test public void testCacheRemoval() throws IOException { testCache("data/searchtests/opt-test5.asm", 
+            new String[]{"data/searchtests/opt-test5-expected.asm"}, 
+            new String[][]{{"-so-cache"}, {"-so-cache"}}); }
+    // opt-test10 has blocks that cannot be improved, so this checks "no improvement" results
+    // from the cache are also recorded in the incremental state:
+    @Test public void testCacheAndIncremental() throws IOException { testCache("data/searchtests/opt-test10.asm", 
+            new String[]{"data/searchtests/opt-test10-expected.asm", "data/searchtests/opt-test10-expected2.asm"}, 
+            new String[][]{{"-so-cache"}, {"-so-cache", "-so-incremental"}, {"-so-cache", "-so-incremental"}}); }
+    // Results found with the lossy transposition table are not recorded, so the last run searches again:
+    @Test public void testCacheLossyTranspositionTable() throws IOException { testCache("data/searchtests/opt-test2.asm", 
+            new String[]{"data/searchtests/opt-test2-expected.asm", "data/searchtests/opt-test2-expected2.asm"}, 
+            new String[][]{{"-so-cache", "-so-incremental"}, {"-so-cache", "-so-incremental"}}, 
+            new String[][]{{"-so-lossy-transposition-table", "65536"}, {}}, false); }
 
-    
-            
     private void test(String inputFile, String expectedOutputFiles[]) throws IOException
     {
         test(inputFile, expectedOutputFiles, null, 2);
@@ -131,5 +155,67 @@ public class SearchBasedOptimizerTest {
         Assert.assertTrue(anyMatch);
     }
 
-    
+
+    /*
+    Runs the optimizer once per element of "cacheFlags" (each flag is followed by
+    the same cache directory). In the last run, no search should be needed, as
+    all the results should come from the cache/incremental state (if both are
+    used, the incremental state is checked first, and should have them all).
+    */
+    private void testCache(String inputFile, String expectedOutputFiles[], String cacheFlags[][]) throws IOException
+    {
+        testCache(inputFile, expectedOutputFiles, cacheFlags, new String[cacheFlags.length][0], true);
+    }
+
+
+    private void testCache(String inputFile, String expectedOutputFiles[], String cacheFlags[][],
+                           String extraFlags[][], boolean lastRunFromCache) throws IOException
+    {
+        File cacheDirectory = Files.createTempDirectory("mdl-sbo-cache").toFile();
+        try {
+            for(int i = 0;i<cacheFlags.length;i++) {
+                MDLConfig config2 = new MDLConfig();
+                SearchBasedOptimizer sbo2 = new SearchBasedOptimizer(config2);
+                config2.registerWorker(sbo2);
+                CodeBase code2 = new CodeBase(config2);
+                List<String> args = new ArrayList<>();
+                args.add(inputFile);
+                args.add("-so-opt");
+                for(String flag:cacheFlags[i]) {
+                    args.add(flag);
+                    args.add(cacheDirectory.getAbsolutePath());
+                }
+                args.addAll(Arrays.asList(extraFlags[i]));
+                Assert.assertTrue(config2.parseArgs(args.toArray(new String[0])));
+                Assert.assertTrue(
+                        "Could not parse file " + inputFile,
+                        config2.codeBaseParser.parseMainSourceFiles(config2.inputFiles, code2));        
+                Assert.assertTrue(sbo2.work(code2));
+
+                SourceCodeGenerator scg = new SourceCodeGenerator(config2);        
+                String result = scg.outputFileString(code2.outputs.get(0), code2);
+                boolean anyMatch = false;
+                for(String expectedOutputFile:expectedOutputFiles) {
+                    if (GenerationTest.compareOutputs(result, expectedOutputFile)) {
+                        anyMatch = true;
+                        break;
+                    }
+                }
+                Assert.assertTrue(anyMatch);
+                
+                if (i == cacheFlags.length - 1 && !lastRunFromCache) {
+                    Assert.assertTrue(sbo2.getNSearches() > 0);
+                } else if (i == cacheFlags.length - 1) {
+                    Assert.assertEquals(0, sbo2.getNSearches());
+                    SBOResultCache firstChecked = sbo2.getIncrementalState();
+                    if (firstChecked == null) firstChecked = sbo2.getCache();
+                    Assert.assertTrue(firstChecked.getNHits() > 0);
+                    Assert.assertEquals(0, firstChecked.getNMisses());
+                }
+            }
+        } finally {
+            for(File f:cacheDirectory.listFiles()) f.delete();
+            cacheDirectory.delete();
+        }
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package test;
+
+import cl.MDLConfig;
+import cl.MDLLogger;
+import code.CodeBase;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import org.junit.Assert;
+import org.junit.Test;
+import workers.SourceCodeExecution;
+
+/**
+ *
+ * @author santi
+ */
+public class SourceCodeExecutionBatchTest {
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final SourceCodeExecution sce;
+
+    public SourceCodeExecutionBatchTest() {
+        config = new MDLConfig();
+        sce = new SourceCodeExecution(config);
+        config.registerWorker(sce);
+        code = new CodeBase(config);
+    }
+    
+    @Test public void test1() throws Exception { Assert.assertTrue(test("data/executiontests/batch1.asm", 
+                                                                        "data/executiontests/batch1-scenarios.txt", 1)); }
+    @Test public void test1Parallel() throws Exception { Assert.assertTrue(test("data/executiontests/batch1.asm", 
+                                                                        "data/executiontests/batch1-scenarios.txt", 3)); }
+
+    @Test public void testEndNotReached() throws Exception { Assert.assertTrue(testError("data/executiontests/batch1.asm",
+                                                                        "data/executiontests/batch3-scenarios.txt", new String[]{},
+                                                                        "Scenario \"never-ends\" failed: end address not reached")); }
+    @Test public void testUnsupportedFlag() throws Exception { Assert.assertTrue(testError("data/executiontests/batch1.asm",
+                                                                        "data/executiontests/batch1-scenarios.txt", new String[]{"-e:hs"},
+                                                                        "-e:hs cannot be used together with -e:batch")); }
+
+    @Test public void testBenchmark() throws Exception {
+        Assert.assertTrue(config.parseArgs("data/executiontests/batch1.asm"));
+        Assert.assertTrue(config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
+        File baselineFile = File.createTempFile("mdl-baseline", ".txt");
+        baselineFile.deleteOnExit();
+        
+        MDLLogger previousLogger = config.logger;
+        try (ByteArrayOutputStream sceOutput = new ByteArrayOutputStream();
+            PrintStream printStream = new PrintStream(sceOutput)) {
+            config.logger = new MDLLogger(MDLLogger.INFO, printStream, printStream);
+            // A baseline saved from an execution must match a second execution with a different # of threads:
+            sce.batchFileName = "data/executiontests/batch2-scenarios.txt";
+            sce.batchThreads = 1;
+            sce.benchmarkSaveFileName = baselineFile.getAbsolutePath();
+            Assert.assertTrue(sce.work(code));
+            sce.batchThreads = 2;
+            sce.benchmarkSaveFileName = null;
+            sce.benchmarkCompareFileName = baselineFile.getAbsolutePath();
+            Assert.assertTrue(sce.work(code));
+
+            // "mul" is slower than in this baseline:
+            sce.benchmarkCompareFileName = "data/executiontests/batch2-baseline.txt";
+            Assert.assertFalse(sce.work(code));
+            sce.benchmarkTolerance = 50;
+            Assert.assertTrue(sce.work(code));
+        } finally {
+            config.logger = previousLogger;
+        }
+    }
+
+    private boolean test(String inputFile, String scenariosFile, int nThreads) throws Exception
+    {
+        Assert.assertTrue(config.parseArgs(inputFile));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
+
+        sce.batchFileName = scenariosFile;
+        sce.batchThreads = nThreads;
+        
+        String output;
+        MDLLogger previousLogger = config.logger;
+        try (ByteArrayOutputStream sceOutput = new ByteArrayOutputStream();
+            PrintStream printStream = new PrintStream(sceOutput)) {
+            config.logger = new MDLLogger(MDLLogger.INFO, printStream, printStream);
+            boolean result = sce.work(code);
+            printStream.flush();
+            output = sceOutput.toString();
+            config.logger = previousLogger;
+            if (!result) {
+                config.info(output);
+                return false;
+            }
+        }
+        
+        // Results must be reported in the same order as the scenarios, independently of the # of threads:
+        String expected = "INFO: Batch execution result: scenario  t-states  instructions\n" +
+                          "INFO: - \"c=1\"\t212\t23\n" +
+                          "INFO:     AF: 2568 (#0a08), BC: 1 (#0001), DE: 0 (#0000), HL: 0 (#0000), IX: 0 (#0000), IY: 0 (#0000), SP: 0 (#0000)\n" +
+                          "INFO: - \"c=2\"\t212\t23\n" +
+                          "INFO:     AF: 5120 (#1400), BC: 2 (#0002), DE: 0 (#0000), HL: 0 (#0000), IX: 0 (#0000), IY: 0 (#0000), SP: 0 (#0000)\n";
+        for(int i = 1;i<=10;i++) {
+            expected += "INFO:     acc, " + (i*2) + " (" + config.tokenizer.toHexByte(i*2, config.hexStyle) + ")\n";
+        }
+        expected += "INFO: - \"mul\"\t152\t17\n" +
+                    "INFO:     AF: 9008 (#2330), BC: 5 (#0005), DE: 0 (#0000), HL: 0 (#0000), IX: 0 (#0000), IY: 0 (#0000), SP: 0 (#0000)\n" +
+                    "INFO: - \"limited\"\t51\t6\n" +
+                    "INFO:     AF: 64 (#0040), BC: 2048 (#0800), DE: 0 (#0000), HL: 0 (#0000), IX: 0 (#0000), IY: 0 (#0000), SP: 0 (#0000)\n";
+        if (!output.equals(expected)) {
+            config.error("Unexpected batch execution output:\n" + output);
+            return false;
+        }
+        return true;
+    }
+    
+    
+    /*
+    Checks the batch execution fails, reporting "expectedError".
+    */
+    private boolean testError(String inputFile, String scenariosFile, String args[], String expectedError) throws Exception
+    {
+        String allArgs[] = new String[args.length + 3];
+        allArgs[0] = inputFile;
+        allArgs[1] = "-e:batch";
+        allArgs[2] = scenariosFile;
+        System.arraycopy(args, 0, allArgs, 3, args.length);
+        Assert.assertTrue(config.parseArgs(allArgs));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
+
+        String output;
+        MDLLogger previousLogger = config.logger;
+        try (ByteArrayOutputStream sceOutput = new ByteArrayOutputStream();
+            PrintStream printStream = new PrintStream(sceOutput)) {
+            config.logger = new MDLLogger(MDLLogger.INFO, printStream, printStream);
+            boolean result = sce.work(code);
+            printStream.flush();
+            output = sceOutput.toString();
+            config.logger = previousLogger;
+            if (result) {
+                config.error("Batch execution did not fail:\n" + output);
+                return false;
+            }
+        }
+        if (!output.contains(expectedError)) {
+            config.error("Expected error '" + expectedError + "' not found in:\n" + output);
+            return false;
+        }
+        return true;
+    }
+}
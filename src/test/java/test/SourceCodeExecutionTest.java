@@ -0,0 +1,141 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package test;
+
+import cl.MDLConfig;
+import cl.MDLLogger;
+import code.CodeBase;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import org.junit.Assert;
+import org.junit.Test;
+import util.microprocessor.MemoryAccessTrace;
+import workers.SourceCodeExecution;
+
+/**
+ *
+ * @author santi
+ */
+public class SourceCodeExecutionTest {
+    private final MDLConfig config;
+    private final CodeBase code;
+    private final SourceCodeExecution sce;
+
+    public SourceCodeExecutionTest() {
+        config = new MDLConfig();
+        sce = new SourceCodeExecution(config);
+        config.registerWorker(sce);
+        code = new CodeBase(config);
+    }
+
+    @Test public void testReports() throws Exception { Assert.assertTrue(test("data/executiontests/exec1.asm",
+                                                                        new String[]{"-e:u", "start", "end", "-e:hs", "-e:track-conditionals", "-e:report-useless"},
+                                                                        new String[]{"34 instructions executed.",
+                                                                                     "execution time: 266 t-states",
+                                                                                     // hotspots (line, count, time):
+                                                                                     "data/executiontests/exec1.asm#14\t4\t51",
+                                                                                     "data/executiontests/exec1.asm#9\t4\t37",
+                                                                                     "data/executiontests/exec1.asm#13\t4\t32",
+                                                                                     "data/executiontests/exec1.asm#10\t3\t15",
+                                                                                     "data/executiontests/exec1.asm#3\t1\t8",
+                                                                                     // useless instructions:
+                                                                                     "Potentially useless at execution end: 2",
+                                                                                     "- data/executiontests/exec1.asm#10: inc c (1 values set left)",
+                                                                                     "Always useless: 1",
+                                                                                     "- (0/3) data/executiontests/exec1.asm#6: ld d, a",
+                                                                                     // conditionals (only those always/never taken):
+                                                                                     "- (4/0) data/executiontests/exec1.asm#13: jr nc"},
+                                                                        new String[]{"exec1.asm#9: jr c",
+                                                                                     "exec1.asm#14: djnz"})); }
+    @Test public void testStopOnProtectedWrite() throws Exception { Assert.assertTrue(testStopOnProtectedWrite("data/executiontests/protected1.asm",
+                                                                        "data/executiontests/protected1-mapper.txt", 2, 0x400e)); }
+
+    private boolean test(String inputFile, String args[], String expectedLines[], String unexpectedLines[]) throws Exception
+    {
+        String allArgs[] = new String[args.length + 1];
+        allArgs[0] = inputFile;
+        System.arraycopy(args, 0, allArgs, 1, args.length);
+        Assert.assertTrue(config.parseArgs(allArgs));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
+
+        String output;
+        MDLLogger previousLogger = config.logger;
+        try (ByteArrayOutputStream sceOutput = new ByteArrayOutputStream();
+            PrintStream printStream = new PrintStream(sceOutput)) {
+            config.logger = new MDLLogger(MDLLogger.INFO, printStream, printStream);
+            boolean result = sce.work(code);
+            printStream.flush();
+            output = sceOutput.toString();
+            config.logger = previousLogger;
+            if (!result) {
+                config.info(output);
+                return false;
+            }
+        }
+
+        for(String expected: expectedLines) {
+            if (!output.contains(expected)) {
+                config.error("Expected line '" + expected + "' not found in:\n" + output);
+                return false;
+            }
+        }
+        for(String unexpected: unexpectedLines) {
+            if (output.contains(unexpected)) {
+                config.error("Unexpected line '" + unexpected + "' found in:\n" + output);
+                return false;
+            }
+        }
+        return true;
+    }
+
+
+    /*
+    Executes until a write into the binary (mapped as ROM) stops the execution,
+    and checks the memory trace file still contains all the accesses up to
+    (and including) the protected write.
+    */
+    private boolean testStopOnProtectedWrite(String inputFile, String mapperConfigFile, int expectedRecords, int protectedAddress) throws Exception
+    {
+        File traceFile = File.createTempFile("mdl-trace", ".bin");
+        traceFile.deleteOnExit();
+        String mapperConfigPath = new File(getClass().getClassLoader().getResource(mapperConfigFile).toURI()).getAbsolutePath();
+        Assert.assertTrue(config.parseArgs(inputFile, "-e:u", "start", "end", "-e:stop-on-protected-write",
+                                           "-e:mem-trace", traceFile.getAbsolutePath(),
+                                           "-e:mapper-config", mapperConfigPath));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
+
+        MDLLogger previousLogger = config.logger;
+        try (ByteArrayOutputStream sceOutput = new ByteArrayOutputStream();
+            PrintStream printStream = new PrintStream(sceOutput)) {
+            config.logger = new MDLLogger(MDLLogger.INFO, printStream, printStream);
+            if (sce.work(code)) {
+                config.logger = previousLogger;
+                config.error("Execution did not stop on the protected write");
+                return false;
+            }
+        } finally {
+            config.logger = previousLogger;
+        }
+
+        if (traceFile.length() != 16 + expectedRecords * MemoryAccessTrace.RECORD_SIZE) {
+            config.error("Unexpected memory trace size: " + traceFile.length());
+            return false;
+        }
+        byte data[] = Files.readAllBytes(traceFile.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(16 + (expectedRecords - 1) * MemoryAccessTrace.RECORD_SIZE + 10);
+        if ((buffer.getShort() & 0xffff) != protectedAddress) return false;
+        buffer.position(buffer.position() + 5);
+        return buffer.get() == MemoryAccessTrace.PROTECTED_WRITE;
+    }
+}
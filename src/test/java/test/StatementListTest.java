@@ -0,0 +1,67 @@
+/*
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Licenses/license-default.txt to change this license
+ * Click nbfs://nbhost/SystemFileSystem/Templates/Classes/Class.java to edit this template
+ */
+package test;
+
+import code.CodeStatement;
+import code.StatementList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author santi
+ */
+public class StatementListTest {
+
+    /*
+    Applies random modifications to a StatementList and to a regular list,
+    and checks "indexOf" returns the same in both (including for statements
+    that were removed, and statements that appear more than once).
+    */
+    @Test public void testRandomModifications()
+    {
+        Random r = new Random(0);
+        List<CodeStatement> pool = new ArrayList<>();
+        for(int i = 0;i<64;i++) {
+            pool.add(new CodeStatement(CodeStatement.STATEMENT_NONE, null, null, null));
+        }
+        List<CodeStatement> expected = new ArrayList<>();
+        List<CodeStatement> l = new StatementList();
+        for(int step = 0;step<5000;step++) {
+            CodeStatement s = pool.get(r.nextInt(pool.size()));
+            int op = r.nextInt(8);
+            if (op <= 2 || expected.isEmpty()) {
+                expected.add(s);
+                l.add(s);
+            } else if (op == 3) {
+                int idx = r.nextInt(expected.size() + 1);
+                expected.add(idx, s);
+                l.add(idx, s);
+            } else if (op == 4) {
+                int idx = r.nextInt(expected.size());
+                expected.remove(idx);
+                l.remove(idx);
+            } else if (op == 5) {
+                Assert.assertEquals(expected.remove(s), l.remove(s));
+            } else if (op == 6) {
+                int idx = r.nextInt(expected.size());
+                expected.set(idx, s);
+                l.set(idx, s);
+            } else if (r.nextInt(20) == 0) {
+                expected.clear();
+                l.clear();
+            }
+            Assert.assertEquals(expected, l);
+            for(int i = 0;i<4;i++) {
+                CodeStatement s2 = pool.get(r.nextInt(pool.size()));
+                Assert.assertEquals(expected.indexOf(s2), l.indexOf(s2));
+                Assert.assertEquals(expected.contains(s2), l.contains(s2));
+            }
+        }
+    }
+}
@@ -8,15 +8,26 @@ package test;
 import cl.MDLConfig;
 import code.CodeBase;
 import java.io.BufferedReader;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
 import java.util.StringTokenizer;
 import org.junit.Assert;
 import org.junit.Test;
 import util.ListOutputStream;
 import util.Resources;
 import util.microprocessor.Z80.Z80Core;
+import util.microprocessor.IMemory;
+import util.microprocessor.MemoryAccessTrace;
+import util.microprocessor.MemoryCheckpoint;
+import util.microprocessor.PlainByteZ80Memory;
 import util.microprocessor.PlainZ80IO;
 import util.microprocessor.PlainZ80Memory;
+import util.microprocessor.TrackingZ80Memory;
 import util.microprocessor.Z80.CPUConfig;
+import util.microprocessor.Z80.CPUConstants;
+import util.microprocessor.Z80.CpuSnapshot;
 import workers.BinaryGenerator;
 
 /**
@@ -38,28 +49,18 @@ public class Z80SimulatorTest {
                                                                           "data/searchtests/instructions-z80msx-timing-expected.txt")); }
     @Test public void test3() throws Exception { Assert.assertTrue(test("data/searchtests/instructions.asm", "z80cpc",
                                                                           "data/searchtests/instructions-z80cpc-timing-expected.txt")); }
+    @Test public void testSnapshots() throws Exception { Assert.assertTrue(testSnapshots("data/searchtests/instructions.asm", 100, 32)); }
+    @Test public void testCpuSnapshots() throws Exception { Assert.assertTrue(testCpuSnapshots("data/searchtests/instructions.asm", 100, 200)); }
+    @Test public void testByteMemory() throws Exception { Assert.assertTrue(testByteMemory("data/searchtests/instructions.asm", 300)); }
+    @Test public void testLoadBytesCheckpoint() throws Exception { Assert.assertTrue(testLoadBytesCheckpoint("data/searchtests/instructions.asm", 0x10f0, 0x200)); }
+    @Test public void testWriteProtection() throws Exception { Assert.assertTrue(testWriteProtection(0x1000, 0x1100)); }
+    @Test public void testMemoryAccessTrace() throws Exception { Assert.assertTrue(testMemoryAccessTrace("data/searchtests/instructions.asm", 2)); }
+    @Test public void testALUFlags() throws Exception { Assert.assertTrue(testALUFlags("data/searchtests/instructions.asm")); }
+    @Test public void testRunUntil() throws Exception { Assert.assertTrue(testRunUntil("data/searchtests/instructions.asm", 100)); }
 
     private boolean test(String inputFile, String cpu, String expectedTimings) throws Exception
     {
-        Assert.assertTrue(config.parseArgs(inputFile,"-cpu",cpu));
-        Assert.assertTrue(
-                "Could not parse file " + inputFile,
-                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
-
-        // Compile the assembler code to binary:
-        BinaryGenerator bg = new BinaryGenerator(config);
-        ListOutputStream out = new ListOutputStream();
-        bg.writeBytes(code.outputs.get(0).main, code, out, 0, true);
-        
-        // Setup a Z80 simulator and copy the binary to memory (at address 0 for now):
-        PlainZ80Memory z80Memory = new PlainZ80Memory();
-        Z80Core z80 = new Z80Core(z80Memory, new PlainZ80IO(), new CPUConfig(config));
-        z80.reset();
-        int address = 0;
-        for(int value: out.getData()) {
-            z80Memory.writeByte(address, value);
-            address++;
-        }
+        Z80Core z80 = loadProgram(inputFile, cpu);
         
         BufferedReader br = Resources.asReader(expectedTimings);
         String line = br.readLine();
@@ -81,5 +82,322 @@ public class Z80SimulatorTest {
         }
         
         return true;
-    }        
+    }
+    
+    
+    /*
+    Executes "nSteps" instructions, takes a snapshot, and then checks that
+    executing "nStepsAfter" more instructions from the restored snapshot
+    always results in the same state.
+    */
+    private boolean testSnapshots(String inputFile, int nSteps, int nStepsAfter) throws Exception
+    {
+        Z80Core z80 = loadProgram(inputFile, "z80");
+        for(int i = 0;i<nSteps;i++) z80.executeOneInstruction();
+        int snapshot[] = new int[Z80Core.STATE_SIZE];
+        z80.saveState(snapshot);
+
+        int expected[] = new int[Z80Core.STATE_SIZE];
+        for(int i = 0;i<nStepsAfter;i++) z80.executeOneInstruction();
+        z80.saveState(expected);
+        
+        int result[] = new int[Z80Core.STATE_SIZE];
+        for(int repetition = 0;repetition<2;repetition++) {
+            z80.restoreState(snapshot);
+            Assert.assertEquals(snapshot[14], z80.getProgramCounter());
+            for(int i = 0;i<nStepsAfter;i++) z80.executeOneInstruction();
+            z80.saveState(result);
+            for(int i = 0;i<Z80Core.STATE_SIZE;i++) {
+                if (result[i] != expected[i]) {
+                    config.error("Snapshot mismatch at position " + i + ": " + result[i] + " != " + expected[i]);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    
+    /*
+    Checks that executing "nSteps" instructions results in the same state with
+    PlainZ80Memory and with PlainByteZ80Memory.
+    */
+    private boolean testByteMemory(String inputFile, int nSteps) throws Exception
+    {
+        Z80Core z80 = loadProgram(inputFile, "z80");
+        PlainByteZ80Memory byteMemory = new PlainByteZ80Memory();
+        Z80Core z80b = new Z80Core(byteMemory, new PlainZ80IO(), new CPUConfig(config));
+        z80b.reset();
+        for(int address = 0;address<PlainZ80Memory.MEMORY_SIZE;address++) {
+            byteMemory.writeByte(address, z80.readByte(address));
+        }
+        for(int i = 0;i<nSteps;i++) {
+            z80.executeOneInstruction();
+            z80b.executeOneInstruction();
+        }
+        int expected[] = new int[Z80Core.STATE_SIZE];
+        z80.saveState(expected);
+        if (!sameState(z80b, expected)) return false;
+        for(int address = 0;address<PlainZ80Memory.MEMORY_SIZE;address++) {
+            if (z80.readByte(address) != byteMemory.readByte(address)) {
+                config.error("Memory mismatch at address " + address + ": " + byteMemory.readByte(address) + " != " + z80.readByte(address));
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    
+    /*
+    Protects [start, end) and the last page of the address space, and checks
+    writes only change the unprotected addresses (until protections are
+    cleared) in the different memory implementations.
+    */
+    private boolean testWriteProtection(int start, int end) throws Exception
+    {
+        IMemory memories[] = {new PlainZ80Memory(), new PlainByteZ80Memory()};
+        for(IMemory memory:memories) {
+            memory.writeProtect(start, end);
+            memory.writeProtect(0xff00, 0x10000);
+            for(int address:new int[]{start - 1, start, end - 1, end, 0xfeff, 0xff00, 0xffff}) {
+                memory.writeByte(address, 1);
+            }
+            Assert.assertEquals(1, memory.readByte(start - 1));
+            Assert.assertEquals(0, memory.readByte(start));
+            Assert.assertEquals(0, memory.readByte(end - 1));
+            Assert.assertEquals(1, memory.readByte(end));
+            Assert.assertEquals(1, memory.readByte(0xfeff));
+            Assert.assertEquals(0, memory.readByte(0xff00));
+            Assert.assertEquals(0, memory.readByte(0xffff));
+            memory.clearWriteProtections();
+            memory.writeByte(start, 2);
+            memory.writeByte(0xffff, 2);
+            Assert.assertEquals(2, memory.readByte(start));
+            Assert.assertEquals(2, memory.readByte(0xffff));
+        }
+        return true;
+    }
+    
+    
+    /*
+    Records a few memory accesses with a buffer of "bufferSize" records (to
+    force several flushes), and checks the heatmaps and the contents of the
+    trace file.
+    */
+    private boolean testMemoryAccessTrace(String inputFile, int bufferSize) throws Exception
+    {
+        Z80Core z80 = loadProgram(inputFile, "z80");
+        File traceFile = File.createTempFile("mdl-trace", ".bin");
+        traceFile.deleteOnExit();
+        MemoryAccessTrace trace = new MemoryAccessTrace(z80);
+        trace.startTrace(traceFile.getAbsolutePath(), bufferSize);
+        trace.startHeatmaps(0x10000, 4);
+        trace.setInstructionAddress(0x1234);
+        trace.read(0x4000, 0x4000, 1);
+        trace.read(0x4000, 0x4000, 1);
+        trace.write(0x8000, 0x8000, 2, false);
+        trace.write(0x8001, 0x8001, 3, true);
+        trace.pageSwitch(2, 5);
+        trace.close();
+        Assert.assertEquals(5, trace.getNRecords());
+        Assert.assertEquals(16 + 5 * MemoryAccessTrace.RECORD_SIZE, traceFile.length());
+        Assert.assertEquals(2, trace.readCounts[0x4000]);
+        Assert.assertEquals(1, trace.writeCounts[0x8000]);
+        Assert.assertEquals(1, trace.writeCounts[0x8001]);
+        Assert.assertEquals(1, trace.pageSwitchCounts[2]);
+        byte data[] = Files.readAllBytes(traceFile.toPath());
+        ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(16 + 3 * MemoryAccessTrace.RECORD_SIZE + 8);
+        Assert.assertEquals(0x1234, buffer.getShort() & 0xffff);
+        Assert.assertEquals(0x8001, buffer.getShort() & 0xffff);
+        Assert.assertEquals(0x8001, buffer.getInt());
+        Assert.assertEquals(3, buffer.get());
+        Assert.assertEquals(MemoryAccessTrace.PROTECTED_WRITE, buffer.get());
+        return true;
+    }
+    
+    
+    /*
+    Loads "length" bytes at "address" after creating a memory checkpoint (with
+    a range spanning several checkpoint pages), and checks restoring the
+    checkpoint undoes the load in all the memory implementations.
+    */
+    private boolean testLoadBytesCheckpoint(String inputFile, int address, int length) throws Exception
+    {
+        // (the CPU is only used by TrackingZ80Memory to timestamp the accesses):
+        Z80Core z80 = loadProgram(inputFile, "z80");
+        IMemory memories[] = {new PlainZ80Memory(), new PlainByteZ80Memory(), new TrackingZ80Memory(z80)};
+        int data[] = new int[length];
+        for(int i = 0;i<length;i++) data[i] = (i + 1) & 0xff;
+        for(IMemory memory:memories) {
+            memory.writeByte(address - 1, 0x55);
+            memory.writeByte(address + length / 2, 0x55);
+            MemoryCheckpoint checkpoint = memory.checkpoint();
+            memory.loadBytes(address, data);
+            if (memory.readByte(address + length - 1) != data[length - 1]) return false;
+            memory.restoreCheckpoint(checkpoint);
+            for(int i = address - 1;i<=address + length;i++) {
+                int expected = (i == address - 1 || i == address + length / 2) ? 0x55 : 0;
+                if (memory.readByteUntracked(i) != expected) {
+                    config.error(memory.getClass().getSimpleName() + ": address " + i + " not restored: " +
+                                 memory.readByteUntracked(i) + " != " + expected);
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+    
+    
+    /*
+    Same as "testSnapshots", but using "Z80Core.snapshot", which also restores
+    the memory contents (only copying back the modified memory pages).
+    */
+    private boolean testCpuSnapshots(String inputFile, int nSteps, int nStepsAfter) throws Exception
+    {
+        Z80Core z80 = loadProgram(inputFile, "z80");
+        for(int i = 0;i<nSteps;i++) z80.executeOneInstruction();
+        int memoryAtSnapshot[] = z80.getRAM().getMemoryArray().clone();
+        CpuSnapshot snapshot = z80.snapshot();
+        Assert.assertNotNull(snapshot.memory);
+
+        for(int i = 0;i<nStepsAfter;i++) z80.executeOneInstruction();
+        int expected[] = new int[Z80Core.STATE_SIZE];
+        z80.saveState(expected);
+        int expectedMemory[] = z80.getRAM().getMemoryArray().clone();
+        Assert.assertTrue(snapshot.memory.getNDirtyPages() > 0);
+        
+        for(int repetition = 0;repetition<2;repetition++) {
+            z80.restoreSnapshot(snapshot);
+            Assert.assertEquals(0, snapshot.memory.getNDirtyPages());
+            Assert.assertArrayEquals(memoryAtSnapshot, z80.getRAM().getMemoryArray());
+            Assert.assertEquals(snapshot.getProgramCounter(), z80.getProgramCounter());
+            for(int i = 0;i<nStepsAfter;i++) z80.executeOneInstruction();
+            if (!sameState(z80, expected)) return false;
+            Assert.assertArrayEquals(expectedMemory, z80.getRAM().getMemoryArray());
+        }
+        return true;
+    }
+
+
+    /*
+    Executes "nSteps" instructions one by one, and then checks that the
+    different variants of "runUntil" stop at the same state as the step by
+    step execution.
+    */
+    private boolean testRunUntil(String inputFile, int nSteps) throws Exception
+    {
+        Z80Core z80 = loadProgram(inputFile, "z80");
+        int states[][] = new int[nSteps+1][Z80Core.STATE_SIZE];
+        z80.saveState(states[0]);
+        for(int i = 0;i<nSteps;i++) {
+            z80.executeOneInstruction();
+            z80.saveState(states[i+1]);
+        }
+        int lastPC = z80.getProgramCounter();
+        long lastTStates = z80.getTStates();
+        
+        // T state limit:
+        z80.restoreState(states[0]);
+        Assert.assertEquals(Z80Core.STOP_MAX_TSTATES, z80.runUntil(0x10000, lastTStates));
+        if (!sameState(z80, states[nSteps])) return false;
+        
+        // Break PC (stops at the first step with PC >= lastPC):
+        int expectedStep = 0;
+        while(states[expectedStep][14] < lastPC) expectedStep++;
+        z80.restoreState(states[0]);
+        Assert.assertEquals(Z80Core.STOP_BREAKPOINT, z80.runUntil(lastPC, Long.MAX_VALUE));
+        if (!sameState(z80, states[expectedStep])) return false;
+
+        // Breakpoint bitmap (stops at the first step with PC == lastPC):
+        expectedStep = 0;
+        while(states[expectedStep][14] != lastPC) expectedStep++;
+        long breakpoints[] = Z80Core.newBreakpointBitmap();
+        Z80Core.setBreakpoint(breakpoints, lastPC);
+        z80.restoreState(states[0]);
+        Assert.assertEquals(Z80Core.STOP_BREAKPOINT, z80.runUntil(breakpoints, Long.MAX_VALUE));
+        return sameState(z80, states[expectedStep]);
+    }
+    
+    
+    /*
+    Checks the flags of the 8 bit add/sub ALU operations ("add/adc/sub/sbc/cp b")
+    for all combinations of inputs against a straightforward computation.
+    */
+    private boolean testALUFlags(String inputFile) throws Exception
+    {
+        Z80Core z80 = loadProgram(inputFile, "z80");
+        int opcodes[] = {0x80, 0x88, 0x90, 0x98, 0xb8};
+        for(int opcode:opcodes) {
+            boolean sub = opcode >= 0x90;
+            z80.writeByte(0, opcode);
+            for(int a = 0;a<256;a++) {
+                for(int b = 0;b<256;b++) {
+                    for(int carry = 0;carry<2;carry++) {
+                        int c = (opcode == 0x88 || opcode == 0x98) ? carry : 0;
+                        int result = sub ? a - b - c : a + b + c;
+                        int signedResult = sub ? (byte)a - (byte)b - c : (byte)a + (byte)b + c;
+                        int halfResult = sub ? (a & 0x0f) - (b & 0x0f) - c : (a & 0x0f) + (b & 0x0f) + c;
+                        int expected = (result & 0x80) |
+                                       ((result & 0xff) == 0 ? 0x40 : 0) |
+                                       ((opcode == 0xb8 ? b : result) & 0x28) |
+                                       ((halfResult & 0x10) != 0 ? 0x10 : 0) |
+                                       (signedResult < -128 || signedResult > 127 ? 0x04 : 0) |
+                                       (sub ? 0x02 : 0) |
+                                       ((result & 0x100) != 0 ? 0x01 : 0);
+                        z80.setRegisterValue(CPUConstants.RegisterNames.A, a);
+                        z80.setRegisterValue(CPUConstants.RegisterNames.B, b);
+                        z80.setRegisterValue(CPUConstants.RegisterNames.F, carry);
+                        z80.setProgramCounter(0);
+                        z80.executeOneInstruction();
+                        int f = z80.getRegisterValue(CPUConstants.RegisterNames.F);
+                        if (f != expected) {
+                            config.error("Flag mismatch for opcode " + opcode + " (a: " + a + ", b: " + b + ", carry: " + carry + "): " + f + " != " + expected);
+                            return false;
+                        }
+                    }
+                }
+            }
+        }
+        return true;
+    }
+    
+    
+    private boolean sameState(Z80Core z80, int expected[])
+    {
+        int result[] = new int[Z80Core.STATE_SIZE];
+        z80.saveState(result);
+        for(int i = 0;i<Z80Core.STATE_SIZE;i++) {
+            if (result[i] != expected[i]) {
+                config.error("State mismatch at position " + i + ": " + result[i] + " != " + expected[i]);
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    
+    private Z80Core loadProgram(String inputFile, String cpu) throws Exception
+    {
+        Assert.assertTrue(config.parseArgs(inputFile,"-cpu",cpu));
+        Assert.assertTrue(
+                "Could not parse file " + inputFile,
+                config.codeBaseParser.parseMainSourceFiles(config.inputFiles, code));
+
+        // Compile the assembler code to binary:
+        BinaryGenerator bg = new BinaryGenerator(config);
+        ListOutputStream out = new ListOutputStream();
+        bg.writeBytes(code.outputs.get(0).main, code, out, 0, true);
+        
+        // Setup a Z80 simulator and copy the binary to memory (at address 0 for now):
+        PlainZ80Memory z80Memory = new PlainZ80Memory();
+        Z80Core z80 = new Z80Core(z80Memory, new PlainZ80IO(), new CPUConfig(config));
+        z80.reset();
+        int address = 0;
+        for(int value: out.getData()) {
+            z80Memory.writeByte(address, value);
+            address++;
+        }
+        return z80;
+    }
 }
@@ -0,0 +1,23 @@
+    org #4000
+start:
+    ld b, 10
+    xor a
+loop:
+    add a, c   ; mdl-watch: "acc", a
+    djnz loop
+    ld (result), a
+end:
+    jp end
+
+mul:
+    ld a, (factor)
+    ld b, a
+    xor a
+mul_loop:
+    add a, c
+    djnz mul_loop
+mul_end:
+    ret
+
+result: db 0
+factor: db 3
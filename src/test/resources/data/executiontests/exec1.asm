@@ -0,0 +1,19 @@
+    org #4000
+start:
+    ld b, 4
+    xor a
+loop:
+    ld d, a
+    add a, b
+    cp 6
+    jr c, skip
+    inc c
+skip:
+    cp 100
+    jr nc, end
+    djnz loop
+    ld (result), a
+end:
+    jp end
+
+result: db 0
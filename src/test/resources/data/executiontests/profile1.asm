@@ -0,0 +1,15 @@
+    org #4000
+
+start:
+    call func1
+    call func2
+end:
+    jp end
+
+func1:
+    call func2
+    ret
+
+func2:
+    nop
+    ret
@@ -0,0 +1,10 @@
+    org #4000
+start:
+    ld a, 1
+    ld (#c000), a
+    ld (data), a
+    ld (#c001), a
+end:
+    jp end
+
+data: db 0
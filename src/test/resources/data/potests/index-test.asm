@@ -0,0 +1,16 @@
+    org #4000
+start:
+    ld b, 1
+    ld a, b
+    ld a, b
+    ld (#c000), a
+loop: ld a, c
+    ld a, c
+    srl a
+    srl a
+    srl a
+next: add a, 0
+    ld (#c001), a
+    ld a, 0
+    ld (#c002), a
+    jr loop